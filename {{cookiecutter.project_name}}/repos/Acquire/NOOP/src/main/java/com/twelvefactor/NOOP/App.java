@@ -10,12 +10,14 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
 import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
 import software.amazon.awssdk.services.sfn.SfnClient;
 import software.amazon.awssdk.services.sfn.model.SfnException;
 import software.amazon.awssdk.services.sfn.model.StartExecutionRequest;
 import software.amazon.awssdk.services.sfn.model.StartExecutionResponse;
 
+import java.time.Duration;
 import java.util.UUID;
 
 /**
@@ -31,7 +33,10 @@ public class App implements RequestHandler<S3EventNotification, String> {
     Gson gson = new GsonBuilder().setPrettyPrinting().create();
     private static final Logger logger = LoggerFactory.getLogger(App.class);
 
-    private String regExNumberPlate;
+    private static final String secretName = "/Staging/{{cookiecutter.project_name}}/Metadata";
+    // left to report the failure after the call gave up
+    private static final long deadlineMarginMillis = 500;
+    private final SecretCache regExNumberPlateCache;
 
     public App() {
         // Initialize the SDK client outside of the handler method so that it can be reused for subsequent invocations.
@@ -39,6 +44,11 @@ public class App implements RequestHandler<S3EventNotification, String> {
         sfnClient = DependencyFactory.sfnClient();
         xrayRecorder = DependencyFactory.awsxRayRecorder();
         secretsManagerClient = DependencyFactory.secretsManagerClient();
+        // the plate regex is read once and then refreshed in the background whenever its TTL expires
+        regExNumberPlateCache = new SecretCache(secretName,
+                () -> this.getSecretFromSecretsManager(secretsManagerClient, secretName),
+                DependencyFactory.secretCacheTtl(),
+                DependencyFactory.secretRefreshExecutor());
         // Consider invoking a simple api here to pre-warm up the application, eg: dynamodb#listTables
     }
 
@@ -64,13 +74,9 @@ public class App implements RequestHandler<S3EventNotification, String> {
             throw new RuntimeException(e);
         }
 
-        if (regExNumberPlate == null) {
-            logger.info("regExNumberPlate is not yet populated. Calling getSecretFromSecretsManager()...");
-            // get the plate from secrets manager
-            String secretName = "/Staging/{{cookiecutter.project_name}}/Metadata";
-            regExNumberPlate = this.getSecretFromSecretsManager(secretsManagerClient,secretName);
-            logger.info("regExNumberPlate is " + regExNumberPlate);
-        }
+        // get the plate from secrets manager, served from the cache after the first call
+        String regExNumberPlate = regExNumberPlateCache.get();
+        logger.info("regExNumberPlate is " + regExNumberPlate);
 
         // prepare data to be passed to the state machine
         NumberPlateTrigger result = new NumberPlateTrigger();
@@ -88,7 +94,7 @@ public class App implements RequestHandler<S3EventNotification, String> {
         Subsegment subsegment = xrayRecorder.beginSubsegment("TollGantry::Detect Number Plate in Captured Image");
         subsegment.putMetadata("bucket",event.getRecords().get(0).getS3().getBucket().getName());
         subsegment.putMetadata("key", event.getRecords().get(0).getS3().getObject().getKey());
-        subsegment.putMetadata("regex",this.regExNumberPlate);
+        subsegment.putMetadata("regex",regExNumberPlate);
 
         //
         // TODO: Call Rekognition to detect text in the captured image and verify if valid number plate
@@ -107,12 +113,14 @@ public class App implements RequestHandler<S3EventNotification, String> {
                     .input(gson.toJson(result))
                     .stateMachineArn(System.getenv("NumberPlateProcessStateMachine"))
                     .name(uuid)
+                    .overrideConfiguration(callTimeout(ctx))
                     .build();
             StartExecutionResponse executionResponse = sfnClient.startExecution(executionRequest);
             logger.info(String.format("State Machine started with execution arn: %s",executionResponse.executionArn()));
         } catch (SfnException e) {
             logger.error(String.format("Failed to trigger the step function workflow with error: %s", e.getMessage()));
-            System.exit(1);
+            // the invocation fails and is retried, the container stays warm
+            throw e;
         }
 
 
@@ -120,6 +128,17 @@ public class App implements RequestHandler<S3EventNotification, String> {
         return "Ok";
     }
 
+    // the call gives up before the invocation times out, without a context it has the client's timeouts
+    private static AwsRequestOverrideConfiguration callTimeout(Context ctx) {
+        if (ctx == null) {
+            return null;
+        }
+        long remainingMillis = Math.max(1, ctx.getRemainingTimeInMillis() - deadlineMarginMillis);
+        return AwsRequestOverrideConfiguration.builder()
+                .apiCallTimeout(Duration.ofMillis(remainingMillis))
+                .build();
+    }
+
     private String getSecretFromSecretsManager(SecretsManagerClient secretsClient, String secretName) {
         //TODO: Call secrets manager to retrieve the plate number regex
         return ".*";
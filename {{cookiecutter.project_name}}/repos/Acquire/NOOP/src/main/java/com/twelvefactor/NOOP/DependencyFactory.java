@@ -10,11 +10,16 @@ import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
 import software.amazon.awssdk.services.sfn.SfnClient;
 
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * The module containing all dependencies required by the {@link App}.
  */
 public class DependencyFactory {
     private static final String currentRegion = "{{cookiecutter.AWS_region}}"; //{{cookiecutter.AWS_region}}
+    private static final long defaultSecretCacheTtlSeconds = 300;
     private DependencyFactory() {}
 
     /**
@@ -43,4 +48,26 @@ public class DependencyFactory {
     public static AWSXRayRecorder awsxRayRecorder(){
         return AWSXRay.getGlobalRecorder();
     }
+
+    /**
+     * @return how long a cached secret is served before it is refreshed in the background (SecretCacheTtlSeconds)
+     */
+    public static Duration secretCacheTtl() {
+        String value = System.getenv("SecretCacheTtlSeconds");
+        if (value == null || value.trim().isEmpty()) {
+            return Duration.ofSeconds(defaultSecretCacheTtlSeconds);
+        }
+        return Duration.ofSeconds(Math.max(1, Long.parseLong(value.trim())));
+    }
+
+    /**
+     * @return a single daemon thread used to refresh cached secrets off the request path
+     */
+    public static ExecutorService secretRefreshExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "secret-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 }
@@ -0,0 +1,165 @@
+package com.twelvefactor.NOOP;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Container-lifetime cache for a value read from AWS Secrets Manager.
+ *
+ * Only the very first read blocks on the loader. Once the TTL has passed the cached value keeps being served
+ * while a single background refresh runs (stale-while-revalidate). If the refresh fails, or the loader returns
+ * null, the last known value stays in place and the refresh is retried after the retry interval.
+ * Every distinct value gets a new version number so callers can rebuild anything derived from it only when
+ * the secret actually changes.
+ */
+public class SecretCache {
+    private static final Logger logger = LoggerFactory.getLogger(SecretCache.class);
+    private static final Duration maxRetryInterval = Duration.ofSeconds(30);
+
+    /**
+     * Reads the current value of the secret, returning null when it could not be read.
+     */
+    public interface Loader {
+        String load();
+    }
+
+    /**
+     * An immutable snapshot of the secret.
+     */
+    public static class SecretVersion {
+        private final String value;
+        private final long version;
+        private final long loadedAtMillis;
+
+        SecretVersion(String value, long version, long loadedAtMillis) {
+            this.value = value;
+            this.version = version;
+            this.loadedAtMillis = loadedAtMillis;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getLoadedAtMillis() {
+            return loadedAtMillis;
+        }
+    }
+
+    private final String name;
+    private final Loader loader;
+    private final long ttlMillis;
+    private final long retryMillis;
+    private final Executor refreshExecutor;
+    private final Clock clock;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private final Object initialLoadLock = new Object();
+    private volatile SecretVersion current;
+    private volatile long nextRefreshAtMillis;
+
+    public SecretCache(String name, Loader loader, Duration ttl, Executor refreshExecutor) {
+        this(name, loader, ttl, refreshExecutor, Clock.systemUTC());
+    }
+
+    public SecretCache(String name, Loader loader, Duration ttl, Executor refreshExecutor, Clock clock) {
+        this.name = name;
+        this.loader = loader;
+        this.ttlMillis = ttl.toMillis();
+        this.retryMillis = Math.min(ttlMillis, maxRetryInterval.toMillis());
+        this.refreshExecutor = refreshExecutor;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the cached secret value, or null if it has never been read successfully
+     */
+    public String get() {
+        SecretVersion version = getVersion();
+        return version == null ? null : version.getValue();
+    }
+
+    /**
+     * @return the cached secret with its version, or null if it has never been read successfully
+     */
+    public SecretVersion getVersion() {
+        SecretVersion snapshot = current;
+        if (snapshot == null) {
+            return loadInitial();
+        }
+        if (clock.millis() >= nextRefreshAtMillis && refreshing.compareAndSet(false, true)) {
+            logger.info(String.format("Secret %s is older than its TTL, refreshing it in the background", name));
+            try {
+                refreshExecutor.execute(this::refresh);
+            } catch (RuntimeException e) {
+                refreshing.set(false);
+                logger.error(String.format("Unable to schedule a refresh of secret %s: %s", name, e.getMessage()));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return true once a value has been read successfully
+     */
+    public boolean isLoaded() {
+        return current != null;
+    }
+
+    private SecretVersion loadInitial() {
+        synchronized (initialLoadLock) {
+            if (current == null) {
+                logger.info(String.format("Secret %s is not yet populated, loading it", name));
+                update(read());
+            }
+            return current;
+        }
+    }
+
+    private void refresh() {
+        try {
+            update(read());
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    private String read() {
+        try {
+            return loader.load();
+        } catch (RuntimeException e) {
+            logger.error(String.format("Failed to load secret %s with error: %s", name, e.getMessage()));
+            return null;
+        }
+    }
+
+    private synchronized void update(String value) {
+        long now = clock.millis();
+        SecretVersion previous = current;
+        if (value == null) {
+            // keep serving the last known value and try again shortly
+            nextRefreshAtMillis = now + retryMillis;
+            if (previous != null) {
+                logger.warn(String.format("Secret %s could not be refreshed, keeping version %d", name, previous.getVersion()));
+            }
+            return;
+        }
+        if (previous != null && Objects.equals(previous.getValue(), value)) {
+            current = new SecretVersion(value, previous.getVersion(), now);
+        } else {
+            long version = previous == null ? 1 : previous.getVersion() + 1;
+            current = new SecretVersion(value, version, now);
+            logger.info(String.format("Secret %s is now at version %d", name, version));
+        }
+        nextRefreshAtMillis = now + ttlMillis;
+    }
+}
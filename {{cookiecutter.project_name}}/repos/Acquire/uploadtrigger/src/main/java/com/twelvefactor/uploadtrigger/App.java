@@ -4,6 +4,7 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification;
 import com.amazonaws.xray.AWSXRayRecorder;
+import com.amazonaws.xray.entities.Entity;
 import com.amazonaws.xray.entities.Subsegment;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -11,13 +12,16 @@ import com.google.gson.reflect.TypeToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
 import software.amazon.awssdk.services.rekognition.RekognitionClient;
 import software.amazon.awssdk.services.rekognition.model.*;
 import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
 import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
 import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
 import software.amazon.awssdk.services.secretsmanager.model.SecretsManagerException;
+import software.amazon.awssdk.services.sfn.SfnAsyncClient;
 import software.amazon.awssdk.services.sfn.SfnClient;
+import software.amazon.awssdk.services.sfn.model.ExecutionAlreadyExistsException;
 import software.amazon.awssdk.services.sfn.model.SfnException;
 import software.amazon.awssdk.services.sfn.model.StartExecutionRequest;
 import software.amazon.awssdk.services.sfn.model.StartExecutionResponse;
@@ -26,8 +30,14 @@ import software.amazon.awssdk.utils.StringUtils;
 import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * Lambda function entry point. You can change to use other pojo type or implement
@@ -37,56 +47,559 @@ import java.util.regex.Pattern;
  */
 public class App implements RequestHandler<S3EventNotification, String> {
     private final RekognitionClient rekognitionClient;
+    private final CircuitBreaker rekognitionCircuitBreaker;
     private final AWSXRayRecorder xrayRecorder;
     private final SfnClient sfnClient;
     private final SecretsManagerClient secretsManagerClient;
     Gson gson = new GsonBuilder().setPrettyPrinting().create();
     private static final Logger logger = LoggerFactory.getLogger(App.class);
-    private String regExNumberPlate;
+    private static final String secretName = "/Staging/{{cookiecutter.project_name}}/Metadata";
+    // left to return the results of the records after the last call gave up
+    static final long deadlineMarginMillis = 500;
+    // about the time detectText and StartExecution take together, a record is not started with less time left
+    private static final long recordMinRemainingMillis = 1000;
+    private final SecretCache regExNumberPlateCache;
+    private final float rekognitionTextMinConfidence;
+    private final Map<String, String> additionalNumberPlateRegEx;
+    private volatile PlateMatcher plateMatcher;
+    private final DetectionCache detectionCache;
+    private final int recordConcurrency;
+    private final ExecutorService recordExecutor;
+    private final boolean asyncExecutionMode;
+    private final int executionBatchSize;
+    private final RekognitionAsyncClient rekognitionAsyncClient;
+    private final SfnAsyncClient sfnAsyncClient;
 
     public App() {
         // Initialize the SDK client outside of the handler method so that it can be reused for subsequent invocations.
         // It is initialized when the class is loaded.
         rekognitionClient = DependencyFactory.rekognitionClient();
+        // shared by the sync and async clients, a throttled rekognition fails records fast instead of piling up calls
+        rekognitionCircuitBreaker = DependencyFactory.circuitBreaker("rekognition");
         xrayRecorder = DependencyFactory.awsxRayRecorder();
         sfnClient = DependencyFactory.sfnClient();
         secretsManagerClient = DependencyFactory.secretsManagerClient();
+        // the plate regex is read once and then refreshed in the background whenever its TTL expires
+        regExNumberPlateCache = new SecretCache(secretName,
+                () -> this.getSecretFromSecretsManager(secretsManagerClient, secretName),
+                DependencyFactory.secretCacheTtl(),
+                DependencyFactory.secretRefreshExecutor());
+        // matching settings are read once, the patterns are compiled on first use and whenever the secret changes
+        rekognitionTextMinConfidence = DependencyFactory.rekognitionTextMinConfidence();
+        additionalNumberPlateRegEx = additionalNumberPlateRegEx(System.getenv("AdditionalNumberPlateRegEx"));
+        // redelivered events for an object version reuse its detection instead of calling rekognition again
+        detectionCache = DependencyFactory.detectionCache();
+        // the pool lives as long as the container so warm invocations don't pay for new threads
+        recordConcurrency = DependencyFactory.maxRecordConcurrency();
+        recordExecutor = DependencyFactory.recordExecutor(recordConcurrency);
+        // the async clients share a non-blocking http engine and are only built when they will be used
+        asyncExecutionMode = DependencyFactory.asyncExecutionMode();
+        rekognitionAsyncClient = asyncExecutionMode ? DependencyFactory.rekognitionAsyncClient(recordConcurrency) : null;
+        sfnAsyncClient = asyncExecutionMode ? DependencyFactory.sfnAsyncClient(recordConcurrency) : null;
+        // above one, the plates detected in an invocation share one state machine execution per batch
+        executionBatchSize = DependencyFactory.executionBatchSize();
         // Consider invoking a simple api here to pre-warm up the application, eg: dynamodb#listTables
     }
 
     @Override
     public String handleRequest(S3EventNotification event, Context ctx) {
         logger.info("EVENT Received: " + gson.toJson(event));
+        List<S3EventNotification.S3EventNotificationRecord> records = event.getRecords();
+        logger.info(String.format("Received %d record(s) in the s3 event", records.size()));
+
+        List<RecordProcessingResult> results = process(records, Deadline.of(ctx, deadlineMarginMillis));
+
+        long failed = results.stream().filter(r -> !r.isSucceeded()).count();
+        String report = gson.toJson(results);
+        if (failed > 0) {
+            logger.error(String.format("Failed to process %d of %d record(s): %s", failed, results.size(), report));
+        } else {
+            logger.info("Successfully processed s3 event.");
+        }
+        return report;
+    }
+
+    /**
+     * Runs the detection pipeline for every record, in the configured execution mode. Every call is cut at the
+     * deadline, and a record not started when too little of it is left fails for its event source to retry.
+     * The default mode, sync with one execution per image, goes through processRecord; the async and batched
+     * modes are opt-in.
+     *
+     * @return one result per record, in the order of the records
+     */
+    List<RecordProcessingResult> process(List<S3EventNotification.S3EventNotificationRecord> records, Deadline deadline) {
+        int tollCharge;
+        try {
+            tollCharge = Integer.parseInt(System.getenv("TollgateCharge"));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        if (asyncExecutionMode) {
+            return executionBatchSize > 1
+                    ? processRecordsAsyncBatched(records, tollCharge, deadline) : processRecordsAsync(records, tollCharge, deadline);
+        }
+        return executionBatchSize > 1
+                ? processRecordsBatched(records, tollCharge, deadline) : processRecords(records, tollCharge, deadline);
+    }
+
+    // blocking mode: records are processed on the handler thread or, when there are several, on the shared pool
+    private List<RecordProcessingResult> processRecords(List<S3EventNotification.S3EventNotificationRecord> records, int tollCharge, Deadline deadline) {
+        // get the plate from secrets manager, served from the cache after the first call
+        SecretCache.SecretVersion regExVersion = regExNumberPlateCache.getVersion();
+        String regExNumberPlate = regExVersion == null ? null : regExVersion.getValue();
+        PlateMatcher matcher = plateMatcher(regExVersion);
+        logger.info("regExNumberPlate is " + regExNumberPlate);
+
+        return forEachRecord(records,
+                record -> processRecord(record, tollCharge, regExNumberPlate, matcher, deadline),
+                RecordProcessingResult::failed);
+    }
+
+    // blocking batch mode: every image is detected first, then the plates share one execution per batch
+    private List<RecordProcessingResult> processRecordsBatched(List<S3EventNotification.S3EventNotificationRecord> records, int tollCharge, Deadline deadline) {
+        SecretCache.SecretVersion regExVersion = regExNumberPlateCache.getVersion();
+        String regExNumberPlate = regExVersion == null ? null : regExVersion.getValue();
+        PlateMatcher matcher = plateMatcher(regExVersion);
+        logger.info("regExNumberPlate is " + regExNumberPlate);
+
+        List<RecordDetection> detections = forEachRecord(records,
+                record -> detectRecord(record, tollCharge, regExNumberPlate, matcher, deadline),
+                RecordDetection::failed);
+        return startExecutionBatches(detections, deadline, executionRequest -> {
+            try {
+                return CompletableFuture.completedFuture(sfnClient.startExecution(executionRequest));
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
+    // run the task for every record on the handler thread or, when there are several, on the shared pool
+    // so that at most recordConcurrency records are in flight at any time
+    private <T> List<T> forEachRecord(List<S3EventNotification.S3EventNotificationRecord> records,
+                                      Function<S3EventNotification.S3EventNotificationRecord, T> task,
+                                      BiFunction<S3EventNotification.S3EventNotificationRecord, Throwable, T> onFailure) {
+        List<T> results = new ArrayList<>();
+        if (records.size() == 1 || recordConcurrency <= 1) {
+            // nothing to overlap, so keep the work on the handler thread
+            for (S3EventNotification.S3EventNotificationRecord record : records) {
+                results.add(task.apply(record));
+            }
+            return results;
+        }
+
+        Entity traceEntity = xrayRecorder.getTraceEntity();
+        List<Callable<T>> recordTasks = new ArrayList<>();
+        for (S3EventNotification.S3EventNotificationRecord record : records) {
+            recordTasks.add(() -> {
+                xrayRecorder.setTraceEntity(traceEntity);
+                try {
+                    return task.apply(record);
+                } finally {
+                    xrayRecorder.clearTraceEntity();
+                }
+            });
+        }
+        try {
+            List<Future<T>> futures = recordExecutor.invokeAll(recordTasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(onFailure.apply(records.get(i), e.getCause()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        return results;
+    }
+
+    // async mode: the secret fetch, every detectText call and every StartExecution call are in flight together,
+    // so the invocation waits on the slowest call instead of the sum of all of them
+    private List<RecordProcessingResult> processRecordsAsync(List<S3EventNotification.S3EventNotificationRecord> records, int tollCharge, Deadline deadline) {
+        CompletableFuture<SecretCache.SecretVersion> regexFuture = regexFuture();
+
+        List<CompletableFuture<RecordProcessingResult>> pending = new ArrayList<>();
+        for (S3EventNotification.S3EventNotificationRecord record : records) {
+            pending.add(processRecordAsync(record, tollCharge, regexFuture, deadline));
+        }
+        return joinAll(pending);
+    }
+
+    // async batch mode: all detections are in flight together, then every batch is started together
+    private List<RecordProcessingResult> processRecordsAsyncBatched(List<S3EventNotification.S3EventNotificationRecord> records, int tollCharge, Deadline deadline) {
+        CompletableFuture<SecretCache.SecretVersion> regexFuture = regexFuture();
+
+        List<CompletableFuture<RecordDetection>> pending = new ArrayList<>();
+        for (S3EventNotification.S3EventNotificationRecord record : records) {
+            pending.add(detectRecordAsync(record, tollCharge, regexFuture, deadline));
+        }
+        return startExecutionBatches(joinAll(pending), deadline, sfnAsyncClient::startExecution);
+    }
+
+    private CompletableFuture<SecretCache.SecretVersion> regexFuture() {
+        if (regExNumberPlateCache.isLoaded()) {
+            return CompletableFuture.completedFuture(regExNumberPlateCache.getVersion());
+        }
+        // get the plate from secrets manager on its own path, detection does not need it
+        return CompletableFuture.supplyAsync(regExNumberPlateCache::getVersion, recordExecutor);
+    }
+
+    // every stage handles its own failure, so joining never throws
+    private static <T> List<T> joinAll(List<CompletableFuture<T>> pending) {
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+
+        List<T> results = new ArrayList<>();
+        for (CompletableFuture<T> future : pending) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    // group the detected plates into executions of up to executionBatchSize items, records that failed
+    // before they could be started keep their own result
+    private List<RecordProcessingResult> startExecutionBatches(List<RecordDetection> detections, Deadline deadline,
+                                                              Function<StartExecutionRequest, CompletableFuture<StartExecutionResponse>> startExecution) {
+        RecordProcessingResult[] results = new RecordProcessingResult[detections.size()];
+        List<Integer> detected = new ArrayList<>();
+        for (int i = 0; i < detections.size(); i++) {
+            if (detections.get(i).failure != null) {
+                results[i] = detections.get(i).failure;
+            } else {
+                detected.add(i);
+            }
+        }
+
+        List<CompletableFuture<Void>> started = new ArrayList<>();
+        for (int from = 0; from < detected.size(); from += executionBatchSize) {
+            List<Integer> members = detected.subList(from, Math.min(detected.size(), from + executionBatchSize));
+            NumberPlateTriggerBatch batch = new NumberPlateTriggerBatch();
+            StringBuilder memberNames = new StringBuilder();
+            for (int i : members) {
+                batch.items.add(detections.get(i).trigger);
+                memberNames.append(detections.get(i).executionName);
+            }
+            // the same images in the same batch map to the same name, so a redelivered batch is absorbed too
+            String executionName = DetectionKey.sha256Hex(memberNames.toString());
+
+            logger.info(String.format("Starting the state machine for a batch of %d plate(s)", members.size()));
+            StartExecutionRequest executionRequest = StartExecutionRequest.builder()
+                    .input(gson.toJson(batch))
+                    .stateMachineArn(System.getenv("NumberPlateProcessStateMachine"))
+                    .name(executionName)
+                    .overrideConfiguration(deadline.callTimeout())
+                    .build();
+            started.add(startExecution.apply(executionRequest).handle((executionResponse, e) -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause == null) {
+                    logger.info(String.format("State Machine started with execution arn: %s",executionResponse.executionArn()));
+                } else if (cause instanceof ExecutionAlreadyExistsException) {
+                    logger.info(String.format("Execution %s already exists, ignoring the duplicate batch", executionName));
+                    cause = null;
+                } else {
+                    logger.error(String.format("Failed to start the batch execution %s with error: %s", executionName, cause.getMessage()));
+                }
+                for (int i : members) {
+                    RecordDetection detection = detections.get(i);
+                    results[i] = cause == null
+                            ? RecordProcessingResult.succeeded(detection.bucket, detection.key, executionName)
+                            : RecordProcessingResult.failed(detection.bucket, detection.key, cause);
+                }
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(started.toArray(new CompletableFuture[0])).join();
+        return Arrays.asList(results);
+    }
+
+    // start the state machine for one image without blocking a thread on any of the calls
+    private CompletableFuture<RecordProcessingResult> processRecordAsync(S3EventNotification.S3EventNotificationRecord record,
+                                                                         int tollCharge,
+                                                                         CompletableFuture<SecretCache.SecretVersion> regexFuture,
+                                                                         Deadline deadline) {
+        return detectRecordAsync(record, tollCharge, regexFuture, deadline).thenCompose(detection -> {
+            if (detection.failure != null) {
+                return CompletableFuture.completedFuture(detection.failure);
+            }
+            logger.info("Starting the state machine");
+            StartExecutionRequest executionRequest = StartExecutionRequest.builder()
+                    .input(gson.toJson(detection.trigger))
+                    .stateMachineArn(System.getenv("NumberPlateProcessStateMachine"))
+                    .name(detection.executionName)
+                    .overrideConfiguration(deadline.callTimeout())
+                    .build();
+            return sfnAsyncClient.startExecution(executionRequest)
+                    .thenApply(executionResponse -> {
+                        logger.info(String.format("State Machine started with execution arn: %s",executionResponse.executionArn()));
+                        return RecordProcessingResult.succeeded(detection.bucket, detection.key, detection.executionName);
+                    })
+                    .exceptionally(e -> {
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        if (cause instanceof ExecutionAlreadyExistsException) {
+                            // the same object version was already handed to the state machine
+                            logger.info(String.format("Execution %s already exists for %s/%s, ignoring the duplicate",
+                                    detection.executionName, detection.bucket, detection.key));
+                            return RecordProcessingResult.succeeded(detection.bucket, detection.key, detection.executionName);
+                        }
+                        logger.error(String.format("Failed to process %s/%s with error: %s", detection.bucket, detection.key, cause.getMessage()));
+                        return RecordProcessingResult.failed(detection.bucket, detection.key, cause);
+                    });
+        });
+    }
+
+    // chain detect -> match for one image without blocking a thread on any of the calls
+    private CompletableFuture<RecordDetection> detectRecordAsync(S3EventNotification.S3EventNotificationRecord record,
+                                                                 int tollCharge,
+                                                                 CompletableFuture<SecretCache.SecretVersion> regexFuture,
+                                                                 Deadline deadline) {
+        final String srcKey, srcBucket;
+        final Long objectSize;
+        final DetectionKey detectionKey;
+
+        try {
+            srcKey = record.getS3().getObject().getUrlDecodedKey();
+            srcBucket = record.getS3().getBucket().getName();
+            objectSize = record.getS3().getObject().getSizeAsLong();
+            detectionKey = new DetectionKey(srcBucket, srcKey,
+                    record.getS3().getObject().geteTag(), record.getS3().getObject().getVersionId());
+
+            logger.info(String.format("Bucket Name is: %s",record.getS3().getBucket().getName()));
+            logger.info(String.format("File Path is %s",record.getS3().getObject().getKey()));
+        } catch (Exception e) {
+            logger.error(String.format("Unable to read the s3 record with error: %s", e.getMessage()));
+            return CompletableFuture.completedFuture(RecordDetection.failed(record, e));
+        }
+        if (!deadline.allows(recordMinRemainingMillis)) {
+            return CompletableFuture.completedFuture(RecordDetection.failed(srcBucket, srcKey, deadlineExceeded(deadline)));
+        }
+
+        // a redelivered object version reuses the detection it already paid for, the s3 tier of the cache is read
+        // and written on the record pool so that neither the handler thread nor an sdk completion thread waits on it
+        CompletableFuture<List<TextDetection>> detection = detectionCache.getAsync(detectionKey, deadline, recordExecutor)
+                .thenCompose(cachedDetection -> cachedDetection != null
+                        ? CompletableFuture.completedFuture(cachedDetection)
+                        : detectTextAsync(srcBucket, srcKey, deadline)
+                                .thenCompose(textDetections -> detectionCache.putAsync(detectionKey, textDetections, deadline, recordExecutor)
+                                        .thenApply(stored -> textDetections)));
+
+        return detection
+                .thenCombine(regexFuture, (textCollection, regExVersion) -> {
+                    String regex = regExVersion == null ? null : regExVersion.getValue();
+                    NumberPlateTrigger result = newNumberPlateTrigger(srcBucket, srcKey, objectSize, tollCharge, regex);
+                    matchNumberPlate(result, textCollection, plateMatcher(regExVersion));
+                    return RecordDetection.detected(srcBucket, srcKey, detectionKey.executionName(), result);
+                })
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    logger.error(String.format("Failed to process %s/%s with error: %s", srcBucket, srcKey, cause.getMessage()));
+                    return RecordDetection.failed(srcBucket, srcKey, cause);
+                });
+    }
+
+    // call rekognition for one image through the circuit, without blocking a thread on the call
+    private CompletableFuture<List<TextDetection>> detectTextAsync(String srcBucket, String srcKey, Deadline deadline) {
+        S3Object s3Object = S3Object.builder()
+                .name(srcKey)
+                .bucket(srcBucket).build();
+        Image plateImg = Image.builder().s3Object(s3Object).build();
+        DetectTextRequest detectTextRequest = DetectTextRequest.builder()
+                .image(plateImg)
+                .overrideConfiguration(deadline.callTimeout())
+                .build();
+        logger.info(String.format("Calling Rekognition for %s/%s ...", srcBucket, srcKey));
+        CompletableFuture<DetectTextResponse> detectText;
+        try {
+            rekognitionCircuitBreaker.acquire();
+            try {
+                detectText = rekognitionAsyncClient.detectText(detectTextRequest);
+            } catch (RuntimeException e) {
+                // a call the client refuses before sending it still ends the call the circuit let through
+                detectText = CompletableFuture.failedFuture(e);
+            }
+            detectText = detectText.whenComplete((response, e) -> rekognitionCircuitBreaker.onResult(e));
+        } catch (CircuitBreaker.OpenCircuitException e) {
+            detectText = CompletableFuture.failedFuture(new TextDetectionError(e.getMessage()));
+        }
+        return detectText.thenApply(response -> {
+            logger.info(String.format("Response from Rekognition: %s",gson.toJson(response.textDetections())));
+            return response.textDetections();
+        });
+    }
+
+    // run the detection pipeline for a single image and start the state machine for it
+    private RecordProcessingResult processRecord(S3EventNotification.S3EventNotificationRecord record,
+                                                 int tollCharge,
+                                                 String regExNumberPlate,
+                                                 PlateMatcher matcher,
+                                                 Deadline deadline) {
+        RecordDetection detection = detectRecord(record, tollCharge, regExNumberPlate, matcher, deadline);
+        if (detection.failure != null) {
+            return detection.failure;
+        }
+
+        try {
+            NumberPlateTrigger result = detection.trigger;
+
+            //
+            // At this point, we either know it is a valid number plate
+            // or it couldn't be determined with adequate confidence
+            // so we need manual intervention
+            //
+
+            //
+            // Kick off the step function
+            //
+            logger.info("Starting the state machine");
+            // specify the name of the execution, derived from the object version so that a redelivered
+            // event reuses it and Step Functions absorbs the duplicate
+            String uuid = detection.executionName;
+            ////////////////////////////////////////////////////////////
+            //
+            // TODO: Call the Step Function using the AWS SDK
+            //
+            /////////////////////////////////////////////////////////////
+
+            return RecordProcessingResult.succeeded(detection.bucket, detection.key, uuid);
+        } catch (Exception e) {
+            logger.error(String.format("Failed to process %s/%s with error: %s", detection.bucket, detection.key, e.getMessage()));
+            return RecordProcessingResult.failed(detection.bucket, detection.key, e);
+        }
+    }
+
+    // detect the number plate in a single image, without starting the state machine
+    private RecordDetection detectRecord(S3EventNotification.S3EventNotificationRecord record,
+                                         int tollCharge,
+                                         String regExNumberPlate,
+                                         PlateMatcher matcher,
+                                         Deadline deadline) {
         String srcKey, srcBucket;
         Long objectSize;
-        int tollCharge;
+        DetectionKey detectionKey;
 
-        // pull the relevant info out from the event
         try {
-            S3EventNotification.S3EventNotificationRecord record=event.getRecords().get(0);
             srcKey = record.getS3().getObject().getUrlDecodedKey();
             srcBucket = record.getS3().getBucket().getName();
             objectSize = record.getS3().getObject().getSizeAsLong();
-            tollCharge = Integer.parseInt(System.getenv("TollgateCharge"));
+            detectionKey = new DetectionKey(srcBucket, srcKey,
+                    record.getS3().getObject().geteTag(), record.getS3().getObject().getVersionId());
 
             logger.info(String.format("Bucket Name is: %s",record.getS3().getBucket().getName()));
             logger.info(String.format("File Path is %s",record.getS3().getObject().getKey()));
+        } catch (Exception e) {
+            logger.error(String.format("Unable to read the s3 record with error: %s", e.getMessage()));
+            return RecordDetection.failed(record, e);
+        }
+        if (!deadline.allows(recordMinRemainingMillis)) {
+            return RecordDetection.failed(srcBucket, srcKey, deadlineExceeded(deadline));
+        }
+
+        // distributed tracing segments and metadata, the subsegment is ended on every path so that the trace entity
+        // handed to a pool thread is not left open
+        Subsegment subsegment = xrayRecorder.beginSubsegment("TollGantry::Detect Number Plate in Captured Image");
+        try {
+            // prepare data to be passed to the state machine
+            NumberPlateTrigger result = newNumberPlateTrigger(srcBucket, srcKey, objectSize, tollCharge, regExNumberPlate);
+
+            subsegment.putMetadata("bucket",srcBucket);
+            subsegment.putMetadata("key", record.getS3().getObject().getKey());
+            subsegment.putMetadata("regex",regExNumberPlate);
 
+            // call rekognition to get the number plate, unless this object version was already detected
+            List<TextDetection> textCollection = detectionCache.get(detectionKey, deadline);
+            subsegment.putMetadata("cached", textCollection != null);
+            if (textCollection == null) {
+                textCollection = Collections.emptyList();
+                try {
+                    S3Object s3Object = S3Object.builder()
+                            .name(srcKey)
+                            .bucket(srcBucket).build();
+                    Image plateImg = Image.builder().s3Object(s3Object).build();
+                    DetectTextRequest detectTextRequest = DetectTextRequest.builder()
+                            .image(plateImg)
+                            .overrideConfiguration(deadline.callTimeout())
+                            .build();
+                    logger.info("Calling Rekognition ...");
+                    DetectTextResponse response = rekognitionCircuitBreaker.call(() -> rekognitionClient.detectText(detectTextRequest));
+                    textCollection = response.textDetections();
+                    detectionCache.put(detectionKey, textCollection, deadline);
+                    logger.info(String.format("Response from Rekognition: %s",gson.toJson(response.textDetections())));
+                } catch (RekognitionException | CircuitBreaker.OpenCircuitException e) {
+                    // the record fails and is retried by its event source, the container stays warm
+                    String msg = String.format("Error invoking Rekognition with message: %s",e.getMessage());
+                    logger.error(msg);
+                    subsegment.addException(e);
+                    throw new TextDetectionError(msg);
+                }
+            }
+
+            // check if a valid number was detected...
+            matchNumberPlate(result, textCollection, matcher);
+
+            return RecordDetection.detected(srcBucket, srcKey, detectionKey.executionName(), result);
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            logger.error(String.format("Failed to process %s/%s with error: %s", srcBucket, srcKey, e.getMessage()));
+            return RecordDetection.failed(srcBucket, srcKey, e);
+        } finally {
+            xrayRecorder.endSubsegment();
+        }
+    }
+
+    public class TextDetectionError extends RuntimeException {
+        public TextDetectionError(String message) {
+            super(message);
+        }
+    }
+
+    public class DeadlineExceededError extends RuntimeException {
+        public DeadlineExceededError(String message) {
+            super(message);
+        }
+    }
+
+    private DeadlineExceededError deadlineExceeded(Deadline deadline) {
+        return new DeadlineExceededError(String.format("Only %dms left of the invocation, the record was not started",
+                deadline.remainingMillis()));
+    }
+
+    // the outcome of detecting the plate in one image: the trigger to start the state machine with, or why it failed
+    private static class RecordDetection {
+        private String bucket;
+        private String key;
+        private String executionName;
+        private NumberPlateTrigger trigger;
+        private RecordProcessingResult failure;
+
+        static RecordDetection detected(String bucket, String key, String executionName, NumberPlateTrigger trigger) {
+            RecordDetection detection = new RecordDetection();
+            detection.bucket = bucket;
+            detection.key = key;
+            detection.executionName = executionName;
+            detection.trigger = trigger;
+            return detection;
         }
 
+        static RecordDetection failed(String bucket, String key, Throwable cause) {
+            RecordDetection detection = new RecordDetection();
+            detection.bucket = bucket;
+            detection.key = key;
+            detection.failure = RecordProcessingResult.failed(bucket, key, cause);
+            return detection;
+        }
 
-        if (regExNumberPlate == null) {
-            logger.info("regExNumberPlate is not yet populated. Calling getSecretFromSecretsManager()...");
-            // get the plate from secrets manager
-            String secretName = "/Staging/{{cookiecutter.project_name}}/Metadata";
-            regExNumberPlate = this.getSecretFromSecretsManager(secretsManagerClient,secretName);
-            logger.info("regExNumberPlate is " + regExNumberPlate);
+        static RecordDetection failed(S3EventNotification.S3EventNotificationRecord record, Throwable cause) {
+            RecordDetection detection = new RecordDetection();
+            detection.failure = RecordProcessingResult.failed(record, cause);
+            detection.bucket = detection.failure.getBucket();
+            detection.key = detection.failure.getKey();
+            return detection;
         }
+    }
 
-        // prepare data to be passed to the state machine
-        // prepare data to be passed to the state machine
+    // prepare data to be passed to the state machine
+    private NumberPlateTrigger newNumberPlateTrigger(String srcBucket, String srcKey, Long objectSize, int tollCharge, String regex) {
         NumberPlateTrigger result = new NumberPlateTrigger();
         result.setCharge(tollCharge);
         result.setBucket(srcBucket);
@@ -95,78 +608,45 @@ public class App implements RequestHandler<S3EventNotification, String> {
         result.setContentLength(objectSize);
         NumberPlate numberPlate = new NumberPlate();
         numberPlate.setDetected(false);
-        numberPlate.setNumberPlateString(regExNumberPlate);
+        numberPlate.setNumberPlateString(regex);
         result.setNumberPlate(numberPlate);
+        return result;
+    }
 
-        // distributed tracing segments and metadata
-        Subsegment subsegment = xrayRecorder.beginSubsegment("TollGantry::Detect Number Plate in Captured Image");
-        subsegment.putMetadata("bucket",event.getRecords().get(0).getS3().getBucket().getName());
-        subsegment.putMetadata("key", event.getRecords().get(0).getS3().getObject().getKey());
-        subsegment.putMetadata("regex",this.regExNumberPlate);
-
-        // call rekognition to get the number plate
-        List<TextDetection> textCollection = Collections.emptyList();
-        try {
-            S3Object s3Object = S3Object.builder()
-                    .name(srcKey)
-                    .bucket(srcBucket).build();
-            Image plateImg = Image.builder().s3Object(s3Object).build();
-            DetectTextRequest detectTextRequest = DetectTextRequest.builder()
-                    .image(plateImg).build();
-            logger.info("Calling Rekognition ...");
-            DetectTextResponse response = rekognitionClient.detectText(detectTextRequest);
-            textCollection = response.textDetections();
-            logger.info(String.format("Response from Rekognition: %s",gson.toJson(response.textDetections())));
-        } catch (RekognitionException e) {
-            logger.error(String.format("Error invoking Rekognition with message: %s",e.getMessage()));
-            System.exit(1);
-        }
-
-        // check if a valid number was detected...
-        for (TextDetection textItem : textCollection) {
-            if (!result.numberPlate.detected
-                    && textItem.confidence() > Float.parseFloat(System.getenv("RekognitionTextMinConfidence"))
-                    && textItem.type().name().equals("LINE")) {
-                // Regex matches
-                //List<String> allMatches = new ArrayList<String>();
-                StringBuilder plateNumber = new StringBuilder();
-                Matcher m = Pattern.compile(regExNumberPlate).matcher(textItem.detectedText());
-                while (m.find()) {
-                    plateNumber.append(m.group(1) + m.group(2));
-                    //allMatches.add(m.group());
-                }
-                if (!StringUtils.isEmpty(plateNumber.toString())) {
-                    result.numberPlate.detected = true;
-                    result.numberPlate.confidence = textItem.confidence();
-                    result.numberPlate.numberPlateString = plateNumber.toString().replaceAll("[^A-Za-z0-9]",""); // remove non-alphanumeric characters
-                    logger.info(String.format("A valid plate number was detected %s", plateNumber));
-                }
-            }
+    // check if a valid number was detected in the text rekognition found in the image
+    private void matchNumberPlate(NumberPlateTrigger result, List<TextDetection> textCollection, PlateMatcher matcher) {
+        PlateMatcher.Match match = matcher.match(textCollection);
+        if (match != null) {
+            result.numberPlate.detected = true;
+            result.numberPlate.confidence = match.getConfidence();
+            result.numberPlate.numberPlateString = match.getNumberPlate();
+            result.numberPlate.numberPlateRegEx = match.getRegex();
+            logger.info(String.format("A valid plate number was detected %s (%s)", match.getNumberPlate(), match.getJurisdiction()));
         }
+    }
 
-        xrayRecorder.endSubsegment();
-
-        //
-        // At this point, we either know it is a valid number plate
-        // or it couldn't be determined with adequate confidence
-        // so we need manual intervention
-        //
-
-        //
-        // Kick off the step function
-        //
-        logger.info("Starting the state machine");
-        // specify the name of the execution using a guid value
-        String uuid = UUID.randomUUID().toString();
-        ////////////////////////////////////////////////////////////
-        //
-        // TODO: Call the Step Function using the AWS SDK
-        //
-        /////////////////////////////////////////////////////////////
-
+    // the patterns are only recompiled when the secret has moved on to a new version
+    private PlateMatcher plateMatcher(SecretCache.SecretVersion regExVersion) {
+        long version = regExVersion == null ? 0 : regExVersion.getVersion();
+        PlateMatcher matcher = plateMatcher;
+        if (matcher == null || matcher.getVersion() != version) {
+            Map<String, String> patterns = new LinkedHashMap<>();
+            patterns.put("default", regExVersion == null ? null : regExVersion.getValue());
+            additionalNumberPlateRegEx.forEach(patterns::putIfAbsent);
+            matcher = PlateMatcher.compile(version, patterns, rekognitionTextMinConfidence);
+            plateMatcher = matcher;
+        }
+        return matcher;
+    }
 
-        logger.info("Successfully processed s3 event.");
-        return "Ok";
+    // optional extra jurisdictions as a json object of name to regex, eg: {"VIC": "^([A-Z]{3})([0-9]{3})$"}
+    private Map<String, String> additionalNumberPlateRegEx(String json) {
+        if (StringUtils.isBlank(json)) {
+            return Collections.emptyMap();
+        }
+        Type type = new TypeToken<LinkedHashMap<String, String>>(){}.getType();
+        Map<String, String> patterns = gson.fromJson(json, type);
+        return patterns == null ? Collections.emptyMap() : patterns;
     }
 
     private String getSecretFromSecretsManager(SecretsManagerClient secretsClient, String secretName) {
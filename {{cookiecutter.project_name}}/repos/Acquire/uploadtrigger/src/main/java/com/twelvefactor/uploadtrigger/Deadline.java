@@ -0,0 +1,64 @@
+package com.twelvefactor.uploadtrigger;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+
+import java.time.Duration;
+
+/**
+ * The end of the current invocation, less a margin kept to report what could not be done, turned into the
+ * timeout of every SDK call made for it so that no call runs past the timeout of the function.
+ *
+ * Work that needs more time than is left is not started, and a call gets at most the time left, its retries
+ * included. Without a context, as in the tests, there is no deadline.
+ */
+public final class Deadline {
+    private static final Deadline none = new Deadline(Long.MAX_VALUE);
+
+    private final long atMillis;
+
+    private Deadline(long atMillis) {
+        this.atMillis = atMillis;
+    }
+
+    /**
+     * @return the end of the invocation less marginMillis, or no deadline without a context
+     */
+    public static Deadline of(Context context, long marginMillis) {
+        return context == null ? none : after(context.getRemainingTimeInMillis() - marginMillis);
+    }
+
+    /**
+     * @return the deadline millis from now, no deadline for Long.MAX_VALUE or close to it
+     */
+    private static Deadline after(long millis) {
+        return millis >= Long.MAX_VALUE / 2 ? none : new Deadline(System.currentTimeMillis() + Math.max(0, millis));
+    }
+
+    public boolean isSet() {
+        return atMillis != Long.MAX_VALUE;
+    }
+
+    public long remainingMillis() {
+        return isSet() ? Math.max(0, atMillis - System.currentTimeMillis()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return true when at least millis are left
+     */
+    public boolean allows(long millis) {
+        return remainingMillis() >= millis;
+    }
+
+    /**
+     * @return the request configuration cutting a call at the deadline, null when there is none
+     */
+    public AwsRequestOverrideConfiguration callTimeout() {
+        if (!isSet()) {
+            return null;
+        }
+        return AwsRequestOverrideConfiguration.builder()
+                .apiCallTimeout(Duration.ofMillis(Math.max(1, remainingMillis())))
+                .build();
+    }
+}
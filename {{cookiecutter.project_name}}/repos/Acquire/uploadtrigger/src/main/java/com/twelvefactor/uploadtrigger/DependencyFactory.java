@@ -3,10 +3,13 @@ package com.twelvefactor.uploadtrigger;
 
 import com.amazonaws.xray.AWSXRayRecorder;
 import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
 import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.sfn.SfnAsyncClient;
 import software.amazon.awssdk.services.sfn.SfnClient;
 import com.amazonaws.xray.AWSXRay;
 import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
@@ -14,12 +17,25 @@ import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueReques
 import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
 import software.amazon.awssdk.services.secretsmanager.model.SecretsManagerException;
 
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 /**
  * The module containing all dependencies required by the {@link App}.
  */
 public class DependencyFactory {
     private static final String currentRegion = "{{cookiecutter.AWS_region}}"; //{{cookiecutter.AWS_region}}
+    private static final int defaultMaxRecordConcurrency = 4;
+    private static final long defaultSecretCacheTtlSeconds = 300;
+    private static final float defaultRekognitionTextMinConfidence = 90f;
+    private static final int defaultDetectionCacheSize = 1000;
+    private static final String defaultDetectionCachePrefix = "detection-cache/";
+    private static final int defaultExecutionBatchSize = 1;
+    private static final int defaultCircuitBreakerFailureThreshold = 5;
+    private static final long defaultCircuitBreakerOpenSeconds = 30;
     private DependencyFactory() {}
 
     /**
@@ -45,6 +61,28 @@ public class DependencyFactory {
                 .build();
     }
 
+    /**
+     * @return an instance of RekognitionAsyncClient on a non-blocking http engine
+     */
+    public static RekognitionAsyncClient rekognitionAsyncClient(int maxConcurrency) {
+        return RekognitionAsyncClient.builder()
+                .region(Region.of(currentRegion))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(maxConcurrency))
+                .build();
+    }
+
+    /**
+     * @return an instance of SfnAsyncClient on a non-blocking http engine
+     */
+    public static SfnAsyncClient sfnAsyncClient(int maxConcurrency) {
+        return SfnAsyncClient.builder()
+                .region(Region.of(currentRegion))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(maxConcurrency))
+                .build();
+    }
+
     public static SecretsManagerClient secretsManagerClient() {
         return SecretsManagerClient.builder()
                 .region(Region.of(currentRegion))
@@ -54,4 +92,107 @@ public class DependencyFactory {
     public static AWSXRayRecorder awsxRayRecorder(){
         return AWSXRay.getGlobalRecorder();
     }
+
+    /**
+     * @return the number of s3 records processed in parallel within one invocation (MaxRecordConcurrency)
+     */
+    public static int maxRecordConcurrency() {
+        String value = System.getenv("MaxRecordConcurrency");
+        if (value == null || value.trim().isEmpty()) {
+            return defaultMaxRecordConcurrency;
+        }
+        return Math.max(1, Integer.parseInt(value.trim()));
+    }
+
+    /**
+     * @return how long a cached secret is served before it is refreshed in the background (SecretCacheTtlSeconds)
+     */
+    public static Duration secretCacheTtl() {
+        String value = System.getenv("SecretCacheTtlSeconds");
+        if (value == null || value.trim().isEmpty()) {
+            return Duration.ofSeconds(defaultSecretCacheTtlSeconds);
+        }
+        return Duration.ofSeconds(Math.max(1, Long.parseLong(value.trim())));
+    }
+
+    /**
+     * @return a single daemon thread used to refresh cached secrets off the request path
+     */
+    public static ExecutorService secretRefreshExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "secret-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the confidence a text detection must exceed to be considered a number plate (RekognitionTextMinConfidence)
+     */
+    public static float rekognitionTextMinConfidence() {
+        String value = System.getenv("RekognitionTextMinConfidence");
+        if (value == null || value.trim().isEmpty()) {
+            return defaultRekognitionTextMinConfidence;
+        }
+        return Float.parseFloat(value.trim());
+    }
+
+    /**
+     * @return an LRU of DetectionCacheSize detections, backed by s3 when DetectionCacheBucket is set
+     */
+    public static DetectionCache detectionCache() {
+        String size = System.getenv("DetectionCacheSize");
+        int capacity = size == null || size.trim().isEmpty() ? defaultDetectionCacheSize : Integer.parseInt(size.trim());
+        String bucket = System.getenv("DetectionCacheBucket");
+        DetectionStore store = null;
+        if (bucket != null && !bucket.trim().isEmpty()) {
+            String prefix = System.getenv("DetectionCachePrefix");
+            store = new S3DetectionStore(s3Client(), bucket.trim(),
+                    prefix == null || prefix.trim().isEmpty() ? defaultDetectionCachePrefix : prefix.trim());
+        }
+        return new DetectionCache(Math.max(1, capacity), store);
+    }
+
+    /**
+     * @return how many detected plates share one state machine execution (ExecutionBatchSize), 1 by default starts one per image
+     */
+    public static int executionBatchSize() {
+        String value = System.getenv("ExecutionBatchSize");
+        if (value == null || value.trim().isEmpty()) {
+            return defaultExecutionBatchSize;
+        }
+        return Math.max(1, Integer.parseInt(value.trim()));
+    }
+
+    /**
+     * @return true when the handler should use the async clients (ExecutionMode=async), sync by default
+     */
+    public static boolean asyncExecutionMode() {
+        return "async".equalsIgnoreCase(System.getenv("ExecutionMode"));
+    }
+
+    /**
+     * @return a circuit that opens after CircuitBreakerFailureThreshold consecutive failures of the dependency,
+     * for CircuitBreakerOpenSeconds
+     */
+    public static CircuitBreaker circuitBreaker(String name) {
+        String threshold = System.getenv("CircuitBreakerFailureThreshold");
+        String openSeconds = System.getenv("CircuitBreakerOpenSeconds");
+        return new CircuitBreaker(name,
+                threshold == null || threshold.trim().isEmpty() ? defaultCircuitBreakerFailureThreshold : Integer.parseInt(threshold.trim()),
+                Duration.ofSeconds(openSeconds == null || openSeconds.trim().isEmpty()
+                        ? defaultCircuitBreakerOpenSeconds : Long.parseLong(openSeconds.trim())));
+    }
+
+    /**
+     * @return a fixed pool of daemon threads used to process s3 records concurrently
+     */
+    public static ExecutorService recordExecutor(int concurrency) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "record-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 }
@@ -0,0 +1,115 @@
+package com.twelvefactor.uploadtrigger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rekognition text detections keyed on the object version, so a redelivered s3 event does not pay for
+ * another detectText call.
+ *
+ * The first tier is a bounded LRU map that lives as long as the container. The optional {@link DetectionStore}
+ * is consulted on a local miss and written through on every put, so redeliveries that land on a different
+ * container are absorbed too.
+ */
+public class DetectionCache {
+    private static final Logger logger = LoggerFactory.getLogger(DetectionCache.class);
+
+    private final Map<String, List<TextDetection>> entries;
+    private final DetectionStore store;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DetectionCache(int capacity, DetectionStore store) {
+        this.store = store;
+        this.entries = new LinkedHashMap<String, List<TextDetection>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<TextDetection>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cached detections for the object version, or null when it has to be sent to Rekognition
+     */
+    public List<TextDetection> get(DetectionKey key, Deadline deadline) {
+        if (!key.isCacheable()) {
+            return null;
+        }
+        String cacheKey = key.cacheKey();
+        List<TextDetection> textDetections;
+        synchronized (entries) {
+            textDetections = entries.get(cacheKey);
+        }
+        if (textDetections == null && store != null) {
+            textDetections = store.load(key, deadline);
+            if (textDetections != null) {
+                synchronized (entries) {
+                    entries.put(cacheKey, textDetections);
+                }
+            }
+        }
+        if (textDetections == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        logger.info(String.format("Reusing cached detection for %s (hits=%d, misses=%d)", cacheKey, hits.incrementAndGet(), misses.get()));
+        return textDetections;
+    }
+
+    public void put(DetectionKey key, List<TextDetection> textDetections, Deadline deadline) {
+        if (!key.isCacheable() || textDetections == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key.cacheKey(), textDetections);
+        }
+        if (store != null) {
+            store.store(key, textDetections, deadline);
+        }
+    }
+
+    /**
+     * {@link #get} for callers that must not block: a hit in memory completes at once, a read of the persistent
+     * tier runs on the executor.
+     */
+    public CompletableFuture<List<TextDetection>> getAsync(DetectionKey key, Deadline deadline, Executor executor) {
+        if (store == null || !key.isCacheable() || isCachedInMemory(key)) {
+            return CompletableFuture.completedFuture(get(key, deadline));
+        }
+        return CompletableFuture.supplyAsync(() -> get(key, deadline), executor);
+    }
+
+    /**
+     * {@link #put} for callers that must not block: the write to the persistent tier runs on the executor.
+     */
+    public CompletableFuture<Void> putAsync(DetectionKey key, List<TextDetection> textDetections, Deadline deadline, Executor executor) {
+        if (store == null || !key.isCacheable()) {
+            put(key, textDetections, deadline);
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> put(key, textDetections, deadline), executor);
+    }
+
+    private boolean isCachedInMemory(DetectionKey key) {
+        synchronized (entries) {
+            return entries.containsKey(key.cacheKey());
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,97 @@
+package com.twelvefactor.uploadtrigger;
+
+import software.amazon.awssdk.utils.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+/**
+ * Identifies one version of an uploaded image by bucket, key and ETag (plus the version id on versioned buckets).
+ *
+ * A redelivered s3 event carries the same identity, so it maps to the same cached detection and the same
+ * state machine execution name. Events without an ETag or version id cannot be told apart from a new upload,
+ * they are never cached and get a random execution name.
+ */
+public class DetectionKey {
+    private final String bucket;
+    private final String key;
+    private final String eTag;
+    private final String versionId;
+
+    public DetectionKey(String bucket, String key, String eTag, String versionId) {
+        this.bucket = bucket;
+        this.key = key;
+        this.eTag = eTag;
+        this.versionId = versionId;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getVersionId() {
+        return versionId;
+    }
+
+    /**
+     * @return true when the object version is known, so results for it can be reused
+     */
+    public boolean isCacheable() {
+        return !StringUtils.isEmpty(eTag) || !StringUtils.isEmpty(versionId);
+    }
+
+    /**
+     * @return bucket/key#etag[#versionId]
+     */
+    public String cacheKey() {
+        StringBuilder cacheKey = new StringBuilder(bucket).append('/').append(key).append('#').append(eTag);
+        if (!StringUtils.isEmpty(versionId)) {
+            cacheKey.append('#').append(versionId);
+        }
+        return cacheKey.toString();
+    }
+
+    /**
+     * Step Functions names must be at most 80 characters without whitespace or punctuation such as '/' or '#',
+     * so the name is the hex SHA-256 of the cache key.
+     *
+     * @return the state machine execution name for this object version
+     */
+    public String executionName() {
+        if (!isCacheable()) {
+            return UUID.randomUUID().toString();
+        }
+        return sha256Hex(cacheKey());
+    }
+
+    /**
+     * @return the lower case hex SHA-256 of the value, a valid state machine execution name
+     */
+    static String sha256Hex(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return cacheKey();
+    }
+}
@@ -0,0 +1,18 @@
+package com.twelvefactor.uploadtrigger;
+
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+import java.util.List;
+
+/**
+ * Persistent tier behind the in-memory {@link DetectionCache}, shared by every container.
+ * Implementations should treat failures as a miss rather than failing the record.
+ */
+public interface DetectionStore {
+    /**
+     * @return the detections stored for the object version, or null if there are none or not by the deadline
+     */
+    List<TextDetection> load(DetectionKey key, Deadline deadline);
+
+    void store(DetectionKey key, List<TextDetection> textDetections, Deadline deadline);
+}
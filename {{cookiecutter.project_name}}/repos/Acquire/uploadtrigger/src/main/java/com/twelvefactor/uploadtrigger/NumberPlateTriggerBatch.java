@@ -0,0 +1,19 @@
+package com.twelvefactor.uploadtrigger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The input of a state machine execution that processes several detected plates, one Map iteration each.
+ */
+public class NumberPlateTriggerBatch {
+    public List<NumberPlateTrigger> items = new ArrayList<>();
+
+    public List<NumberPlateTrigger> getItems() {
+        return items;
+    }
+
+    public void setItems(List<NumberPlateTrigger> items) {
+        this.items = items;
+    }
+}
@@ -0,0 +1,181 @@
+package com.twelvefactor.uploadtrigger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+import software.amazon.awssdk.services.rekognition.model.TextTypes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Finds a number plate in the text Rekognition detected in an image.
+ *
+ * The jurisdiction patterns are compiled once per secret version and the minimum confidence is parsed once,
+ * so matching a detection only costs the regex itself. Candidates that are not a LINE or fall below the
+ * confidence threshold are skipped before any regex work. The capturing groups of a match are copied into a
+ * reused buffer keeping only ASCII letters and digits, so the plate string is the only String created.
+ * A matcher is immutable and safe to share between threads.
+ */
+public class PlateMatcher {
+    private static final Logger logger = LoggerFactory.getLogger(PlateMatcher.class);
+
+    /**
+     * A number plate found in a text detection.
+     */
+    public static class Match {
+        private final String numberPlate;
+        private final float confidence;
+        private final String jurisdiction;
+        private final String regex;
+
+        Match(String numberPlate, float confidence, String jurisdiction, String regex) {
+            this.numberPlate = numberPlate;
+            this.confidence = confidence;
+            this.jurisdiction = jurisdiction;
+            this.regex = regex;
+        }
+
+        public String getNumberPlate() {
+            return numberPlate;
+        }
+
+        public float getConfidence() {
+            return confidence;
+        }
+
+        public String getJurisdiction() {
+            return jurisdiction;
+        }
+
+        public String getRegex() {
+            return regex;
+        }
+    }
+
+    private static class Jurisdiction {
+        private final String name;
+        private final Pattern pattern;
+
+        Jurisdiction(String name, Pattern pattern) {
+            this.name = name;
+            this.pattern = pattern;
+        }
+    }
+
+    // matchers and the output buffer are reused per thread, they are not thread safe themselves
+    private static class Scratch {
+        private final Matcher[] matchers;
+        private final StringBuilder plate = new StringBuilder(16);
+
+        Scratch(List<Jurisdiction> jurisdictions) {
+            matchers = new Matcher[jurisdictions.size()];
+            for (int i = 0; i < matchers.length; i++) {
+                matchers[i] = jurisdictions.get(i).pattern.matcher("");
+            }
+        }
+    }
+
+    private final long version;
+    private final float minConfidence;
+    private final List<Jurisdiction> jurisdictions;
+    private final ThreadLocal<Scratch> scratch;
+
+    private PlateMatcher(long version, float minConfidence, List<Jurisdiction> jurisdictions) {
+        this.version = version;
+        this.minConfidence = minConfidence;
+        this.jurisdictions = jurisdictions;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(jurisdictions));
+    }
+
+    /**
+     * Compiles the jurisdiction patterns, in the order they should be tried. Patterns that are null or do
+     * not compile are logged and left out.
+     */
+    public static PlateMatcher compile(long version, Map<String, String> regexByJurisdiction, float minConfidence) {
+        List<Jurisdiction> compiled = new ArrayList<>();
+        for (Map.Entry<String, String> entry : regexByJurisdiction.entrySet()) {
+            if (entry.getValue() == null) {
+                logger.warn(String.format("No number plate regex is configured for %s", entry.getKey()));
+                continue;
+            }
+            try {
+                compiled.add(new Jurisdiction(entry.getKey(), Pattern.compile(entry.getValue())));
+            } catch (PatternSyntaxException e) {
+                logger.error(String.format("Ignoring invalid number plate regex for %s: %s", entry.getKey(), e.getMessage()));
+            }
+        }
+        logger.info(String.format("Compiled %d number plate pattern(s) for secret version %d", compiled.size(), version));
+        return new PlateMatcher(version, minConfidence, Collections.unmodifiableList(compiled));
+    }
+
+    /**
+     * @return the secret version the patterns were compiled from
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the first plate found in a LINE detection above the minimum confidence, or null if there is none
+     */
+    public Match match(List<TextDetection> textCollection) {
+        if (jurisdictions.isEmpty()) {
+            return null;
+        }
+        Scratch buffers = scratch.get();
+        for (TextDetection textItem : textCollection) {
+            Float confidence = textItem.confidence();
+            if (textItem.type() != TextTypes.LINE || confidence == null || confidence <= minConfidence) {
+                continue;
+            }
+            String text = textItem.detectedText();
+            if (text == null) {
+                continue;
+            }
+            for (int i = 0; i < buffers.matchers.length; i++) {
+                StringBuilder plate = buffers.plate;
+                plate.setLength(0);
+                Matcher m = buffers.matchers[i].reset(text);
+                while (m.find()) {
+                    appendCapturedAlphanumerics(m, text, plate);
+                }
+                if (plate.length() > 0) {
+                    Jurisdiction jurisdiction = jurisdictions.get(i);
+                    return new Match(plate.toString(), confidence, jurisdiction.name, jurisdiction.pattern.pattern());
+                }
+            }
+        }
+        return null;
+    }
+
+    // copy the capturing groups of the current match (or the whole match when there are none),
+    // dropping anything that is not an ascii letter or digit
+    private static void appendCapturedAlphanumerics(Matcher m, String text, StringBuilder plate) {
+        int groups = m.groupCount();
+        if (groups == 0) {
+            appendAlphanumerics(text, m.start(), m.end(), plate);
+            return;
+        }
+        for (int g = 1; g <= groups; g++) {
+            int start = m.start(g);
+            if (start >= 0) {
+                appendAlphanumerics(text, start, m.end(g), plate);
+            }
+        }
+    }
+
+    private static void appendAlphanumerics(String text, int start, int end, StringBuilder plate) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                plate.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.twelvefactor.uploadtrigger;
+
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification;
+
+/**
+ * Outcome of processing a single record of an {@link S3EventNotification}.
+ */
+public class RecordProcessingResult {
+    public static final String SUCCEEDED = "SUCCEEDED";
+    public static final String FAILED = "FAILED";
+
+    public String bucket;
+    public String key;
+    public String status;
+    public String executionName;
+    public String error;
+
+    public static RecordProcessingResult succeeded(String bucket, String key, String executionName) {
+        RecordProcessingResult result = new RecordProcessingResult();
+        result.setBucket(bucket);
+        result.setKey(key);
+        result.setStatus(SUCCEEDED);
+        result.setExecutionName(executionName);
+        return result;
+    }
+
+    public static RecordProcessingResult failed(String bucket, String key, Throwable cause) {
+        RecordProcessingResult result = new RecordProcessingResult();
+        result.setBucket(bucket);
+        result.setKey(key);
+        result.setStatus(FAILED);
+        result.setError(cause == null ? "unknown error" : cause.getClass().getSimpleName() + ": " + cause.getMessage());
+        return result;
+    }
+
+    public static RecordProcessingResult failed(S3EventNotification.S3EventNotificationRecord record, Throwable cause) {
+        String bucket = null;
+        String key = null;
+        if (record != null && record.getS3() != null) {
+            bucket = record.getS3().getBucket() == null ? null : record.getS3().getBucket().getName();
+            key = record.getS3().getObject() == null ? null : record.getS3().getObject().getKey();
+        }
+        return failed(bucket, key, cause);
+    }
+
+    public boolean isSucceeded() {
+        return SUCCEEDED.equals(status);
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public void setBucket(String bucket) {
+        this.bucket = bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getExecutionName() {
+        return executionName;
+    }
+
+    public void setExecutionName(String executionName) {
+        this.executionName = executionName;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,92 @@
+package com.twelvefactor.uploadtrigger;
+
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps detections as small json documents in an s3 bucket, one per object version.
+ */
+public class S3DetectionStore implements DetectionStore {
+    private static final Logger logger = LoggerFactory.getLogger(S3DetectionStore.class);
+
+    // the fields of a TextDetection the plate matcher needs
+    static class StoredTextDetection {
+        String detectedText;
+        String type;
+        Float confidence;
+    }
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String prefix;
+    private final Gson gson = new Gson();
+
+    public S3DetectionStore(S3Client s3Client, String bucket, String prefix) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public List<TextDetection> load(DetectionKey key, Deadline deadline) {
+        try {
+            String json = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(objectKey(key))
+                    .overrideConfiguration(deadline.callTimeout())
+                    .build()).asUtf8String();
+            StoredTextDetection[] stored = gson.fromJson(json, StoredTextDetection[].class);
+            List<TextDetection> textDetections = new ArrayList<>(stored.length);
+            for (StoredTextDetection item : stored) {
+                textDetections.add(TextDetection.builder()
+                        .detectedText(item.detectedText)
+                        .type(item.type)
+                        .confidence(item.confidence)
+                        .build());
+            }
+            return textDetections;
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (SdkException e) {
+            logger.warn(String.format("Unable to read the stored detection for %s: %s", key, e.getMessage()));
+            return null;
+        }
+    }
+
+    @Override
+    public void store(DetectionKey key, List<TextDetection> textDetections, Deadline deadline) {
+        List<StoredTextDetection> stored = new ArrayList<>(textDetections.size());
+        for (TextDetection textItem : textDetections) {
+            StoredTextDetection item = new StoredTextDetection();
+            item.detectedText = textItem.detectedText();
+            item.type = textItem.typeAsString();
+            item.confidence = textItem.confidence();
+            stored.add(item);
+        }
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(objectKey(key))
+                    .contentType("application/json")
+                    .overrideConfiguration(deadline.callTimeout())
+                    .build(), RequestBody.fromString(gson.toJson(stored)));
+        } catch (SdkException e) {
+            logger.warn(String.format("Unable to store the detection for %s: %s", key, e.getMessage()));
+        }
+    }
+
+    private String objectKey(DetectionKey key) {
+        return prefix + key.executionName() + ".json";
+    }
+}
@@ -0,0 +1,135 @@
+package com.twelvefactor.uploadtrigger;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * Lambda function entry point for S3 events delivered through an SQS queue.
+ *
+ * Every message body is an S3 event notification. The records of the whole batch go through the same
+ * detection pipeline as {@link App} in one pass, and only the messages with a failed record are reported
+ * back so the rest of the batch is deleted from the queue. The event source mapping must enable
+ * ReportBatchItemFailures, otherwise Lambda ignores the response and retries the whole batch. The Acquire
+ * templates deploy it as UploadQueueConsumer, with the queue and its dead letter queue, when UploadQueueEnabled
+ * is true.
+ */
+public class SqsApp implements RequestHandler<SQSEvent, SQSBatchResponse> {
+    private static final Logger logger = LoggerFactory.getLogger(SqsApp.class);
+    private static final String testEvent = "s3:TestEvent";
+
+    private final BiFunction<List<S3EventNotification.S3EventNotificationRecord>, Deadline, List<RecordProcessingResult>> pipeline;
+
+    public SqsApp() {
+        // the pipeline and its clients are created once per container, like the s3 triggered handler
+        this(new App()::process);
+    }
+
+    SqsApp(BiFunction<List<S3EventNotification.S3EventNotificationRecord>, Deadline, List<RecordProcessingResult>> pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public SQSBatchResponse handleRequest(SQSEvent event, Context ctx) {
+        List<SQSEvent.SQSMessage> messages = event.getRecords() == null
+                ? Collections.emptyList() : event.getRecords();
+        logger.info(String.format("Received %d message(s) from the queue", messages.size()));
+
+        List<SQSBatchResponse.BatchItemFailure> failures = new ArrayList<>();
+        List<S3EventNotification.S3EventNotificationRecord> records = new ArrayList<>();
+        // the records of messages[i] are records[offsets[i]] up to records[offsets[i + 1]]
+        int[] offsets = new int[messages.size() + 1];
+        boolean[] unreadable = new boolean[messages.size()];
+
+        for (int i = 0; i < messages.size(); i++) {
+            SQSEvent.SQSMessage message = messages.get(i);
+            offsets[i] = records.size();
+            try {
+                records.addAll(parseS3Event(message.getBody()));
+            } catch (RuntimeException e) {
+                logger.error(String.format("Unable to read message %s with error: %s", message.getMessageId(), e.getMessage()));
+                unreadable[i] = true;
+            }
+        }
+        offsets[messages.size()] = records.size();
+
+        List<RecordProcessingResult> results = records.isEmpty()
+                ? Collections.emptyList() : pipeline.apply(records, Deadline.of(ctx, App.deadlineMarginMillis));
+
+        for (int i = 0; i < messages.size(); i++) {
+            boolean failed = unreadable[i];
+            for (int r = offsets[i]; r < offsets[i + 1] && !failed; r++) {
+                failed = !results.get(r).isSucceeded();
+            }
+            if (failed) {
+                failures.add(new SQSBatchResponse.BatchItemFailure(messages.get(i).getMessageId()));
+            }
+        }
+
+        if (failures.isEmpty()) {
+            logger.info(String.format("Successfully processed %d message(s) with %d record(s)", messages.size(), records.size()));
+        } else {
+            logger.error(String.format("Failed to process %d of %d message(s), they will be redelivered", failures.size(), messages.size()));
+        }
+        return new SQSBatchResponse(failures);
+    }
+
+    /**
+     * Reads the records of an S3 event notification. The test event S3 sends when the notification is
+     * configured has no records.
+     */
+    static List<S3EventNotification.S3EventNotificationRecord> parseS3Event(String body) {
+        JsonObject notification = JsonParser.parseString(body).getAsJsonObject();
+        if (testEvent.equals(string(notification, "Event"))) {
+            return Collections.emptyList();
+        }
+        JsonArray jsonRecords = notification.getAsJsonArray("Records");
+        if (jsonRecords == null) {
+            throw new IllegalArgumentException("message is not an s3 event notification");
+        }
+
+        List<S3EventNotification.S3EventNotificationRecord> records = new ArrayList<>();
+        for (JsonElement element : jsonRecords) {
+            JsonObject record = element.getAsJsonObject();
+            JsonObject s3 = record.getAsJsonObject("s3");
+            JsonObject bucket = s3.getAsJsonObject("bucket");
+            JsonObject object = s3.getAsJsonObject("object");
+            Long size = object.has("size") && !object.get("size").isJsonNull() ? object.get("size").getAsLong() : null;
+
+            records.add(new S3EventNotification.S3EventNotificationRecord(
+                    string(record, "awsRegion"),
+                    string(record, "eventName"),
+                    string(record, "eventSource"),
+                    string(record, "eventTime"),
+                    string(record, "eventVersion"),
+                    null,
+                    null,
+                    new S3EventNotification.S3Entity(
+                            string(s3, "configurationId"),
+                            new S3EventNotification.S3BucketEntity(string(bucket, "name"), null, string(bucket, "arn")),
+                            new S3EventNotification.S3ObjectEntity(string(object, "key"), size,
+                                    string(object, "eTag"), string(object, "versionId"), string(object, "sequencer")),
+                            string(s3, "s3SchemaVersion")),
+                    null));
+        }
+        return records;
+    }
+
+    private static String string(JsonObject json, String member) {
+        JsonElement value = json.get(member);
+        return value == null || value.isJsonNull() ? null : value.getAsString();
+    }
+}
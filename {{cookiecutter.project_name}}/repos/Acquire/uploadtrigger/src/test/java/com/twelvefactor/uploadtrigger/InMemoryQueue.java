@@ -0,0 +1,97 @@
+package com.twelvefactor.uploadtrigger;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A local stand-in for an SQS queue with a redrive policy, driven the way the Lambda event source mapping
+ * drives {@link SqsApp}: receive a batch, invoke the handler, delete everything it did not report as failed.
+ */
+class InMemoryQueue {
+    private final int maxReceiveCount;
+    private final Deque<SQSEvent.SQSMessage> visible = new ArrayDeque<>();
+    private final Map<String, Integer> receiveCounts = new HashMap<>();
+    private final List<SQSEvent.SQSMessage> deadLetters = new ArrayList<>();
+    private int nextMessageId = 1;
+
+    InMemoryQueue(int maxReceiveCount) {
+        this.maxReceiveCount = maxReceiveCount;
+    }
+
+    String send(String body) {
+        SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+        message.setMessageId("message-" + nextMessageId++);
+        message.setBody(body);
+        visible.add(message);
+        return message.getMessageId();
+    }
+
+    /**
+     * Receives up to batchSize messages and hands them to the handler. Reported failures become visible
+     * again, or move to the dead letter list once they were received maxReceiveCount times.
+     *
+     * @return the number of messages that were in the batch
+     */
+    int poll(SqsApp handler, int batchSize) {
+        List<SQSEvent.SQSMessage> batch = new ArrayList<>();
+        while (batch.size() < batchSize && !visible.isEmpty()) {
+            SQSEvent.SQSMessage message = visible.poll();
+            receiveCounts.merge(message.getMessageId(), 1, Integer::sum);
+            batch.add(message);
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        SQSEvent event = new SQSEvent();
+        event.setRecords(batch);
+        SQSBatchResponse response = handler.handleRequest(event, null);
+
+        Set<String> failed = new HashSet<>();
+        for (SQSBatchResponse.BatchItemFailure failure : response.getBatchItemFailures()) {
+            failed.add(failure.getItemIdentifier());
+        }
+        for (SQSEvent.SQSMessage message : batch) {
+            if (!failed.contains(message.getMessageId())) {
+                continue;
+            }
+            if (receiveCounts.get(message.getMessageId()) >= maxReceiveCount) {
+                deadLetters.add(message);
+            } else {
+                visible.add(message);
+            }
+        }
+        return batch.size();
+    }
+
+    /**
+     * Polls until the queue is empty.
+     */
+    void drain(SqsApp handler, int batchSize) {
+        while (poll(handler, batchSize) > 0) {
+            // keep receiving
+        }
+    }
+
+    int size() {
+        return visible.size();
+    }
+
+    int receiveCount(String messageId) {
+        return receiveCounts.getOrDefault(messageId, 0);
+    }
+
+    List<SQSEvent.SQSMessage> getDeadLetters() {
+        return Collections.unmodifiableList(deadLetters);
+    }
+}
@@ -0,0 +1,118 @@
+package com.twelvefactor.uploadtrigger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+import software.amazon.awssdk.services.rekognition.model.TextTypes;
+import software.amazon.awssdk.utils.StringUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares {@link PlateMatcher} with the detection loop App used to run for every TextDetection.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.twelvefactor.uploadtrigger.PlateMatcherBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlateMatcherBenchmark {
+    private static final String regExNumberPlate = "^([A-Z0-9]{3})[^A-Z0-9a-z]*([A-Z0-9]{3})$";
+    private static final String minConfidence = "90";
+
+    private List<TextDetection> textCollection;
+    private PlateMatcher plateMatcher;
+    private PlateMatcher multiJurisdictionMatcher;
+
+    @Setup
+    public void setUp() {
+        // a typical rekognition result: state name and slogan lines, the plate, and the words of each line
+        textCollection = new ArrayList<>();
+        textCollection.add(detection("NEW SOUTH WALES", TextTypes.LINE, 97.1f));
+        textCollection.add(detection("PCF 606", TextTypes.LINE, 98.7f));
+        textCollection.add(detection("NSW - THE FIRST STATE", TextTypes.LINE, 85.2f));
+        textCollection.add(detection("NEW", TextTypes.WORD, 97.4f));
+        textCollection.add(detection("SOUTH", TextTypes.WORD, 96.9f));
+        textCollection.add(detection("WALES", TextTypes.WORD, 97.0f));
+        textCollection.add(detection("PCF", TextTypes.WORD, 98.9f));
+        textCollection.add(detection("606", TextTypes.WORD, 98.5f));
+
+        Map<String, String> patterns = new LinkedHashMap<>();
+        patterns.put("default", regExNumberPlate);
+        plateMatcher = PlateMatcher.compile(1, patterns, Float.parseFloat(minConfidence));
+
+        Map<String, String> jurisdictions = new LinkedHashMap<>();
+        jurisdictions.put("VIC", "^([0-9][A-Z]{2})[^A-Z0-9a-z]*([0-9][A-Z]{2})$");
+        jurisdictions.put("QLD", "^([0-9]{3})[^A-Z0-9a-z]*([A-Z]{3})$");
+        jurisdictions.put("default", regExNumberPlate);
+        multiJurisdictionMatcher = PlateMatcher.compile(1, jurisdictions, Float.parseFloat(minConfidence));
+    }
+
+    @Benchmark
+    public String legacyLoop() {
+        NumberPlate numberPlate = new NumberPlate();
+        for (TextDetection textItem : textCollection) {
+            if (!numberPlate.detected
+                    && textItem.confidence() > Float.parseFloat(minConfidence)
+                    && textItem.type().name().equals("LINE")) {
+                StringBuilder plateNumber = new StringBuilder();
+                Matcher m = Pattern.compile(regExNumberPlate).matcher(textItem.detectedText());
+                while (m.find()) {
+                    plateNumber.append(m.group(1) + m.group(2));
+                }
+                if (!StringUtils.isEmpty(plateNumber.toString())) {
+                    numberPlate.detected = true;
+                    numberPlate.confidence = textItem.confidence();
+                    numberPlate.numberPlateString = plateNumber.toString().replaceAll("[^A-Za-z0-9]","");
+                }
+            }
+        }
+        return numberPlate.numberPlateString;
+    }
+
+    @Benchmark
+    public String plateMatcher() {
+        PlateMatcher.Match match = plateMatcher.match(textCollection);
+        return match == null ? null : match.getNumberPlate();
+    }
+
+    @Benchmark
+    public String plateMatcherThreeJurisdictions() {
+        PlateMatcher.Match match = multiJurisdictionMatcher.match(textCollection);
+        return match == null ? null : match.getNumberPlate();
+    }
+
+    private static TextDetection detection(String text, TextTypes type, float confidence) {
+        return TextDetection.builder()
+                .detectedText(text)
+                .type(type)
+                .confidence(confidence)
+                .build();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PlateMatcherBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
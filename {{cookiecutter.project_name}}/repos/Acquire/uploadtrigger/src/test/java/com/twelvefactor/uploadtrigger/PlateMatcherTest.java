@@ -0,0 +1,75 @@
+package com.twelvefactor.uploadtrigger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+import software.amazon.awssdk.services.rekognition.model.TextTypes;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PlateMatcherTest {
+    private static final String regExNumberPlate = "^([A-Z0-9]{3})[^A-Z0-9a-z]*([A-Z0-9]{3})$";
+
+    @Test
+    public void match_shouldJoinCapturedGroupsWithoutSeparators() {
+        PlateMatcher matcher = PlateMatcher.compile(1, Collections.singletonMap("default", regExNumberPlate), 90f);
+
+        PlateMatcher.Match match = matcher.match(Arrays.asList(
+                detection("NEW SOUTH WALES", TextTypes.LINE, 97f),
+                detection("PCF - 606", TextTypes.LINE, 98f)));
+
+        assertEquals("PCF606", match.getNumberPlate());
+        assertEquals(98f, match.getConfidence(), 0.001f);
+        assertEquals("default", match.getJurisdiction());
+    }
+
+    @Test
+    public void match_shouldSkipWordsAndLowConfidenceLines() {
+        PlateMatcher matcher = PlateMatcher.compile(1, Collections.singletonMap("default", regExNumberPlate), 90f);
+
+        assertNull(matcher.match(Arrays.asList(
+                detection("PCF 606", TextTypes.WORD, 99f),
+                detection("PCF 606", TextTypes.LINE, 90f))));
+    }
+
+    @Test
+    public void match_shouldTryJurisdictionsInOrder() {
+        Map<String, String> patterns = new LinkedHashMap<>();
+        patterns.put("VIC", "^([0-9][A-Z]{2})[^A-Z0-9a-z]*([0-9][A-Z]{2})$");
+        patterns.put("default", regExNumberPlate);
+        PlateMatcher matcher = PlateMatcher.compile(1, patterns, 90f);
+
+        assertEquals("VIC", matcher.match(Collections.singletonList(detection("1AF 7IN", TextTypes.LINE, 95f))).getJurisdiction());
+        assertEquals("default", matcher.match(Collections.singletonList(detection("ZNU 779", TextTypes.LINE, 95f))).getJurisdiction());
+    }
+
+    @Test
+    public void match_shouldUseWholeMatchWhenPatternHasNoGroups() {
+        PlateMatcher matcher = PlateMatcher.compile(1, Collections.singletonMap("default", ".*"), 90f);
+
+        assertEquals("KZ66ZYT", matcher.match(Collections.singletonList(detection("KZ66 ZYT", TextTypes.LINE, 95f))).getNumberPlate());
+    }
+
+    @Test
+    public void match_shouldIgnoreMissingAndInvalidPatterns() {
+        Map<String, String> patterns = new LinkedHashMap<>();
+        patterns.put("default", null);
+        patterns.put("broken", "([A-Z");
+        PlateMatcher matcher = PlateMatcher.compile(1, patterns, 90f);
+
+        assertNull(matcher.match(Collections.singletonList(detection("PCF 606", TextTypes.LINE, 95f))));
+    }
+
+    private static TextDetection detection(String text, TextTypes type, float confidence) {
+        return TextDetection.builder()
+                .detectedText(text)
+                .type(type)
+                .confidence(confidence)
+                .build();
+    }
+}
@@ -0,0 +1,136 @@
+package com.twelvefactor.uploadtrigger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SecretCacheTest {
+
+    @Test
+    public void get_shouldServeCachedValueWithinTtl() {
+        MutableClock clock = new MutableClock();
+        AtomicInteger loads = new AtomicInteger();
+        QueuedExecutor executor = new QueuedExecutor();
+        SecretCache cache = new SecretCache("test", () -> "regex-" + loads.incrementAndGet(),
+                Duration.ofSeconds(60), executor, clock);
+
+        assertEquals("regex-1", cache.get());
+        clock.advance(Duration.ofSeconds(59));
+        assertEquals("regex-1", cache.get());
+        assertEquals(1, loads.get());
+        assertEquals(0, executor.tasks.size());
+    }
+
+    @Test
+    public void get_shouldServeStaleValueWhileRefreshingInBackground() {
+        MutableClock clock = new MutableClock();
+        AtomicInteger loads = new AtomicInteger();
+        QueuedExecutor executor = new QueuedExecutor();
+        SecretCache cache = new SecretCache("test", () -> "regex-" + loads.incrementAndGet(),
+                Duration.ofSeconds(60), executor, clock);
+
+        assertEquals(1, cache.getVersion().getVersion());
+        clock.advance(Duration.ofSeconds(61));
+        assertEquals("regex-1", cache.get());
+        assertEquals("regex-1", cache.get());
+        // only one refresh is scheduled however many callers see the stale value
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+        assertEquals("regex-2", cache.get());
+        assertEquals(2, cache.getVersion().getVersion());
+    }
+
+    @Test
+    public void get_shouldKeepLastKnownValueWhenRefreshFails() {
+        MutableClock clock = new MutableClock();
+        Queue<String> values = new ArrayDeque<>();
+        values.add("regex-1");
+        QueuedExecutor executor = new QueuedExecutor();
+        SecretCache cache = new SecretCache("test", () -> {
+            String value = values.poll();
+            if (value == null) {
+                throw new IllegalStateException("secrets manager is unavailable");
+            }
+            return value;
+        }, Duration.ofSeconds(60), executor, clock);
+
+        assertEquals("regex-1", cache.get());
+        clock.advance(Duration.ofSeconds(61));
+        cache.get();
+        executor.runAll();
+        assertEquals("regex-1", cache.get());
+        assertEquals(1, cache.getVersion().getVersion());
+    }
+
+    @Test
+    public void get_shouldNotBumpVersionWhenValueIsUnchanged() {
+        MutableClock clock = new MutableClock();
+        QueuedExecutor executor = new QueuedExecutor();
+        SecretCache cache = new SecretCache("test", () -> "same", Duration.ofSeconds(60), executor, clock);
+
+        cache.get();
+        clock.advance(Duration.ofSeconds(61));
+        cache.get();
+        executor.runAll();
+        assertEquals(1, cache.getVersion().getVersion());
+    }
+
+    @Test
+    public void get_shouldReturnNullWhenSecretWasNeverRead() {
+        SecretCache cache = new SecretCache("test", () -> null, Duration.ofSeconds(60), new QueuedExecutor());
+
+        assertNull(cache.get());
+        assertFalse(cache.isLoaded());
+    }
+
+    private static class QueuedExecutor implements java.util.concurrent.Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static class MutableClock extends Clock {
+        private Instant now = Instant.parse("2021-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.twelvefactor.uploadtrigger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SqsAppTest {
+
+    @Test
+    public void handleRequest_shouldProcessTheQueueInBatchesOfUpToN() {
+        RecordingPipeline pipeline = new RecordingPipeline();
+        InMemoryQueue queue = new InMemoryQueue(3);
+        for (int i = 0; i < 25; i++) {
+            queue.send(s3Event("plate-" + i + ".jpg"));
+        }
+
+        queue.drain(new SqsApp(pipeline::process), 10);
+
+        assertEquals(Arrays.asList(10, 10, 5), pipeline.batchSizes);
+        assertEquals(25, pipeline.keys.size());
+        assertEquals(0, queue.size());
+        assertTrue(queue.getDeadLetters().isEmpty());
+    }
+
+    @Test
+    public void handleRequest_shouldOnlyRedeliverMessagesWithFailedRecords() {
+        RecordingPipeline pipeline = new RecordingPipeline();
+        InMemoryQueue queue = new InMemoryQueue(3);
+        queue.send(s3Event("plate-1.jpg"));
+        String failing = queue.send(s3Event("bad.jpg"));
+        queue.send(s3Event("plate-2.jpg"));
+
+        queue.drain(new SqsApp(pipeline::process), 10);
+
+        // the good images were processed once, the failing one until it was dead-lettered
+        assertEquals(2, pipeline.keys.stream().filter(k -> k.startsWith("plate-")).count());
+        assertEquals(3, queue.receiveCount(failing));
+        assertEquals(1, queue.getDeadLetters().size());
+        assertEquals(failing, queue.getDeadLetters().get(0).getMessageId());
+    }
+
+    @Test
+    public void handleRequest_shouldFailAMessageWhenAnyOfItsRecordsFails() {
+        RecordingPipeline pipeline = new RecordingPipeline();
+        SQSEvent event = new SQSEvent();
+        event.setRecords(Arrays.asList(
+                message("m1", s3Event("plate-1.jpg", "bad.jpg")),
+                message("m2", s3Event("plate-2.jpg"))));
+
+        SQSBatchResponse response = new SqsApp(pipeline::process).handleRequest(event, null);
+
+        assertEquals(1, response.getBatchItemFailures().size());
+        assertEquals("m1", response.getBatchItemFailures().get(0).getItemIdentifier());
+        assertEquals(1, pipeline.batchSizes.size());
+    }
+
+    @Test
+    public void handleRequest_shouldFailUnreadableMessagesAndSkipTestEvents() {
+        RecordingPipeline pipeline = new RecordingPipeline();
+        SQSEvent event = new SQSEvent();
+        event.setRecords(Arrays.asList(
+                message("m1", "not json"),
+                message("m2", "{\"Service\":\"Amazon S3\",\"Event\":\"s3:TestEvent\",\"Bucket\":\"images\"}"),
+                message("m3", s3Event("plate-1.jpg"))));
+
+        SQSBatchResponse response = new SqsApp(pipeline::process).handleRequest(event, null);
+
+        assertEquals(1, response.getBatchItemFailures().size());
+        assertEquals("m1", response.getBatchItemFailures().get(0).getItemIdentifier());
+        assertEquals(Arrays.asList("plate-1.jpg"), pipeline.keys);
+    }
+
+    @Test
+    public void parseS3Event_shouldReadTheObjectVersion() {
+        List<S3EventNotification.S3EventNotificationRecord> records = SqsApp.parseS3Event(s3Event("plate-1.jpg"));
+
+        assertEquals(1, records.size());
+        assertEquals("images", records.get(0).getS3().getBucket().getName());
+        assertEquals("plate-1.jpg", records.get(0).getS3().getObject().getKey());
+        assertEquals("etag-plate-1.jpg", records.get(0).getS3().getObject().geteTag());
+        assertEquals(Long.valueOf(1024), records.get(0).getS3().getObject().getSizeAsLong());
+    }
+
+    // fails every image whose key starts with "bad"
+    private static class RecordingPipeline {
+        private final List<Integer> batchSizes = new ArrayList<>();
+        private final List<String> keys = new ArrayList<>();
+
+        List<RecordProcessingResult> process(List<S3EventNotification.S3EventNotificationRecord> records, Deadline deadline) {
+            batchSizes.add(records.size());
+            List<RecordProcessingResult> results = new ArrayList<>();
+            for (S3EventNotification.S3EventNotificationRecord record : records) {
+                String bucket = record.getS3().getBucket().getName();
+                String key = record.getS3().getObject().getKey();
+                keys.add(key);
+                if (key.startsWith("bad")) {
+                    results.add(RecordProcessingResult.failed(bucket, key, new IllegalStateException("detection failed")));
+                } else {
+                    results.add(RecordProcessingResult.succeeded(bucket, key, key));
+                }
+            }
+            return results;
+        }
+    }
+
+    private static SQSEvent.SQSMessage message(String messageId, String body) {
+        SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+        message.setMessageId(messageId);
+        message.setBody(body);
+        return message;
+    }
+
+    private static String s3Event(String... keys) {
+        StringBuilder json = new StringBuilder("{\"Records\":[");
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"eventVersion\":\"2.1\",\"eventSource\":\"aws:s3\",\"awsRegion\":\"ap-southeast-2\",")
+                    .append("\"eventTime\":\"2021-01-01T00:00:00.000Z\",\"eventName\":\"ObjectCreated:Put\",")
+                    .append("\"s3\":{\"s3SchemaVersion\":\"1.0\",\"configurationId\":\"ImageUpload\",")
+                    .append("\"bucket\":{\"name\":\"images\",\"arn\":\"arn:aws:s3:::images\"},")
+                    .append("\"object\":{\"key\":\"").append(keys[i]).append("\",\"size\":1024,")
+                    .append("\"eTag\":\"etag-").append(keys[i]).append("\",\"sequencer\":\"0055AED6DCD90281E5\"}}}");
+        }
+        return json.append("]}").toString();
+    }
+}
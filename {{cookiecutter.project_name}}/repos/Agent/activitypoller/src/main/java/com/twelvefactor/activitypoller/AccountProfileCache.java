@@ -0,0 +1,194 @@
+package com.twelvefactor.activitypoller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnConsumedCapacity;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The owner details of the accounts by number plate, so that the repeated tasks of a vehicle share one read
+ * instead of getting the account item each time.
+ *
+ * Only the attributes the emails use are read. A profile is read again once it is older than maxAge, or after it
+ * was invalidated because it may have changed. A number plate without an account is not cached, the account may
+ * be registered in the meantime. The cache is a bounded LRU that lives as long as the container.
+ *
+ * The projection makes the responses smaller, but DynamoDB charges a read for the whole item either way: the
+ * read capacity saved is the capacity the hits would have consumed, as reported for the read that loaded them.
+ */
+public class AccountProfileCache {
+    private static final Logger logger = LoggerFactory.getLogger(AccountProfileCache.class);
+    private static final Map<String, String> projectedNames = new HashMap<>();
+    static {
+        projectedNames.put("#email", "ownerEmail");
+        projectedNames.put("#firstName", "ownerFirstName");
+        projectedNames.put("#lastName", "ownerLastName");
+    }
+
+    /**
+     * The owner of an account.
+     */
+    public static class Profile {
+        private final String email;
+        private final String firstName;
+        private final String lastName;
+
+        public Profile(String email, String firstName, String lastName) {
+            this.email = email;
+            this.firstName = firstName;
+            this.lastName = lastName;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public String getFirstName() {
+            return firstName;
+        }
+
+        public String getLastName() {
+            return lastName;
+        }
+    }
+
+    private static class Cached {
+        final Profile profile;
+        final long loadedAtMillis;
+        final double readCapacityUnits;
+
+        Cached(Profile profile, long loadedAtMillis, double readCapacityUnits) {
+            this.profile = profile;
+            this.loadedAtMillis = loadedAtMillis;
+            this.readCapacityUnits = readCapacityUnits;
+        }
+    }
+
+    private final DynamoDbClient dynamoDbClient;
+    private final CircuitBreaker circuitBreaker;
+    private final String tableName;
+    private final long maxAgeMillis;
+    private final Clock clock;
+    private final Map<String, Cached> profiles;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // in millionths of a unit, to add them up atomically
+    private final AtomicLong savedReadCapacityMicros = new AtomicLong();
+
+    public AccountProfileCache(DynamoDbClient dynamoDbClient, CircuitBreaker circuitBreaker, String tableName,
+                               int capacity, Duration maxAge) {
+        this(dynamoDbClient, circuitBreaker, tableName, capacity, maxAge, Clock.systemUTC());
+    }
+
+    public AccountProfileCache(DynamoDbClient dynamoDbClient, CircuitBreaker circuitBreaker, String tableName,
+                               int capacity, Duration maxAge, Clock clock) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.circuitBreaker = circuitBreaker;
+        this.tableName = tableName;
+        this.maxAgeMillis = maxAge.toMillis();
+        this.clock = clock;
+        this.profiles = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the owner of the account of the number plate, or null when there is no account for it
+     */
+    public Profile profile(String numberPlate) {
+        synchronized (profiles) {
+            Cached entry = profiles.get(numberPlate);
+            if (entry != null && clock.millis() - entry.loadedAtMillis < maxAgeMillis) {
+                hits.incrementAndGet();
+                savedReadCapacityMicros.addAndGet(Math.round(entry.readCapacityUnits * 1e6));
+                return entry.profile;
+            }
+        }
+        misses.incrementAndGet();
+        // read outside the lock, two tasks of the same vehicle may both read, the later profile wins
+        GetItemRequest request = GetItemRequest.builder()
+                .tableName(tableName)
+                .key(Collections.singletonMap("numberPlate", AttributeValue.builder().s(numberPlate).build()))
+                .projectionExpression("#email, #firstName, #lastName")
+                .expressionAttributeNames(projectedNames)
+                .returnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+                .build();
+        GetItemResponse response = circuitBreaker.call(() -> dynamoDbClient.getItem(request));
+        Map<String, AttributeValue> item = response.item();
+        if (item == null || item.isEmpty()) {
+            return null;
+        }
+        Profile profile = new Profile(string(item, "ownerEmail"), string(item, "ownerFirstName"), string(item, "ownerLastName"));
+        double readCapacityUnits = response.consumedCapacity() == null || response.consumedCapacity().capacityUnits() == null
+                ? 0 : response.consumedCapacity().capacityUnits();
+        synchronized (profiles) {
+            profiles.put(numberPlate, new Cached(profile, clock.millis(), readCapacityUnits));
+        }
+        logger.info(String.format("Read the profile of %s (%s)", numberPlate, this));
+        return profile;
+    }
+
+    private static String string(Map<String, AttributeValue> item, String name) {
+        AttributeValue value = item.get(name);
+        return value == null ? null : value.s();
+    }
+
+    /**
+     * Forgets the profile of the number plate, the next task reads it again.
+     */
+    public void invalidate(String numberPlate) {
+        synchronized (profiles) {
+            profiles.remove(numberPlate);
+        }
+    }
+
+    public int size() {
+        synchronized (profiles) {
+            return profiles.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the share of the lookups served from the cache, 0 before the first one
+     */
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long lookups = hits + misses.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return the read capacity units the hits did not consume
+     */
+    public double getSavedReadCapacityUnits() {
+        return savedReadCapacityMicros.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, hitRatio=%.2f, savedReadCapacityUnits=%.1f",
+                getHits(), getMisses(), getHitRatio(), getSavedReadCapacityUnits());
+    }
+}
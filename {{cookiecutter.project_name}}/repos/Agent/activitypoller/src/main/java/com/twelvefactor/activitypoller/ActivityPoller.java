@@ -0,0 +1,264 @@
+package com.twelvefactor.activitypoller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.sfn.SfnClient;
+import software.amazon.awssdk.services.sfn.model.GetActivityTaskRequest;
+import software.amazon.awssdk.services.sfn.model.GetActivityTaskResponse;
+import software.amazon.awssdk.services.sfn.model.SendTaskFailureRequest;
+import software.amazon.awssdk.utils.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps a number of long polls open per activity and processes every task they hand out.
+ *
+ * Each poller loops: it long-polls for a task, for up to a minute, and processes what it gets. A poller only
+ * starts a poll while more than minRemainingMillis are left, enough for the longest poll plus the processing of
+ * the task it may return, so a task handed out is never abandoned by a Lambda that times out. Stopping works the
+ * same way: no new polls start, polls in flight are waited for and their tasks processed.
+ *
+ * The pollers run on an executor that lives as long as the container or worker process, one thread per poller,
+ * which may be a virtual thread. A poller whose task is still running cancelMarginMillis before the deadline is
+ * cancelled by interrupting it, so a stuck pipeline cannot hold the invocation past its timeout. Its task is
+ * failed with a DeadlineExceededError first, for the state machine to retry rather than wait for it to time out.
+ */
+public class ActivityPoller {
+    private static final Logger logger = LoggerFactory.getLogger(ActivityPoller.class);
+    // pause before polling again after a failed poll
+    private static final long failedPollPauseMillis = 1000;
+
+    /**
+     * Processes one task, reporting its outcome to the state machine.
+     */
+    public interface TaskProcessor {
+        String process(GetActivityTaskResponse task);
+    }
+
+    /**
+     * An activity to poll, with the number of polls to keep open for it.
+     */
+    public static class Activity {
+        private final String activityArn;
+        private final String workerName;
+        private final int pollers;
+        private final TaskProcessor processor;
+
+        public Activity(String activityArn, String workerName, int pollers, TaskProcessor processor) {
+            this.activityArn = activityArn;
+            this.workerName = workerName;
+            this.pollers = Math.max(1, pollers);
+            this.processor = processor;
+        }
+    }
+
+    /**
+     * What a run of the pollers did.
+     */
+    public static class Stats {
+        private final long polls;
+        private final long tasks;
+        private final long failedPolls;
+        private final long cancelled;
+
+        Stats(long polls, long tasks, long failedPolls, long cancelled) {
+            this.polls = polls;
+            this.tasks = tasks;
+            this.failedPolls = failedPolls;
+            this.cancelled = cancelled;
+        }
+
+        public long getPolls() {
+            return polls;
+        }
+
+        public long getTasks() {
+            return tasks;
+        }
+
+        public long getFailedPolls() {
+            return failedPolls;
+        }
+
+        public long getCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d poll(s), %d task(s), %d failed poll(s), %d poller(s) cancelled",
+                    polls, tasks, failedPolls, cancelled);
+        }
+    }
+
+    private final SfnClient sfnClient;
+    private final CircuitBreaker sfnCircuitBreaker;
+    private final ExecutorService executor;
+    private final long minRemainingMillis;
+    private final long cancelMarginMillis;
+    private volatile boolean stopping;
+    private volatile CountDownLatch running = new CountDownLatch(0);
+    // the token of the task each poller is processing, by worker name
+    private final Map<String, String> tasksInFlight = new ConcurrentHashMap<>();
+
+    public ActivityPoller(SfnClient sfnClient, CircuitBreaker sfnCircuitBreaker, ExecutorService executor,
+                          long minRemainingMillis, long cancelMarginMillis) {
+        this.sfnClient = sfnClient;
+        this.sfnCircuitBreaker = sfnCircuitBreaker;
+        this.executor = executor;
+        this.minRemainingMillis = minRemainingMillis;
+        this.cancelMarginMillis = cancelMarginMillis;
+    }
+
+    /**
+     * Polls the activities until the remaining time drops to minRemainingMillis, every poller has polled maxPolls
+     * times, or {@link #stop()} is called, and returns once every poller is done or has been cancelled at the
+     * deadline.
+     */
+    public Stats run(List<Activity> activities, LongSupplier remainingMillis, long maxPolls) {
+        AtomicLong polls = new AtomicLong();
+        AtomicLong tasks = new AtomicLong();
+        AtomicLong failedPolls = new AtomicLong();
+        long cancelled = 0;
+        List<Future<?>> pollers = new ArrayList<>();
+        List<String> workerNames = new ArrayList<>();
+        stopping = false;
+        running = new CountDownLatch(1);
+        long remaining = remainingMillis.getAsLong();
+        long cancelAtMillis = remaining >= Long.MAX_VALUE / 2
+                ? Long.MAX_VALUE : System.currentTimeMillis() + remaining - cancelMarginMillis;
+        try {
+            for (Activity activity : activities) {
+                for (int i = 0; i < activity.pollers; i++) {
+                    String workerName = activity.pollers == 1 ? activity.workerName : activity.workerName + "-" + (i + 1);
+                    pollers.add(executor.submit(() ->
+                            poll(activity, workerName, remainingMillis, maxPolls, polls, tasks, failedPolls)));
+                    workerNames.add(workerName);
+                }
+            }
+            for (int i = 0; i < pollers.size(); i++) {
+                Future<?> poller = pollers.get(i);
+                try {
+                    if (cancelAtMillis == Long.MAX_VALUE) {
+                        poller.get();
+                    } else {
+                        poller.get(Math.max(0, cancelAtMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    }
+                } catch (TimeoutException e) {
+                    // the deadline has come, every poller still running is cancelled, not just this one
+                    stopping = true;
+                    cancel(poller, workerNames.get(i));
+                    cancelled++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stopping = true;
+                    cancel(poller, workerNames.get(i));
+                    cancelled++;
+                } catch (CancellationException e) {
+                    cancelled++;
+                } catch (Exception e) {
+                    logger.error(String.format("A poller stopped with error: %s", e.getMessage()));
+                }
+            }
+        } finally {
+            running.countDown();
+        }
+        if (cancelled > 0) {
+            logger.warn(String.format("Cancelled %d poller(s) still running at the deadline", cancelled));
+        }
+        Stats stats = new Stats(polls.get(), tasks.get(), failedPolls.get(), cancelled);
+        logger.info(String.format("Pollers are done: %s", stats));
+        return stats;
+    }
+
+    private void poll(Activity activity, String workerName, LongSupplier remainingMillis, long maxPolls,
+                      AtomicLong polls, AtomicLong tasks, AtomicLong failedPolls) {
+        for (long poll = 0; poll < maxPolls && !stopping && !Thread.currentThread().isInterrupted()
+                && remainingMillis.getAsLong() > minRemainingMillis; poll++) {
+            GetActivityTaskResponse task;
+            try {
+                polls.incrementAndGet();
+                // a poll starts with more than the longest poll left, the cut only bounds a poll that hangs
+                Deadline deadline = Deadline.after(remainingMillis.getAsLong() - cancelMarginMillis);
+                task = sfnCircuitBreaker.call(() -> sfnClient.getActivityTask(GetActivityTaskRequest.builder()
+                        .activityArn(activity.activityArn)
+                        .workerName(workerName)
+                        .overrideConfiguration(deadline.callTimeout())
+                        .build()));
+            } catch (RuntimeException e) {
+                failedPolls.incrementAndGet();
+                logger.error(String.format("%s failed to poll %s with error: %s", workerName, activity.activityArn, e.getMessage()));
+                pause(Math.min(failedPollPauseMillis, Math.max(0, remainingMillis.getAsLong() - minRemainingMillis)));
+                continue;
+            }
+            if (StringUtils.isEmpty(task.taskToken())) {
+                // the long poll ended without a task
+                continue;
+            }
+            tasks.incrementAndGet();
+            tasksInFlight.put(workerName, task.taskToken());
+            try {
+                activity.processor.process(task);
+            } catch (RuntimeException e) {
+                logger.error(String.format("%s failed to process a task with error: %s", workerName, e.getMessage()));
+            } finally {
+                tasksInFlight.remove(workerName);
+            }
+        }
+    }
+
+    // hands the task of the poller back to the state machine, then interrupts the poller
+    private void cancel(Future<?> poller, String workerName) {
+        String taskToken = tasksInFlight.remove(workerName);
+        if (taskToken != null) {
+            try {
+                // the call shares the margin with the other cancelled pollers and the end of the invocation
+                Deadline deadline = Deadline.after(cancelMarginMillis / 2);
+                sfnCircuitBreaker.call(() -> sfnClient.sendTaskFailure(SendTaskFailureRequest.builder()
+                        .taskToken(taskToken)
+                        .error(App.DeadlineExceededError.class.getName())
+                        .cause(String.format("%s was still processing the task at the deadline of the invocation", workerName))
+                        .overrideConfiguration(deadline.callTimeout())
+                        .build()));
+            } catch (RuntimeException e) {
+                logger.error(String.format("Failed to report the task of %s, it will time out: %s", workerName, e.getMessage()));
+            }
+        }
+        poller.cancel(true);
+    }
+
+    /**
+     * Stops starting new polls. Polls in flight still complete and their tasks are processed.
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    /**
+     * Waits for the current run to finish after {@link #stop()}.
+     *
+     * @return true when it finished in time
+     */
+    public boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return running.await(timeout, unit);
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.twelvefactor.activitypoller;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The dynamodb client with every call going through the {@link AdaptiveLimiter} of its table. The limiters own
+ * the retries, the client underneath is expected not to retry on its own. Every attempt is also cut at the
+ * deadline, so that a call started late does not run past it.
+ */
+public class AdaptiveDynamoDbClient implements DynamoDbClient {
+    private final DynamoDbClient delegate;
+    private final Function<String, AdaptiveLimiter> limiterFactory;
+    private final Map<String, AdaptiveLimiter> limiters = new ConcurrentHashMap<>();
+    private volatile long deadlineMillis = Long.MAX_VALUE;
+
+    public AdaptiveDynamoDbClient(DynamoDbClient delegate, Function<String, AdaptiveLimiter> limiterFactory) {
+        this.delegate = delegate;
+        this.limiterFactory = limiterFactory;
+    }
+
+    /**
+     * @return the limiter of a table, created on its first call
+     */
+    public AdaptiveLimiter limiter(String tableName) {
+        return limiters.computeIfAbsent(String.valueOf(tableName), limiterFactory);
+    }
+
+    /**
+     * Bounds the retries and waits of every table by the deadline, usually the end of the current invocation.
+     */
+    public void setDeadline(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    // the time left is read when the attempt starts
+    @SuppressWarnings("unchecked")
+    private <R extends DynamoDbRequest> R bounded(R request) {
+        Deadline deadline = Deadline.at(deadlineMillis);
+        if (!deadline.isSet()) {
+            return request;
+        }
+        return (R) request.toBuilder().overrideConfiguration(deadline.callTimeout()).build();
+    }
+
+    private AdaptiveLimiter limiterWithDeadline(String tableName) {
+        AdaptiveLimiter limiter = limiter(tableName);
+        limiter.setDeadline(deadlineMillis);
+        return limiter;
+    }
+
+    @Override
+    public GetItemResponse getItem(GetItemRequest request) {
+        return limiterWithDeadline(request.tableName()).call(() -> delegate.getItem(bounded(request)));
+    }
+
+    @Override
+    public BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+        // a batch is limited by the first of its tables, this function reads from one
+        String tableName = request.requestItems().keySet().stream().findFirst().orElse(null);
+        return limiterWithDeadline(tableName).call(() -> delegate.batchGetItem(bounded(request)));
+    }
+
+    @Override
+    public UpdateItemResponse updateItem(UpdateItemRequest request) {
+        return limiterWithDeadline(request.tableName()).call(() -> delegate.updateItem(bounded(request)));
+    }
+
+    @Override
+    public TransactWriteItemsResponse transactWriteItems(TransactWriteItemsRequest request) {
+        String tableName = null;
+        if (!request.transactItems().isEmpty()) {
+            TransactWriteItem item = request.transactItems().get(0);
+            tableName = item.update() != null ? item.update().tableName() : item.put() != null ? item.put().tableName() : null;
+        }
+        return limiterWithDeadline(tableName).call(() -> delegate.transactWriteItems(bounded(request)));
+    }
+
+    @Override
+    public String serviceName() {
+        return delegate.serviceName();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
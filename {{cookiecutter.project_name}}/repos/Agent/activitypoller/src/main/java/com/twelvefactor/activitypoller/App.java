@@ -7,29 +7,24 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.http.HttpStatusCode;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
-import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
-import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
-import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.S3Exception;
-import software.amazon.awssdk.services.s3.presigner.S3Presigner;
-import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
-import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
-import software.amazon.awssdk.services.ses.SesClient;
 import software.amazon.awssdk.services.ses.model.*;
 import software.amazon.awssdk.services.sfn.SfnClient;
 import software.amazon.awssdk.services.sfn.model.GetActivityTaskRequest;
 import software.amazon.awssdk.services.sfn.model.GetActivityTaskResponse;
+import software.amazon.awssdk.services.sfn.model.InvalidTokenException;
+import software.amazon.awssdk.services.sfn.model.SendTaskFailureRequest;
+import software.amazon.awssdk.services.sfn.model.SendTaskHeartbeatRequest;
+import software.amazon.awssdk.services.sfn.model.TaskDoesNotExistException;
+import software.amazon.awssdk.services.sfn.model.TaskTimedOutException;
 import software.amazon.awssdk.utils.StringUtils;
 
 import java.lang.reflect.Type;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
-import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.LongSupplier;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -42,73 +37,152 @@ import java.util.List;
  */
 
 public class App implements RequestHandler<Object, Object> {
-    private final S3Presigner s3Presigner;
-    private final SesClient sesClient;
     private final SfnClient sfnClient;
     private final DynamoDbClient dynamoDbClient;
+    private final CircuitBreaker dynamoDbCircuitBreaker;
+    private final CircuitBreaker sesCircuitBreaker;
+    private final CircuitBreaker sfnCircuitBreaker;
+    private final ActivityPoller activityPoller;
+    private final int pollersPerActivity;
+    private final PresignedUrlCache presignedUrlCache;
+    private final AccountProfileCache accountProfileCache;
+    // runs the calls of a task that do not depend on each other side by side
+    private final ExecutorService taskExecutor;
+    private final EmailTemplates emailTemplates;
+    private final String sesTemplatePrefix;
+    private final MailDispatcher mailDispatcher;
+    private final long mailTimeoutMillis;
+    // a task found with less time left is handed back rather than left to time out half done
+    private final long taskMinRemainingMillis;
+    // keeps the tokens of the tasks being worked on alive, until their emails are sent
+    private final HeartbeatManager heartbeats;
+    // null unless ManualInspectionDigestSeconds is set
+    private final ManualInspectionDigest manualInspectionDigest;
     Gson gson = new GsonBuilder().setPrettyPrinting().create();
     private static final Logger logger = LoggerFactory.getLogger(App.class);
+    // left to report a typed error after the last call gave up
+    private static final long deadlineMarginMillis = 500;
+    static final String insufficientCreditNotification = "insufficient-credit";
+    static final String manualInspectionNotification = "manual-inspection";
+    static final String manualInspectionDigestNotification = "manual-inspection-digest";
+    // the variables the templates of each notification may use
+    static final Map<String, Set<String>> notificationVariables = new HashMap<>();
+    static {
+        notificationVariables.put(insufficientCreditNotification, new HashSet<>(Arrays.asList(
+                "firstName", "lastName", "numberPlate", "imageLink", "apiEndpoint", "taskToken")));
+        notificationVariables.put(manualInspectionNotification, new HashSet<>(Arrays.asList(
+                "mailTo", "imageLink", "apiEndpoint", "bucket", "key", "taskToken")));
+        // the digest itself and the entry of every task in it
+        notificationVariables.put(manualInspectionDigestNotification, new HashSet<>(Arrays.asList(
+                "mailTo", "count", EmailTemplates.itemsVariable, "imageLink", "apiEndpoint", "bucket", "key", "taskToken")));
+    }
 
     public App() {
         // Initialize the SDK client outside of the handler method so that it can be reused for subsequent invocations.
         // It is initialized when the class is loaded.
-        s3Presigner = DependencyFactory.s3Presigner();
-        sesClient = DependencyFactory.sesClient();
-        sfnClient = DependencyFactory.sfnClient();
-        dynamoDbClient = DependencyFactory.dynamoDbClient();
-        // Consider invoking a simple api here to pre-warm up the application, eg: dynamodb#listTables
+        ClientRegistry clients = ClientRegistry.shared();
+        sfnClient = clients.sfnClient();
+        dynamoDbClient = clients.dynamoDbClient();
+        presignedUrlCache = DependencyFactory.presignedUrlCache(clients);
+        emailTemplates = DependencyFactory.emailTemplates(notificationVariables, clients);
+        sesTemplatePrefix = DependencyFactory.sesTemplatePrefix();
+        // the circuits outlive the invocations, a dependency that keeps failing is left alone for a while
+        dynamoDbCircuitBreaker = DependencyFactory.circuitBreaker("dynamodb");
+        sesCircuitBreaker = DependencyFactory.circuitBreaker("ses");
+        sfnCircuitBreaker = DependencyFactory.circuitBreaker("sfn");
+        accountProfileCache = DependencyFactory.accountProfileCache(clients, dynamoDbCircuitBreaker);
+        taskExecutor = DependencyFactory.taskExecutor();
+        // one sender for every poller, at the account's send rate
+        mailDispatcher = DependencyFactory.mailDispatcher(clients, sesCircuitBreaker);
+        mailTimeoutMillis = DependencyFactory.mailTimeoutMillis();
+        taskMinRemainingMillis = DependencyFactory.taskMinRemainingMillis();
+        heartbeats = DependencyFactory.heartbeatManager(this::sendHeartbeat);
+        manualInspectionDigest = DependencyFactory.manualInspectionDigest(this::sendDigest, heartbeats);
+        // the pollers' threads are kept for the life of the container rather than rebuilt on every invocation
+        activityPoller = DependencyFactory.activityPoller(sfnClient, sfnCircuitBreaker);
+        pollersPerActivity = DependencyFactory.pollersPerActivity();
+        // with ClientPriming set the clients made a first call while the registry was built
     }
 
     @Override
     public Object handleRequest(final Object input, final Context context) {
-        //ExecutorService taskExecutor = Executors.newFixedThreadPool(2);
-        ExecutorService taskExecutor = Executors.newFixedThreadPool(2);
-        List<Callable<String>> callableTasks = new ArrayList<>();
-        callableTasks.add(new InsufficientCreditHandler(System.getenv("StepFunctionActivityInsufficientCredit"), context));
-        callableTasks.add(new UnknownNumberPlateHandler(System.getenv("StepFunctionActivityManualPlateInspection"), context));
-        List<Future<String>> results;
-
-        try {
-            logger.info("Starting tasks..");
-            results = taskExecutor.invokeAll(callableTasks);
-            logger.info(String.format("Job 1 status: %s and Job 2 status: %s",results.get(1).get(), results.get(2).get()));
-            //logger.info("Tasks Completed successfully.")
-        } catch (InterruptedException | ExecutionException e) {
-            logger.error("Error executing tasks with message: " + e.getMessage());
+        if (context != null && dynamoDbClient instanceof AdaptiveDynamoDbClient) {
+            // retries and waits for capacity give up before the invocation times out
+            ((AdaptiveDynamoDbClient) dynamoDbClient).setDeadline(Deadline.of(context, deadlineMarginMillis).getMillis());
         }
-        taskExecutor.shutdown();
+        logger.info("Starting pollers..");
+        // polls go on until the invocation is about to time out, without a context every poller polls once
+        ActivityPoller.Stats stats = context == null
+                ? poll(context, () -> Long.MAX_VALUE, 1)
+                : poll(context, context::getRemainingTimeInMillis, Long.MAX_VALUE);
+        logger.info(String.format("Pollers status: %s", stats));
+        logger.info(String.format("Account profile cache: %s", accountProfileCache));
+        logger.info(String.format("Task heartbeats: %s", heartbeats));
         return input;
     }
 
+    /**
+     * Runs ActivityPollersPerActivity pollers per activity while more time remains than a poll may take.
+     */
+    public ActivityPoller.Stats poll(final Context context, LongSupplier remainingMillis, long maxPolls) {
+        String insufficientCreditActivityARN = System.getenv("StepFunctionActivityInsufficientCredit");
+        String unknownNumberActivityARN = System.getenv("StepFunctionActivityManualPlateInspection");
+        List<ActivityPoller.Activity> activities = Arrays.asList(
+                new ActivityPoller.Activity(insufficientCreditActivityARN, "insufficient-credit-worker", pollersPerActivity,
+                        new InsufficientCreditHandler(insufficientCreditActivityARN, context)::process),
+                new ActivityPoller.Activity(unknownNumberActivityARN, "unknown-number-plate-worker", pollersPerActivity,
+                        new UnknownNumberPlateHandler(unknownNumberActivityARN, context)::process));
+        ActivityPoller.Stats stats = activityPoller.run(activities, remainingMillis, maxPolls);
+        if (manualInspectionDigest != null) {
+            // the tasks collected so far are not left behind when the invocation ends
+            manualInspectionDigest.flush();
+        }
+        return stats;
+    }
+
+    public ActivityPoller getActivityPoller() {
+        return activityPoller;
+    }
+
     public class InsufficientCreditHandler implements Callable<String> {
         private final String insufficientCreditActivityARN;
-        private final Context context;
-        private final S3Presigner s3Presigner;
-        private final SesClient sesClient;
-        private final SfnClient sfnClient;
-        private final DynamoDbClient dynamoDbClient;
+        private final Deadline deadline;
 
+        // the handlers use the clients of the App, which are shared by the whole container
         InsufficientCreditHandler(String insufficientCreditActivityARN, final Context context) {
             this.insufficientCreditActivityARN = insufficientCreditActivityARN;
-            this.context = context;
-            s3Presigner = DependencyFactory.s3Presigner();
-            sesClient = DependencyFactory.sesClient();
-            sfnClient = DependencyFactory.sfnClient();
-            dynamoDbClient = DependencyFactory.dynamoDbClient();
+            this.deadline = Deadline.of(context, deadlineMarginMillis);
         }
 
         public String call() {
-            String result = null;
+            GetActivityTaskResponse response;
             try {
                 logger.info("Getting activity task " + this.insufficientCreditActivityARN);
-                GetActivityTaskResponse response = sfnClient.getActivityTask(GetActivityTaskRequest.builder()
+                response = sfnCircuitBreaker.call(() -> sfnClient.getActivityTask(GetActivityTaskRequest.builder()
                         .activityArn(this.insufficientCreditActivityARN)
                         .workerName("insufficient-credit-worker")
-                        .build());
+                        .overrideConfiguration(deadline.callTimeout())
+                        .build()));
+            } catch (RuntimeException e) {
+                logger.error(String.format("Failed to get an activity task with error: %s", e.getMessage()));
+                return "error";
+            }
+            return process(response);
+        }
 
+        /**
+         * Sends the top up email of a task, failing the task when that is not possible.
+         */
+        public String process(GetActivityTaskResponse response) {
+            String result = null;
+            String numberPlate = null;
+            HeartbeatManager.Lease lease = null;
+            try {
                 if (HttpStatusCode.OK == response.sdkHttpResponse().statusCode() && !StringUtils.isEmpty(response.taskToken())) {
                     // task is found
                     logger.info(String.format("InsufficientCreditHandler: Found a task. Input is: %s", response.input()));
+                    lease = heartbeats.track(response.taskToken());
+                    checkDeadline(deadline);
                     Type type = new TypeToken<NumberPlateTrigger>() {
                     }.getType();
                     NumberPlateTrigger input = gson.fromJson(response.input(), type);
@@ -120,53 +194,44 @@ public class App implements RequestHandler<Object, Object> {
                         input.numberPlate.numberPlateString = "TESTPLATE";
                     }
 
-                    // Sign Image URL - pre-signed url for access
-                    logger.info("Generating pre-signed url for image");
-                    String imageLink = GetPreSignedUrl(input);
                     //
-                    // Query DynamoDB to get the owner email
+                    // Query DynamoDB to get the owner email, while the image url is signed
                     //
-                    Map<String, AttributeValue> document = GetRecord(input.numberPlate.numberPlateString);
-                    // generate and send email
-                    String mailTo = document.get("ownerEmail").s();
-                    String subject = "[ACTION] - Your account credit is exhausted";
-                    String firstname = document.get("ownerFirstName").s();
-                    String lastname = document.get("ownerLastName").s();
-                    String taskToken = URLEncoder.encode(response.taskToken(), StandardCharsets.UTF_8.toString());
-
-                    Content textContent = Content.builder()
-                            .charset("UTF-8")
-                            .data(String.format("Hello %1$s %2$s, Your vehicle with number plate: %3$s was recently detected on a toll road, but your account has insufficient credit to pay the toll." +
-                                            "Please update your account balance immediately to avoid a fine." +
-                                            "Please access this link to top up: %4$stopup/%3$s?taskToken=%5$s" +
-                                            ".. Thanks. Toll Road Administrator.",
-                                    firstname,
-                                    lastname,
-                                    input.numberPlate.numberPlateString,
-                                    System.getenv("APIGWEndpoint"),
-                                    taskToken
-                            ))
-                            .build();
-                    Content htmlContent = Content.builder()
-                            .charset("UTF-8")
-                            .data(String.format("Hello %1$s %2$s,<br/><br/>Your vehicle with number plate <b>%3$s</b> was recently detected on a toll road, but your account has insufficient credit to pay the toll.<br/><br/>" +
-                                            "<img src='%4$s'/><br/><a href='%4$s'>Click here to see the original image</a><br/><br/>" +
-                                            "Please update your account balance immediately to avoid a fine. <br/>" +
-                                            "<a href='%5$stopup/%3$s?taskToken=%6$s'><b>Click this link to top up your account now.</b></a><br/>" +
-                                            "<br/><br/> Thanks<br/><b>Toll Road Administrator.</b><br/><br/>",
-                                    firstname,
-                                    lastname,
-                                    input.numberPlate.numberPlateString,
-                                    imageLink,
-                                    System.getenv("APIGWEndpoint"),
-                                    taskToken
-                            ))
-                            .build();
-                    result = sendMail(subject, mailTo, textContent, htmlContent);
+                    numberPlate = input.numberPlate.numberPlateString;
+                    String plate = numberPlate;
+                    CompletableFuture<AccountProfileCache.Profile> owner = CompletableFuture.supplyAsync(() -> GetProfile(plate), taskExecutor);
+                    // Sign Image URL - pre-signed url for access
+                    logger.info("Generating pre-signed url for image");
+                    String imageLink;
+                    try {
+                        imageLink = GetPreSignedUrl(input);
+                    } catch (RuntimeException e) {
+                        owner.cancel(true);
+                        throw e;
+                    }
+                    AccountProfileCache.Profile profile = await(owner);
+                    // generate and send email, once both are there
+                    String mailTo = profile.getEmail();
+                    Map<String, String> values = new HashMap<>();
+                    values.put("firstName", profile.getFirstName());
+                    values.put("lastName", profile.getLastName());
+                    values.put("numberPlate", input.numberPlate.numberPlateString);
+                    values.put("imageLink", imageLink);
+                    values.put("apiEndpoint", System.getenv("APIGWEndpoint"));
+                    values.put("taskToken", response.taskToken());
+                    result = lease.isLost() ? lost() : sendNotification(insufficientCreditNotification, mailTo, values, deadline);
                 }
             } catch (Exception e) {
                 logger.error(String.format("Failed to process the request with error: %s", e.getMessage()));
-                System.exit(1);
+                if (numberPlate != null) {
+                    // the profile may be what changed, such as an address that no longer takes email
+                    accountProfileCache.invalidate(numberPlate);
+                }
+                result = failTask(response, e, deadline);
+            } finally {
+                if (lease != null) {
+                    lease.close();
+                }
             }
             return result;
         }
@@ -174,31 +239,40 @@ public class App implements RequestHandler<Object, Object> {
 
     public class UnknownNumberPlateHandler implements Callable<String> {
         private final String unknownNumberActivityARN;
-        private final Context context;
-        private final S3Presigner s3Presigner;
-        private final SesClient sesClient;
-        private final SfnClient sfnClient;
-        private final DynamoDbClient dynamoDbClient;
+        private final Deadline deadline;
 
         UnknownNumberPlateHandler(String unknownNumberActivityARN, final Context context) {
             this.unknownNumberActivityARN = unknownNumberActivityARN;
-            this.context = context;
-            s3Presigner = DependencyFactory.s3Presigner();
-            sesClient = DependencyFactory.sesClient();
-            sfnClient = DependencyFactory.sfnClient();
-            dynamoDbClient = DependencyFactory.dynamoDbClient();
+            this.deadline = Deadline.of(context, deadlineMarginMillis);
         }
 
         public String call() {
-            String result = "";
+            GetActivityTaskResponse response;
             try {
                 logger.info("Getting activity task " + this.unknownNumberActivityARN);
-                GetActivityTaskResponse response = sfnClient.getActivityTask(GetActivityTaskRequest.builder()
+                response = sfnCircuitBreaker.call(() -> sfnClient.getActivityTask(GetActivityTaskRequest.builder()
                         .activityArn(this.unknownNumberActivityARN)
                         .workerName("unknown-number-plate-worker")
-                        .build());
+                        .overrideConfiguration(deadline.callTimeout())
+                        .build()));
+            } catch (RuntimeException e) {
+                logger.error(String.format("Failed to get an activity task with error: %s", e.getMessage()));
+                return "error";
+            }
+            return process(response);
+        }
+
+        /**
+         * Sends the manual decision email of a task, failing the task when that is not possible.
+         */
+        public String process(GetActivityTaskResponse response) {
+            String result = "";
+            HeartbeatManager.Lease lease = null;
+            try {
                 if (HttpStatusCode.OK == response.sdkHttpResponse().statusCode() && !StringUtils.isEmpty(response.taskToken())) {
                     logger.info(String.format("ManualAdminTaskHandler: Found a task. Input is: %s",response.input()));
+                    lease = heartbeats.track(response.taskToken());
+                    checkDeadline(deadline);
                     Type type = new TypeToken<NumberPlateTrigger>(){}.getType();
                     NumberPlateTrigger input = gson.fromJson(response.input(),type);
                     // sign the image url
@@ -206,55 +280,205 @@ public class App implements RequestHandler<Object, Object> {
                     String imageLink = GetPreSignedUrl(input);
                     // generate and send email
                     String mailTo = System.getenv("TargetEmailAddress");
-                    String subject = "[ACTION] - Manual Decision Required!";
-                    String taskToken = URLEncoder.encode(response.taskToken(), StandardCharsets.UTF_8.toString());
-
-                    Content textContent = Content.builder()
-                            .charset("UTF-8")
-                            .data(String.format("Hello %1$s, An image was captured at a toll booth, " +
-                                            "but the Number Plate Processor could not be confident that it could determine the actual number plate on the vehicle. We need your help to take a look at the image," +
-                                            "and make a determination." +
-                                            "Please access this link to take a decision: %3$sparse/%4$s/%5$s/5?imageLink=%7$s&taskToken=%6$s" +
-                                            " .. Thanks. Toll Road Administrator",
-                                    mailTo,
-                                    imageLink,
-                                    System.getenv("APIGWEndpoint"),
-                                    input.bucket,
-                                    input.key,
-                                    taskToken,
-                                    URLEncoder.encode(imageLink,StandardCharsets.UTF_8.toString())
-                            ))
-                            .build();
-                    Content htmlContent = Content.builder()
-                            .charset("UTF-8")
-                            .data(String.format("Hello %1$s,<br/><br/> An image was captured at a toll booth, " +
-                                            "but the Number Plate Processor could not be confident that it could determine the actual number plate on the vehicle. We need your help to take a look at the image," +
-                                            "and make a determination.<br/><br/>" +
-                                            "<img src='%2$s'/><br/><a href='%2$s'>Click here to see the original image if it is not appearing in the email correctly.</a><br/><br/>" +
-                                            "<a href='%3$sparse/%4$s/%5$s/5?imageLink=%7$s&taskToken=%6$s'><b>Click this link to help assess the image and provide the number plate.</b></a><br/>" +
-                                            "<br/><br/>Thanks<br/><b>Toll Road Administrator.</b><br/><br/>",
-                                    mailTo,
-                                    imageLink,
-                                    System.getenv("APIGWEndpoint"),
-                                    input.bucket,
-                                    input.key,
-                                    taskToken,
-                                    URLEncoder.encode(imageLink,StandardCharsets.UTF_8.toString())
-                            ))
-                            .build();
-                    result = sendMail(subject,mailTo, textContent, htmlContent);
+                    Map<String, String> values = new HashMap<>();
+                    values.put("mailTo", mailTo);
+                    values.put("imageLink", imageLink);
+                    values.put("apiEndpoint", System.getenv("APIGWEndpoint"));
+                    values.put("bucket", input.bucket);
+                    values.put("key", input.key);
+                    values.put("taskToken", response.taskToken());
+                    if (lease.isLost()) {
+                        result = lost();
+                    } else if (manualInspectionDigest != null) {
+                        // the digest holds its own lease until the digest is sent
+                        manualInspectionDigest.add(new ManualInspectionDigest.Task(response, values));
+                        result = "queued";
+                    } else {
+                        result = sendNotification(manualInspectionNotification, mailTo, values, deadline);
+                    }
                 }
 
             } catch (Exception e) {
                 logger.error(String.format("Failed to process the request with error: %s", e.getMessage()));
-                System.exit(1);
+                result = failTask(response, e, deadline);
+            } finally {
+                if (lease != null) {
+                    lease.close();
+                }
             }
             return result;
         }
     }
 
-    public String sendMail(String subject, String emailTo, Content text, Content html) {
-        String result;
+    // the result of a call run on the task executor, failing with the error of the call itself
+    private static <T> T await(CompletableFuture<T> call) {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            // the task ran out of time, the call is not waited for
+            call.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for a call of the task");
+        }
+    }
+
+    // the task timed out while it was worked on, there is no one left to send its email for
+    private static String lost() {
+        logger.warn("The state machine gave up on the task, its email is not sent");
+        return "lost";
+    }
+
+    private void checkDeadline(Deadline deadline) {
+        if (!deadline.allows(taskMinRemainingMillis)) {
+            throw new DeadlineExceededError(String.format("Only %dms left of the invocation, the task needs %dms",
+                    deadline.remainingMillis(), taskMinRemainingMillis));
+        }
+    }
+
+    // hands the task back to the state machine with the error, instead of leaving it to time out
+    private String failTask(GetActivityTaskResponse response, Exception error, Deadline deadline) {
+        if (response == null || StringUtils.isEmpty(response.taskToken())) {
+            return "error";
+        }
+        try {
+            sfnCircuitBreaker.call(() -> sfnClient.sendTaskFailure(SendTaskFailureRequest.builder()
+                    .taskToken(response.taskToken())
+                    .error(error.getClass().getName())
+                    .cause(String.valueOf(error.getMessage()))
+                    // the margin kept from the calls of the task is what this call may use
+                    .overrideConfiguration(deadline.plus(deadlineMarginMillis).callTimeout())
+                    .build()));
+        } catch (RuntimeException e) {
+            logger.error(String.format("Failed to report the task failure, the task will time out: %s", e.getMessage()));
+        }
+        return "error";
+    }
+
+    /**
+     * Sends one email listing the tasks of a digest, failing them all when it cannot be sent.
+     */
+    private void sendDigest(List<ManualInspectionDigest.Task> tasks) {
+        String mailTo = System.getenv("TargetEmailAddress");
+        List<Map<String, String>> items = new ArrayList<>();
+        for (ManualInspectionDigest.Task task : tasks) {
+            items.add(task.getValues());
+        }
+        Map<String, String> values = new HashMap<>();
+        values.put("mailTo", mailTo);
+        values.put("count", String.valueOf(tasks.size()));
+        try {
+            EmailTemplates.Email email = emailTemplates.render(manualInspectionDigestNotification, values, items);
+            String result = sendMail(email.getSubject(), mailTo,
+                    Content.builder().charset("UTF-8").data(email.getText()).build(),
+                    Content.builder().charset("UTF-8").data(email.getHtml()).build(), Deadline.none());
+            if (!"success".equals(result)) {
+                throw new NotificationError("The digest email could not be sent.");
+            }
+        } catch (RuntimeException e) {
+            logger.error(String.format("Failing the %d task(s) of the digest: %s", tasks.size(), e.getMessage()));
+            for (ManualInspectionDigest.Task task : tasks) {
+                failTask(task.getResponse(), e, Deadline.none());
+            }
+        }
+    }
+
+    // false when the state machine no longer waits for the task
+    private boolean sendHeartbeat(String taskToken) {
+        try {
+            sfnCircuitBreaker.call(() -> sfnClient.sendTaskHeartbeat(SendTaskHeartbeatRequest.builder()
+                    .taskToken(taskToken)
+                    .build()));
+            return true;
+        } catch (TaskTimedOutException | TaskDoesNotExistException | InvalidTokenException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends a notification rendered from its templates, or with the SES stored template of the same name after
+     * SesTemplatePrefix when that is set.
+     */
+    public String sendNotification(String notification, String emailTo, Map<String, String> values, Deadline deadline) {
+        if (sesTemplatePrefix != null) {
+            return sendTemplatedMail(sesTemplatePrefix + notification, emailTo, values, deadline);
+        }
+        EmailTemplates.Email email = emailTemplates.render(notification, values);
+        return sendMail(email.getSubject(), emailTo,
+                Content.builder().charset("UTF-8").data(email.getText()).build(),
+                Content.builder().charset("UTF-8").data(email.getHtml()).build(), deadline);
+    }
+
+    // a stored template cannot encode, every value is also given URL encoded, as the value name followed by Url
+    private String sendTemplatedMail(String template, String emailTo, Map<String, String> values, Deadline deadline) {
+        Map<String, String> templateData = new HashMap<>(values);
+        StringBuilder encoded = new StringBuilder();
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            if (value.getValue() != null) {
+                encoded.setLength(0);
+                EmailTemplate.appendUrlEncoded(encoded, value.getValue());
+                templateData.put(value.getKey() + "Url", encoded.toString());
+            }
+        }
+        // sent in bulk with the other emails of the same template that are waiting
+        SendBulkTemplatedEmailRequest sendRequest = SendBulkTemplatedEmailRequest.builder()
+                .source(System.getenv("TargetEmailAddress"))
+                .replyToAddresses(Collections.singletonList(System.getenv("TargetEmailAddress")))
+                .template(template)
+                .defaultTemplateData("{}")
+                .build();
+        BulkEmailDestination destination = BulkEmailDestination.builder()
+                .destination(Destination.builder()
+                        .toAddresses(Collections.singletonList(emailTo))
+                        .build())
+                .replacementTemplateData(gson.toJson(templateData))
+                .build();
+        logger.info(String.format("Sending email with template %s to %s", template, System.getenv("TargetEmailAddress")));
+        return awaitMail(mailDeadline -> mailDispatcher.submit(sendRequest, destination, mailDeadline), deadline);
+    }
+
+    private interface MailSubmission {
+        CompletableFuture<String> submit(Deadline deadline) throws InterruptedException;
+    }
+
+    /**
+     * Waits up to mailTimeoutMillis, and no later than the deadline, for the dispatcher to send the email, cancelling
+     * it when that takes longer.
+     */
+    private String awaitMail(MailSubmission submit, Deadline deadline) {
+        Deadline mailDeadline = deadline.within(mailTimeoutMillis);
+        CompletableFuture<String> result = null;
+        try {
+            result = submit.submit(mailDeadline);
+            String outcome = result.get(mailDeadline.remainingMillis(), TimeUnit.MILLISECONDS);
+            if ("success".equals(outcome)) {
+                logger.info("The email was successfully sent.");
+            } else {
+                logger.error("Internal Error: The email could not be sent.");
+            }
+            return outcome;
+        } catch (ExecutionException e) {
+            String msg = String.format("The email could not be sent with error: %s", e.getCause().getMessage());
+            logger.error(msg);
+            throw new NotificationError(msg);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (result != null) {
+                result.cancel(false);
+            }
+            String msg = String.format("The email was not sent by %s: %s", mailDeadline, e.getMessage());
+            logger.error(msg);
+            throw new NotificationError(msg);
+        }
+    }
+
+    public String sendMail(String subject, String emailTo, Content text, Content html, Deadline deadline) {
         Message emailMsg = Message.builder()
                 .subject(Content.builder().data(subject).build())
                 .body(Body.builder()
@@ -272,74 +496,71 @@ public class App implements RequestHandler<Object, Object> {
                 .build();
 
         logger.info(String.format("Sending email to %s", System.getenv("TargetEmailAddress")));
-        SendEmailResponse sendEmailResponse = sesClient.sendEmail(sendRequest);
-        if (sendEmailResponse.sdkHttpResponse().isSuccessful()) {
-            logger.info("The email was successfully sent.");
-            result = "success";
-        } else {
-            logger.error("Internal Error: The email could not be sent.");
-            result = "error";
-        }
-        return result;
+        return awaitMail(mailDeadline -> mailDispatcher.submit(sendRequest, mailDeadline), deadline);
     }
 
     private String GetPreSignedUrl(NumberPlateTrigger input) {
         String imageLink = "";
         try {
             logger.info(String.format("Generating presigned url for bucket:%s object:%s", input.bucket, input.key));
-            GetObjectRequest getObjectRequest =
-                    GetObjectRequest.builder()
-                            .bucket(input.bucket)
-                            .key(input.key)
-                            .build();
-            GetObjectPresignRequest getObjectPresignRequest =
-                    GetObjectPresignRequest.builder()
-                            .signatureDuration(Duration.ofDays(1)) // valid for 1 day
-                            .getObjectRequest(getObjectRequest)
-                            .build();
-            // Generate the pre-signed request
-            PresignedGetObjectRequest presignedGetObjectRequest =
-                    s3Presigner.presignGetObject(getObjectPresignRequest);
-            imageLink = presignedGetObjectRequest.url().toString();
-            logger.info("s3 presigned url: " + presignedGetObjectRequest.url());
-        } catch (S3Exception e) {
-            logger.error(String.format("Error generating object url from s3 with message %s",e.getMessage()));
-            System.exit(1);
+            // a link signed earlier for the same image is reused while it stays valid long enough
+            imageLink = presignedUrlCache.url(input.bucket, input.key);
+            logger.info("s3 presigned url: " + imageLink);
+        } catch (SdkException e) {
+            String msg = String.format("Error generating object url from s3 with message %s",e.getMessage());
+            logger.error(msg);
+            throw new ImageLinkError(msg);
         }
         return imageLink;
     }
 
-    private Map<String, AttributeValue> GetRecord(String numberPlate) {
-        Map<String,AttributeValue> returnedItem = new HashMap<>();
-        String key = "numberPlate";
-        HashMap<String, AttributeValue> keyToGet = new HashMap<>();
-        keyToGet.put(key, AttributeValue.builder()
-                .s(numberPlate).build());
-        GetItemRequest request = GetItemRequest.builder()
-                .key(keyToGet)
-                .tableName(System.getenv("DDBTableName"))
-                .build();
+    // the owner details only, from the cache of the container when a recent task of the vehicle read them
+    private AccountProfileCache.Profile GetProfile(String numberPlate) {
         logger.info(String.format("Querying ddb for plate: %s",numberPlate));
+        AccountProfileCache.Profile profile;
         try {
-            returnedItem = dynamoDbClient.getItem(request).item();
-            logger.info(String.format("ddb response: %s", returnedItem.toString()));
-            if (returnedItem == null) {
-                String msg = String.format("Number plate %s was not found. This will require manual resolution",numberPlate);
-                logger.error(msg);
-                throw new UnknownNumberPlateError(msg);
-            }
-        } catch (DynamoDbException | UnknownNumberPlateError e) {
-            logger.info(String.format("Failed to query the dynamodb table with error: %s",e.getMessage()));
-            System.exit(1);
+            profile = accountProfileCache.profile(numberPlate);
+        } catch (SdkException | CircuitBreaker.OpenCircuitException e) {
+            String msg = String.format("Failed to query the dynamodb table with error: %s",e.getMessage());
+            logger.error(msg);
+            throw new DatabaseAccessError(msg);
+        }
+        if (profile == null) {
+            String msg = String.format("Number plate %s was not found. This will require manual resolution",numberPlate);
+            logger.error(msg);
+            throw new UnknownNumberPlateError(msg);
         }
+        return profile;
+    }
 
-        return returnedItem;
+    public class DatabaseAccessError extends RuntimeException {
+        public DatabaseAccessError(String message) {
+            super(message);
+        }
     }
 
-    public class UnknownNumberPlateError extends Exception {
+    public class UnknownNumberPlateError extends RuntimeException {
         public UnknownNumberPlateError(String message) {
             super(message);
         }
     }
 
+    public class ImageLinkError extends RuntimeException {
+        public ImageLinkError(String message) {
+            super(message);
+        }
+    }
+
+    public class NotificationError extends RuntimeException {
+        public NotificationError(String message) {
+            super(message);
+        }
+    }
+
+    public class DeadlineExceededError extends RuntimeException {
+        public DeadlineExceededError(String message) {
+            super(message);
+        }
+    }
+
 }
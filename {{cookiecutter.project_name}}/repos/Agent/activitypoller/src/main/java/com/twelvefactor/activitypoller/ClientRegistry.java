@@ -0,0 +1,107 @@
+package com.twelvefactor.activitypoller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.ses.SesClient;
+import software.amazon.awssdk.services.sfn.SfnClient;
+
+import java.time.Duration;
+
+/**
+ * The SDK clients of the container, one per client type, shared by the function and every poller for as long as
+ * the container lives.
+ *
+ * Building a client costs its HTTP client, its credentials lookup and the loading of its classes, and its first
+ * call pays for the TLS handshake. {@link #prime()} gets that out of the way during init, when it is free of
+ * charge on provisioned concurrency and hidden in the cold start otherwise.
+ */
+public class ClientRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ClientRegistry.class);
+    private static ClientRegistry shared;
+
+    private final AwsCredentialsProvider credentialsProvider;
+    private final S3Presigner s3Presigner;
+    private final SesClient sesClient;
+    private final SfnClient sfnClient;
+    private final DynamoDbClient dynamoDbClient;
+
+    public ClientRegistry(AwsCredentialsProvider credentialsProvider, S3Presigner s3Presigner, SesClient sesClient,
+                          SfnClient sfnClient, DynamoDbClient dynamoDbClient) {
+        this.credentialsProvider = credentialsProvider;
+        this.s3Presigner = s3Presigner;
+        this.sesClient = sesClient;
+        this.sfnClient = sfnClient;
+        this.dynamoDbClient = dynamoDbClient;
+    }
+
+    /**
+     * @return the registry of the container, built and, with ClientPriming set, primed on first use
+     */
+    public static synchronized ClientRegistry shared() {
+        if (shared == null) {
+            shared = DependencyFactory.clientRegistry();
+            if (DependencyFactory.clientPriming()) {
+                shared.prime();
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Makes a cheap call with every client, so the first real request finds its connection open. A failed
+     * priming call is logged and otherwise ignored, the real request will try again.
+     */
+    public void prime() {
+        long start = System.nanoTime();
+        try {
+            // signing is local, this only loads and warms the signer
+            s3Presigner.presignGetObject(GetObjectPresignRequest.builder()
+                    .signatureDuration(Duration.ofMinutes(1))
+                    .getObjectRequest(GetObjectRequest.builder().bucket("priming").key("priming").build())
+                    .build());
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Priming the s3 presigner failed with error: %s", e.getMessage()));
+        }
+        try {
+            sesClient.getSendQuota();
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Priming the ses client failed with error: %s", e.getMessage()));
+        }
+        String tableName = System.getenv("DDBTableName");
+        if (tableName != null) {
+            try {
+                dynamoDbClient.describeTable(DescribeTableRequest.builder().tableName(tableName).build());
+            } catch (RuntimeException e) {
+                logger.warn(String.format("Priming the dynamodb client failed with error: %s", e.getMessage()));
+            }
+        }
+        // the sfn client is left alone, the pollers call it as soon as the function is invoked
+        logger.info(String.format("Primed the clients in %dms", (System.nanoTime() - start) / 1000000));
+    }
+
+    public AwsCredentialsProvider credentialsProvider() {
+        return credentialsProvider;
+    }
+
+    public S3Presigner s3Presigner() {
+        return s3Presigner;
+    }
+
+    public SesClient sesClient() {
+        return sesClient;
+    }
+
+    public SfnClient sfnClient() {
+        return sfnClient;
+    }
+
+    public DynamoDbClient dynamoDbClient() {
+        return dynamoDbClient;
+    }
+}
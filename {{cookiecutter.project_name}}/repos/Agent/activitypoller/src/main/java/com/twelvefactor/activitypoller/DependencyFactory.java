@@ -1,46 +1,379 @@
 
 package com.twelvefactor.activitypoller;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.SdkHttpClient;
 import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 import software.amazon.awssdk.services.sfn.SfnClient;
 import software.amazon.awssdk.services.ses.SesClient;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * The module containing all dependencies required by the {@link App}.
  */
 public class DependencyFactory {
+    private static final Logger logger = LoggerFactory.getLogger(DependencyFactory.class);
     private static final String currentRegion = "{{cookiecutter.AWS_region}}"; //{{cookiecutter.AWS_region}}
+    private static final int defaultCircuitBreakerFailureThreshold = 5;
+    private static final long defaultCircuitBreakerOpenSeconds = 30;
+    private static final int defaultDynamoDbMinConcurrency = 1;
+    private static final int defaultDynamoDbMaxConcurrency = 8;
+    private static final int defaultDynamoDbInitialConcurrency = 4;
+    private static final int defaultDynamoDbMaxAttempts = 4;
+    private static final int defaultDynamoDbBaseBackoffMillis = 25;
+    private static final int defaultDynamoDbMaxBackoffMillis = 1000;
+    private static final int defaultPollersPerActivity = 2;
+    // a long poll holds the connection open for up to 60 seconds
+    private static final long sfnSocketTimeoutSeconds = 70;
+    // a poll may take 60 seconds and its task a few more, none is started with less time left
+    private static final int defaultActivityPollerMinRemainingSeconds = 70;
+    // left to report the pollers cancelled at the deadline
+    private static final long activityPollerCancelMarginMillis = 1000;
+    private static final int defaultHttpConnectionTimeoutMillis = 2000;
+    private static final int defaultHttpSocketTimeoutMillis = 30000;
+    private static final int defaultHttpMaxConnections = 20;
+    private static final int defaultPresignedUrlCacheSize = 1000;
+    private static final int defaultPresignedUrlValidityHours = 24;
+    private static final int defaultPresignedUrlMinRemainingHours = 12;
+    private static final int defaultProfileCacheSize = 1000;
+    private static final int defaultProfileCacheMaxAgeSeconds = 300;
+    private static final String defaultEmailTemplatePrefix = "templates/";
+    private static final int defaultEmailTemplateRefreshSeconds = 300;
+    // the send rate of an account still in the SES sandbox
+    private static final double defaultSesMaxSendRate = 1;
+    private static final int defaultSesQueueCapacity = 50;
+    private static final int defaultSesMaxAttempts = 4;
+    private static final int defaultSesBaseBackoffMillis = 100;
+    private static final int defaultSesMaxBackoffMillis = 2000;
+    private static final int defaultSesSendTimeoutSeconds = 30;
+    private static final int defaultTaskMinRemainingSeconds = 5;
+    private static final int defaultManualInspectionDigestMaxTasks = 50;
+    private static final int defaultTaskHeartbeatSeconds = 60;
     private DependencyFactory() {}
 
     /**
-     * @return an instance of S3Client
+     * @return the clients of the container, sharing one credentials provider
+     */
+    public static ClientRegistry clientRegistry() {
+        configureConnectionPool();
+        AwsCredentialsProvider credentialsProvider = EnvironmentVariableCredentialsProvider.create();
+        return new ClientRegistry(credentialsProvider, s3Presigner(credentialsProvider), sesClient(credentialsProvider),
+                sfnClient(credentialsProvider), dynamoDbClient(credentialsProvider));
+    }
+
+    /**
+     * @return true when ClientPriming asks for the clients to be primed during init
+     */
+    public static boolean clientPriming() {
+        String priming = System.getenv("ClientPriming");
+        return priming != null && Boolean.parseBoolean(priming.trim());
+    }
+
+    /**
+     * Sizes the connections kept alive per host to HttpMaxConnections. The url connection clients share the
+     * keep-alive pool of the JDK, which only keeps 5 by default, fewer than the pollers have calls in flight.
+     * A size set on the command line is left alone.
+     */
+    private static void configureConnectionPool() {
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(intEnv("HttpMaxConnections", defaultHttpMaxConnections)));
+        }
+    }
+
+    /**
+     * @return a url connection HTTP client that gives up connecting after HttpConnectionTimeoutMillis
      */
-    public static S3Presigner s3Presigner() {
+    public static SdkHttpClient httpClient(Duration socketTimeout) {
+        return UrlConnectionHttpClient.builder()
+                .connectionTimeout(Duration.ofMillis(intEnv("HttpConnectionTimeoutMillis", defaultHttpConnectionTimeoutMillis)))
+                .socketTimeout(socketTimeout)
+                .build();
+    }
+
+    /**
+     * @return an instance of S3Presigner, it signs locally and needs no HTTP client
+     */
+    public static S3Presigner s3Presigner(AwsCredentialsProvider credentialsProvider) {
         return S3Presigner.builder()
-                .credentialsProvider(EnvironmentVariableCredentialsProvider.create())
+                .credentialsProvider(credentialsProvider)
                 .region(Region.of(currentRegion))
                 .build();
     }
 
-    public  static DynamoDbClient dynamoDbClient() {
-        return DynamoDbClient.builder()
-                .credentialsProvider(EnvironmentVariableCredentialsProvider.create())
+    /**
+     * @return the cache of up to PresignedUrlCacheSize image links, signed for PresignedUrlValidityHours and
+     * reused while PresignedUrlMinRemainingHours of them are left
+     */
+    public static PresignedUrlCache presignedUrlCache(ClientRegistry clients) {
+        return new PresignedUrlCache(clients.s3Presigner(), clients.credentialsProvider(),
+                intEnv("PresignedUrlCacheSize", defaultPresignedUrlCacheSize),
+                Duration.ofHours(intEnv("PresignedUrlValidityHours", defaultPresignedUrlValidityHours)),
+                Duration.ofHours(intEnv("PresignedUrlMinRemainingHours", defaultPresignedUrlMinRemainingHours)));
+    }
+
+    /**
+     * @return the owner profiles of the accounts in DDBTableName, up to ProfileCacheSize of them read again after
+     * ProfileCacheMaxAgeSeconds
+     */
+    public static AccountProfileCache accountProfileCache(ClientRegistry clients, CircuitBreaker dynamoDbCircuitBreaker) {
+        return new AccountProfileCache(clients.dynamoDbClient(), dynamoDbCircuitBreaker, System.getenv("DDBTableName"),
+                intEnv("ProfileCacheSize", defaultProfileCacheSize),
+                Duration.ofSeconds(intEnv("ProfileCacheMaxAgeSeconds", defaultProfileCacheMaxAgeSeconds)));
+    }
+
+    /**
+     * @return the bundled email templates, replaced by those under EmailTemplatePrefix in EmailTemplateBucket when
+     * that is set, read again every EmailTemplateRefreshSeconds
+     */
+    public static EmailTemplates emailTemplates(Map<String, Set<String>> notifications, ClientRegistry clients) {
+        String bucket = System.getenv("EmailTemplateBucket");
+        EmailTemplates.Source override = null;
+        if (bucket != null && !bucket.trim().isEmpty()) {
+            String prefixEnv = System.getenv("EmailTemplatePrefix");
+            String prefix = prefixEnv == null ? defaultEmailTemplatePrefix : prefixEnv.trim();
+            S3Client s3Client = S3Client.builder()
+                    .credentialsProvider(clients.credentialsProvider())
+                    .region(Region.of(currentRegion))
+                    .httpClient(httpClient(Duration.ofMillis(intEnv("HttpSocketTimeoutMillis", defaultHttpSocketTimeoutMillis))))
+                    .build();
+            override = name -> {
+                try {
+                    return s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                            .bucket(bucket.trim())
+                            .key(prefix + name)
+                            .build()).asUtf8String();
+                } catch (NoSuchKeyException e) {
+                    return null;
+                }
+            };
+        }
+        return new EmailTemplates(notifications, EmailTemplates.resources(), override,
+                Duration.ofSeconds(intEnv("EmailTemplateRefreshSeconds", defaultEmailTemplateRefreshSeconds)));
+    }
+
+    /**
+     * @return SesTemplatePrefix, the prefix of the SES stored templates to send the notifications with, or null
+     * to render them in the function
+     */
+    public static String sesTemplatePrefix() {
+        String prefix = System.getenv("SesTemplatePrefix");
+        return prefix == null || prefix.trim().isEmpty() ? null : prefix.trim();
+    }
+
+    /**
+     * @return the started sender of every email, pacing them at SesMaxSendRate emails per second, or at the
+     * account's maximum send rate when it is not set, with up to SesQueueCapacity emails waiting
+     */
+    public static MailDispatcher mailDispatcher(ClientRegistry clients, CircuitBreaker sesCircuitBreaker) {
+        String maxSendRate = System.getenv("SesMaxSendRate");
+        double permitsPerSecond = defaultSesMaxSendRate;
+        if (maxSendRate != null && !maxSendRate.trim().isEmpty()) {
+            permitsPerSecond = Double.parseDouble(maxSendRate.trim());
+        } else {
+            try {
+                permitsPerSecond = clients.sesClient().getSendQuota().maxSendRate();
+            } catch (SdkException e) {
+                logger.warn(String.format("Sending %s email(s) per second, the send quota could not be read: %s",
+                        defaultSesMaxSendRate, e.getMessage()));
+            }
+        }
+        // a second worth of sends may go out at once after a quiet period
+        TokenBucket tokenBucket = new TokenBucket(permitsPerSecond, permitsPerSecond);
+        return new MailDispatcher(clients.sesClient(), sesCircuitBreaker, tokenBucket,
+                intEnv("SesQueueCapacity", defaultSesQueueCapacity),
+                intEnv("SesMaxAttempts", defaultSesMaxAttempts),
+                intEnv("SesBaseBackoffMillis", defaultSesBaseBackoffMillis),
+                intEnv("SesMaxBackoffMillis", defaultSesMaxBackoffMillis)).start();
+    }
+
+    /**
+     * @return how long a handler waits for its email to be sent, SesSendTimeoutSeconds
+     */
+    public static long mailTimeoutMillis() {
+        return TimeUnit.SECONDS.toMillis(intEnv("SesSendTimeoutSeconds", defaultSesSendTimeoutSeconds));
+    }
+
+    /**
+     * @return the time a task needs left of the invocation to be worked on, TaskMinRemainingSeconds
+     */
+    public static long taskMinRemainingMillis() {
+        return TimeUnit.SECONDS.toMillis(intEnv("TaskMinRemainingSeconds", defaultTaskMinRemainingSeconds));
+    }
+
+    /**
+     * @return the heartbeats of the tasks being worked on, one every TaskHeartbeatSeconds
+     */
+    public static HeartbeatManager heartbeatManager(HeartbeatManager.Heartbeat heartbeat) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "task-heartbeats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new HeartbeatManager(heartbeat, scheduler,
+                TimeUnit.SECONDS.toMillis(intEnv("TaskHeartbeatSeconds", defaultTaskHeartbeatSeconds)));
+    }
+
+    /**
+     * @return a digest collecting the manual inspection tasks of ManualInspectionDigestSeconds into one email of
+     * up to ManualInspectionDigestMaxTasks tasks, or null to send an email per task when
+     * ManualInspectionDigestSeconds is not set
+     */
+    public static ManualInspectionDigest manualInspectionDigest(ManualInspectionDigest.Sender sender,
+                                                                HeartbeatManager heartbeats) {
+        int windowSeconds = intEnv("ManualInspectionDigestSeconds", 0);
+        if (windowSeconds <= 0) {
+            return null;
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "manual-inspection-digest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new ManualInspectionDigest(sender, heartbeats, scheduler, TimeUnit.SECONDS.toMillis(windowSeconds),
+                intEnv("ManualInspectionDigestMaxTasks", defaultManualInspectionDigestMaxTasks));
+    }
+
+    /**
+     * @return an instance of DynamoDbClient with an adaptive limiter per table owning the retries
+     */
+    public  static DynamoDbClient dynamoDbClient(AwsCredentialsProvider credentialsProvider) {
+        return new AdaptiveDynamoDbClient(DynamoDbClient.builder()
+                .credentialsProvider(credentialsProvider)
                 .region(Region.of(currentRegion))
-                .build();
+                .httpClient(httpClient(Duration.ofMillis(intEnv("HttpSocketTimeoutMillis", defaultHttpSocketTimeoutMillis))))
+                .overrideConfiguration(ClientOverrideConfiguration.builder().retryPolicy(RetryPolicy.none()).build())
+                .build(), DependencyFactory::adaptiveLimiter);
+    }
+
+    /**
+     * @return the limiter of a table: between DynamoDbMinConcurrency and DynamoDbMaxConcurrency calls in flight,
+     * or the table's entry in DynamoDbTableConcurrency (table=max,...), starting at DynamoDbInitialConcurrency,
+     * with DynamoDbMaxAttempts attempts backing off from DynamoDbBaseBackoffMillis to DynamoDbMaxBackoffMillis
+     */
+    public static AdaptiveLimiter adaptiveLimiter(String tableName) {
+        int maxConcurrency = intEnv("DynamoDbMaxConcurrency", defaultDynamoDbMaxConcurrency);
+        String tableConcurrency = System.getenv("DynamoDbTableConcurrency");
+        if (tableConcurrency != null) {
+            for (String entry : tableConcurrency.split(",")) {
+                String[] parts = entry.split("=");
+                if (parts.length == 2 && parts[0].trim().equals(tableName)) {
+                    maxConcurrency = Integer.parseInt(parts[1].trim());
+                }
+            }
+        }
+        return new AdaptiveLimiter("dynamodb:" + tableName, new AdaptiveLimiter.Settings(
+                intEnv("DynamoDbMinConcurrency", defaultDynamoDbMinConcurrency),
+                maxConcurrency,
+                intEnv("DynamoDbInitialConcurrency", defaultDynamoDbInitialConcurrency),
+                intEnv("DynamoDbMaxAttempts", defaultDynamoDbMaxAttempts),
+                intEnv("DynamoDbBaseBackoffMillis", defaultDynamoDbBaseBackoffMillis),
+                intEnv("DynamoDbMaxBackoffMillis", defaultDynamoDbMaxBackoffMillis)));
     }
-    public static SfnClient sfnClient() {
+
+    private static int intEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * @return an instance of SfnClient that waits out a long poll for an activity task
+     */
+    public static SfnClient sfnClient(AwsCredentialsProvider credentialsProvider) {
         return SfnClient.builder()
+                .credentialsProvider(credentialsProvider)
                 .region(Region.of(currentRegion))
+                .httpClient(httpClient(Duration.ofSeconds(sfnSocketTimeoutSeconds)))
                 .build();
     }
-    public static SesClient sesClient() {
+
+    /**
+     * @return a poller on ActivityPollerThreads threads that starts no poll with less than
+     * ActivityPollerMinRemainingSeconds left
+     */
+    public static ActivityPoller activityPoller(SfnClient sfnClient, CircuitBreaker sfnCircuitBreaker) {
+        return new ActivityPoller(sfnClient, sfnCircuitBreaker, pollerExecutor(System.getenv("ActivityPollerThreads")),
+                TimeUnit.SECONDS.toMillis(intEnv("ActivityPollerMinRemainingSeconds", defaultActivityPollerMinRemainingSeconds)),
+                activityPollerCancelMarginMillis);
+    }
+
+    /**
+     * @return a thread per task, virtual threads when threads is "virtual" and the runtime has them, daemon
+     * platform threads otherwise
+     */
+    public static ExecutorService pollerExecutor(String threads) {
+        return threadPerTaskExecutor(threads, "activity-poller");
+    }
+
+    /**
+     * @return the executor the handlers run the independent calls of a task on, threads of the same kind as the
+     * pollers'
+     */
+    public static ExecutorService taskExecutor() {
+        return threadPerTaskExecutor(System.getenv("ActivityPollerThreads"), "task-io");
+    }
+
+    private static ExecutorService threadPerTaskExecutor(String threads, String name) {
+        if (threads != null && threads.trim().equalsIgnoreCase("virtual")) {
+            try {
+                // looked up at runtime, the code still compiles for and runs on java 11
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.warn(String.format("Virtual threads are not available on java %s, using platform threads",
+                        System.getProperty("java.specification.version")));
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the number of polls to keep open per activity, ActivityPollersPerActivity
+     */
+    public static int pollersPerActivity() {
+        return intEnv("ActivityPollersPerActivity", defaultPollersPerActivity);
+    }
+    public static SesClient sesClient(AwsCredentialsProvider credentialsProvider) {
         return SesClient.builder()
+                .credentialsProvider(credentialsProvider)
                 .region(Region.of(currentRegion))
+                .httpClient(httpClient(Duration.ofMillis(intEnv("HttpSocketTimeoutMillis", defaultHttpSocketTimeoutMillis))))
                 .build();
     }
+
+    /**
+     * @return a circuit that opens after CircuitBreakerFailureThreshold consecutive failures of the dependency,
+     * for CircuitBreakerOpenSeconds
+     */
+    public static CircuitBreaker circuitBreaker(String name) {
+        String threshold = System.getenv("CircuitBreakerFailureThreshold");
+        String openSeconds = System.getenv("CircuitBreakerOpenSeconds");
+        return new CircuitBreaker(name,
+                threshold == null || threshold.trim().isEmpty() ? defaultCircuitBreakerFailureThreshold : Integer.parseInt(threshold.trim()),
+                Duration.ofSeconds(openSeconds == null || openSeconds.trim().isEmpty()
+                        ? defaultCircuitBreakerOpenSeconds : Long.parseLong(openSeconds.trim())));
+    }
 }
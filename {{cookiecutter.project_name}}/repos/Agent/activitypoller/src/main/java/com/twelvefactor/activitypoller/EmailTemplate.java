@@ -0,0 +1,184 @@
+package com.twelvefactor.activitypoller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A text or HTML email template compiled once into segments, literal text and variables, and rendered by
+ * appending them to a builder reused by the thread.
+ *
+ * Variables are written ${name}, or ${name|url} for a value that goes into a link. Values are escaped while
+ * they are appended, in one pass: URL encoded like URLEncoder for |url, and HTML escaped in an HTML template.
+ * A value already escaped, such as the items of a digest rendered by their own template, is written ${name|raw}.
+ */
+public final class EmailTemplate {
+    private static final char[] hexDigits = "0123456789ABCDEF".toCharArray();
+    private static final ThreadLocal<StringBuilder> builders = ThreadLocal.withInitial(() -> new StringBuilder(4096));
+
+    // a segment is the literal when its name is null, the variable otherwise
+    private final String[] literals;
+    private final String[] names;
+    private final boolean[] urlEncoded;
+    private final boolean[] raw;
+    private final boolean html;
+
+    private EmailTemplate(String[] literals, String[] names, boolean[] urlEncoded, boolean[] raw, boolean html) {
+        this.literals = literals;
+        this.names = names;
+        this.urlEncoded = urlEncoded;
+        this.raw = raw;
+        this.html = html;
+    }
+
+    /**
+     * @param variables the variables the template may use, any other one is rejected
+     * @throws IllegalArgumentException when the template is malformed or uses an unknown variable
+     */
+    public static EmailTemplate compile(String source, boolean html, Set<String> variables) {
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Boolean> urlEncoded = new ArrayList<>();
+        List<Boolean> raw = new ArrayList<>();
+        int position = 0;
+        while (position < source.length()) {
+            int start = source.indexOf("${", position);
+            if (start < 0) {
+                start = source.length();
+            }
+            if (start > position) {
+                literals.add(source.substring(position, start));
+                names.add(null);
+                urlEncoded.add(false);
+                raw.add(false);
+            }
+            if (start == source.length()) {
+                break;
+            }
+            int end = source.indexOf('}', start);
+            if (end < 0) {
+                throw new IllegalArgumentException(String.format("Unterminated variable at %d", start));
+            }
+            String variable = source.substring(start + 2, end).trim();
+            String filter = "";
+            int bar = variable.indexOf('|');
+            if (bar >= 0) {
+                filter = variable.substring(bar + 1).trim();
+                if (!filter.equals("url") && !filter.equals("raw")) {
+                    throw new IllegalArgumentException(String.format("Unknown filter in %s", variable));
+                }
+                variable = variable.substring(0, bar).trim();
+            }
+            if (!variables.contains(variable)) {
+                throw new IllegalArgumentException(String.format("Unknown variable %s, expected one of %s", variable, variables));
+            }
+            literals.add(null);
+            names.add(variable);
+            urlEncoded.add(filter.equals("url"));
+            raw.add(filter.equals("raw"));
+            position = end + 1;
+        }
+        boolean[] url = new boolean[urlEncoded.size()];
+        boolean[] asIs = new boolean[raw.size()];
+        for (int i = 0; i < url.length; i++) {
+            url[i] = urlEncoded.get(i);
+            asIs[i] = raw.get(i);
+        }
+        return new EmailTemplate(literals.toArray(new String[0]), names.toArray(new String[0]), url, asIs, html);
+    }
+
+    /**
+     * @return the template with the values in place, a missing value renders empty
+     */
+    public String render(Map<String, String> values) {
+        StringBuilder builder = builders.get();
+        builder.setLength(0);
+        renderTo(builder, values);
+        return builder.toString();
+    }
+
+    public void renderTo(StringBuilder builder, Map<String, String> values) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == null) {
+                builder.append(literals[i]);
+                continue;
+            }
+            String value = values.get(names[i]);
+            if (value == null) {
+                continue;
+            }
+            if (urlEncoded[i]) {
+                // percent encoding leaves nothing to escape for HTML
+                appendUrlEncoded(builder, value);
+            } else if (html && !raw[i]) {
+                appendHtmlEscaped(builder, value);
+            } else {
+                builder.append(value);
+            }
+        }
+    }
+
+    // runs of characters that need no escaping are appended at once
+    static void appendHtmlEscaped(StringBuilder builder, String value) {
+        int run = 0;
+        for (int i = 0; i < value.length(); i++) {
+            String escaped;
+            switch (value.charAt(i)) {
+                case '&': escaped = "&amp;"; break;
+                case '<': escaped = "&lt;"; break;
+                case '>': escaped = "&gt;"; break;
+                case '"': escaped = "&quot;"; break;
+                case '\'': escaped = "&#39;"; break;
+                default: continue;
+            }
+            builder.append(value, run, i).append(escaped);
+            run = i + 1;
+        }
+        builder.append(value, run, value.length());
+    }
+
+    // the same as URLEncoder.encode(value, UTF-8), without the intermediate strings
+    static void appendUrlEncoded(StringBuilder builder, String value) {
+        int run = 0;
+        for (int i = 0; i < value.length(); ) {
+            int codePoint = value.codePointAt(i);
+            if ((codePoint >= 'a' && codePoint <= 'z') || (codePoint >= 'A' && codePoint <= 'Z')
+                    || (codePoint >= '0' && codePoint <= '9')
+                    || codePoint == '.' || codePoint == '-' || codePoint == '*' || codePoint == '_') {
+                i++;
+                continue;
+            }
+            builder.append(value, run, i);
+            i += Character.charCount(codePoint);
+            run = i;
+            if (codePoint == ' ') {
+                builder.append('+');
+            } else if (codePoint < 0x80) {
+                appendByte(builder, codePoint);
+            } else if (codePoint < 0x800) {
+                appendByte(builder, 0xC0 | (codePoint >> 6));
+                appendByte(builder, 0x80 | (codePoint & 0x3F));
+            } else if (codePoint < 0x10000) {
+                if (Character.isSurrogate((char) codePoint)) {
+                    // a lone surrogate cannot be encoded, URLEncoder writes a question mark instead
+                    appendByte(builder, '?');
+                    continue;
+                }
+                appendByte(builder, 0xE0 | (codePoint >> 12));
+                appendByte(builder, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(builder, 0x80 | (codePoint & 0x3F));
+            } else {
+                appendByte(builder, 0xF0 | (codePoint >> 18));
+                appendByte(builder, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(builder, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(builder, 0x80 | (codePoint & 0x3F));
+            }
+        }
+        builder.append(value, run, value.length());
+    }
+
+    private static void appendByte(StringBuilder builder, int b) {
+        builder.append('%').append(hexDigits[(b >> 4) & 0xF]).append(hexDigits[b & 0xF]);
+    }
+}
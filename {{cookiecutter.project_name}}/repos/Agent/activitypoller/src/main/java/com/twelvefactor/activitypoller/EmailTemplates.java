@@ -0,0 +1,218 @@
+package com.twelvefactor.activitypoller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The compiled subject, text and HTML templates of every notification.
+ *
+ * The templates of a notification are named after it, for instance insufficient-credit.subject.txt,
+ * insufficient-credit.text.txt and insufficient-credit.html.html. The bundled ones are resources of the function.
+ * An override source, such as a bucket, may replace any of them: it is read again every refresh interval, and
+ * a new template is only used once it compiles, otherwise the templates in use are kept.
+ *
+ * A digest notification also has item templates, such as manual-inspection-digest.item.text.txt and
+ * manual-inspection-digest.item.html.html, rendered once per item into the items variable of its text and HTML.
+ */
+public class EmailTemplates {
+    private static final Logger logger = LoggerFactory.getLogger(EmailTemplates.class);
+    private static final String[] parts = {"subject.txt", "text.txt", "html.html"};
+    // only digests have them
+    private static final String[] itemParts = {"item.text.txt", "item.html.html"};
+    static final String itemsVariable = "items";
+
+    /**
+     * Where templates are read from.
+     */
+    public interface Source {
+        /**
+         * @return the template, or null when the source does not have it
+         */
+        String load(String name);
+    }
+
+    /**
+     * A rendered notification.
+     */
+    public static class Email {
+        private final String subject;
+        private final String text;
+        private final String html;
+
+        Email(String subject, String text, String html) {
+            this.subject = subject;
+            this.text = text;
+            this.html = html;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public String getHtml() {
+            return html;
+        }
+    }
+
+    private final Map<String, Set<String>> notifications;
+    private final Source bundled;
+    private final Source override;
+    private final long refreshMillis;
+    private final Clock clock;
+    private volatile Map<String, EmailTemplate[]> templates;
+    private long nextRefreshMillis;
+
+    /**
+     * @param notifications the notifications with the variables their templates may use
+     * @param override null when the bundled templates are the only ones
+     */
+    public EmailTemplates(Map<String, Set<String>> notifications, Source bundled, Source override, Duration refresh) {
+        this(notifications, bundled, override, refresh, Clock.systemUTC());
+    }
+
+    public EmailTemplates(Map<String, Set<String>> notifications, Source bundled, Source override, Duration refresh, Clock clock) {
+        this.notifications = notifications;
+        this.bundled = bundled;
+        this.override = override;
+        this.refreshMillis = refresh.toMillis();
+        this.clock = clock;
+        // the bundled templates have to compile, the function cannot send anything otherwise
+        this.templates = load(null);
+        refresh();
+    }
+
+    /**
+     * @throws IllegalArgumentException for a notification without templates
+     */
+    public Email render(String notification, Map<String, String> values) {
+        EmailTemplate[] compiled = compiled(notification);
+        return new Email(compiled[0].render(values), compiled[1].render(values), compiled[2].render(values));
+    }
+
+    /**
+     * Renders a digest, the items with the item templates of the notification.
+     *
+     * @throws IllegalArgumentException for a notification without item templates
+     */
+    public Email render(String notification, Map<String, String> values, List<Map<String, String>> items) {
+        EmailTemplate[] compiled = compiled(notification);
+        if (compiled[parts.length] == null) {
+            throw new IllegalArgumentException(String.format("No item templates for notification %s", notification));
+        }
+        Map<String, String> text = new HashMap<>(values);
+        text.put(itemsVariable, renderItems(compiled[parts.length], items));
+        Map<String, String> html = new HashMap<>(values);
+        html.put(itemsVariable, renderItems(compiled[parts.length + 1], items));
+        return new Email(compiled[0].render(values), compiled[1].render(text), compiled[2].render(html));
+    }
+
+    private static String renderItems(EmailTemplate template, List<Map<String, String>> items) {
+        StringBuilder builder = new StringBuilder();
+        for (Map<String, String> item : items) {
+            template.renderTo(builder, item);
+        }
+        return builder.toString();
+    }
+
+    private EmailTemplate[] compiled(String notification) {
+        refresh();
+        EmailTemplate[] compiled = templates.get(notification);
+        if (compiled == null) {
+            throw new IllegalArgumentException(String.format("No templates for notification %s", notification));
+        }
+        return compiled;
+    }
+
+    private void refresh() {
+        if (override == null) {
+            return;
+        }
+        synchronized (this) {
+            if (clock.millis() < nextRefreshMillis) {
+                return;
+            }
+            nextRefreshMillis = clock.millis() + refreshMillis;
+        }
+        try {
+            templates = load(override);
+        } catch (RuntimeException e) {
+            logger.error(String.format("Keeping the email templates in use, the new ones failed to load: %s", e.getMessage()));
+        }
+    }
+
+    private Map<String, EmailTemplate[]> load(Source override) {
+        Map<String, EmailTemplate[]> loaded = new HashMap<>();
+        for (Map.Entry<String, Set<String>> notification : notifications.entrySet()) {
+            EmailTemplate[] compiled = new EmailTemplate[parts.length + itemParts.length];
+            for (int i = 0; i < compiled.length; i++) {
+                String part = i < parts.length ? parts[i] : itemParts[i - parts.length];
+                String name = notification.getKey() + "." + part;
+                String source = override == null ? null : override.load(name);
+                if (source == null) {
+                    source = bundled.load(name);
+                }
+                if (source == null && i < parts.length) {
+                    throw new IllegalArgumentException(String.format("Email template %s is missing", name));
+                }
+                if (source == null) {
+                    continue;
+                }
+                try {
+                    compiled[i] = EmailTemplate.compile(trimLastNewline(source), part.endsWith(".html"), notification.getValue());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(String.format("Email template %s does not compile: %s", name, e.getMessage()), e);
+                }
+            }
+            if ((compiled[parts.length] == null) != (compiled[parts.length + 1] == null)) {
+                throw new IllegalArgumentException(String.format("Notification %s needs both item templates or none", notification.getKey()));
+            }
+            loaded.put(notification.getKey(), compiled);
+        }
+        return loaded;
+    }
+
+    // files end with a newline that is not part of the email
+    private static String trimLastNewline(String source) {
+        if (source.endsWith("\r\n")) {
+            return source.substring(0, source.length() - 2);
+        }
+        return source.endsWith("\n") ? source.substring(0, source.length() - 1) : source;
+    }
+
+    /**
+     * @return the templates bundled under the templates/ resources
+     */
+    public static Source resources() {
+        return name -> {
+            try (InputStream in = EmailTemplates.class.getResourceAsStream("/templates/" + name)) {
+                if (in == null) {
+                    return null;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                    out.write(buffer, 0, read);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+}
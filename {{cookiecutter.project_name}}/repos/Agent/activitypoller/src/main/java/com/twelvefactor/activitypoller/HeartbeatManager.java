@@ -0,0 +1,192 @@
+package com.twelvefactor.activitypoller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the task tokens the function still works on alive with SendTaskHeartbeat, from one scheduler for the
+ * whole container.
+ *
+ * A token is tracked from the moment its task is taken until every lease on it is released, such as a handler
+ * that is done with the task and a digest that still has to send it. However many leases a token has, it gets
+ * one heartbeat per interval, and only once it was taken or last beaten an interval ago: the calls of all the
+ * tokens are coalesced into one pass of the scheduler. A token the state machine no longer knows is dropped and
+ * its leases are told, so that nothing more is done for the task.
+ */
+public class HeartbeatManager {
+    private static final Logger logger = LoggerFactory.getLogger(HeartbeatManager.class);
+
+    public interface Heartbeat {
+        /**
+         * @return false when the task is gone, it timed out or was already decided
+         */
+        boolean beat(String taskToken);
+    }
+
+    /**
+     * A hold on a tracked token, released once the holder no longer needs the task kept alive.
+     */
+    public class Lease implements AutoCloseable {
+        private final String taskToken;
+        private final Runnable onLost;
+        private volatile boolean lost;
+        private boolean released;
+
+        private Lease(String taskToken, Runnable onLost) {
+            this.taskToken = taskToken;
+            this.onLost = onLost;
+        }
+
+        /**
+         * @return true when the state machine gave up on the task
+         */
+        public boolean isLost() {
+            return lost;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private static class Tracked {
+        final List<Lease> leases = new ArrayList<>();
+        long lastBeatMillis;
+
+        Tracked(long lastBeatMillis) {
+            this.lastBeatMillis = lastBeatMillis;
+        }
+    }
+
+    private final Heartbeat heartbeat;
+    private final long intervalMillis;
+    private final Clock clock;
+    private final Map<String, Tracked> tokens = new HashMap<>();
+    private final AtomicLong beats = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    public HeartbeatManager(Heartbeat heartbeat, ScheduledExecutorService scheduler, long intervalMillis) {
+        this(heartbeat, scheduler, intervalMillis, Clock.systemUTC());
+    }
+
+    HeartbeatManager(Heartbeat heartbeat, ScheduledExecutorService scheduler, long intervalMillis, Clock clock) {
+        this.heartbeat = heartbeat;
+        this.intervalMillis = intervalMillis;
+        this.clock = clock;
+        // a token is beaten at most half an interval late
+        long tickMillis = Math.max(1, intervalMillis / 2);
+        scheduler.scheduleWithFixedDelay(this::beatDue, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps the token alive until the lease is released.
+     */
+    public Lease track(String taskToken) {
+        return track(taskToken, null);
+    }
+
+    /**
+     * Keeps the token alive until the lease is released, running onLost on the scheduler if the state machine
+     * gives up on the task before that.
+     */
+    public Lease track(String taskToken, Runnable onLost) {
+        Lease lease = new Lease(taskToken, onLost);
+        synchronized (tokens) {
+            // taking the task counts as its first heartbeat
+            tokens.computeIfAbsent(taskToken, token -> new Tracked(clock.millis())).leases.add(lease);
+        }
+        return lease;
+    }
+
+    private void release(Lease lease) {
+        synchronized (tokens) {
+            if (lease.released) {
+                return;
+            }
+            lease.released = true;
+            Tracked tracked = tokens.get(lease.taskToken);
+            if (tracked != null) {
+                tracked.leases.remove(lease);
+                if (tracked.leases.isEmpty()) {
+                    tokens.remove(lease.taskToken);
+                }
+            }
+        }
+    }
+
+    // beats every token an interval after it was taken or last beaten, one call per token
+    void beatDue() {
+        long now = clock.millis();
+        List<String> due = new ArrayList<>();
+        synchronized (tokens) {
+            for (Map.Entry<String, Tracked> token : tokens.entrySet()) {
+                if (now - token.getValue().lastBeatMillis >= intervalMillis) {
+                    due.add(token.getKey());
+                }
+            }
+        }
+        for (String taskToken : due) {
+            boolean alive;
+            try {
+                alive = heartbeat.beat(taskToken);
+                beats.incrementAndGet();
+            } catch (RuntimeException e) {
+                // tried again on the next pass
+                logger.warn(String.format("Failed to send a heartbeat with error: %s", e.getMessage()));
+                continue;
+            }
+            List<Lease> leases = null;
+            synchronized (tokens) {
+                Tracked tracked = tokens.get(taskToken);
+                if (tracked == null) {
+                    continue;
+                }
+                if (alive) {
+                    tracked.lastBeatMillis = now;
+                } else {
+                    tokens.remove(taskToken);
+                    leases = new ArrayList<>(tracked.leases);
+                }
+            }
+            if (leases != null) {
+                lost.incrementAndGet();
+                logger.warn(String.format("The state machine gave up on a task with %d lease(s)", leases.size()));
+                for (Lease lease : leases) {
+                    lease.lost = true;
+                    if (lease.onLost != null) {
+                        lease.onLost.run();
+                    }
+                }
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (tokens) {
+            return tokens.size();
+        }
+    }
+
+    public long getBeats() {
+        return beats.get();
+    }
+
+    public long getLost() {
+        return lost.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("tracked=%d, beats=%d, lost=%d", size(), getBeats(), getLost());
+    }
+}
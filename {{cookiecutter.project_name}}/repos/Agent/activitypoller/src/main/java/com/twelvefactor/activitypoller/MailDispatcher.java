@@ -0,0 +1,241 @@
+package com.twelvefactor.activitypoller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.ses.SesClient;
+import software.amazon.awssdk.services.ses.model.BulkEmailDestination;
+import software.amazon.awssdk.services.ses.model.BulkEmailDestinationStatus;
+import software.amazon.awssdk.services.ses.model.BulkEmailStatus;
+import software.amazon.awssdk.services.ses.model.SendBulkTemplatedEmailRequest;
+import software.amazon.awssdk.services.ses.model.SendBulkTemplatedEmailResponse;
+import software.amazon.awssdk.services.ses.model.SendEmailRequest;
+import software.amazon.awssdk.services.ses.model.SendEmailResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the emails of every poller from one queue, at the account's SES send rate.
+ *
+ * Pollers queue their emails and wait for the outcome. When the queue is full they wait for room, so a backlog
+ * of emails slows down the polling instead of piling up. A single sender takes a permit of the {@link TokenBucket}
+ * per email, so sends stay within the quota instead of bursting into throttling. Emails sent with a stored
+ * template are batched into one SendBulkTemplatedEmail call of up to 50 destinations, as far as permits are
+ * available right away. Throttled and failed sends are retried with jittered exponential backoff; a throttle
+ * also empties the bucket. An email whose outcome is no longer awaited can be cancelled and is then skipped.
+ * Every email has a deadline: the wait for room in the queue, the sends and their retries all end with it.
+ */
+public class MailDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(MailDispatcher.class);
+    // the most destinations SendBulkTemplatedEmail takes
+    static final int maxBulkDestinations = 50;
+
+    private static class Outbound {
+        final SendEmailRequest email;
+        final SendBulkTemplatedEmailRequest template;
+        final BulkEmailDestination destination;
+        final Deadline deadline;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Outbound(SendEmailRequest email, SendBulkTemplatedEmailRequest template, BulkEmailDestination destination,
+                 Deadline deadline) {
+            this.email = email;
+            this.template = template;
+            this.destination = destination;
+            this.deadline = deadline;
+        }
+
+        // emails of the same template and sender go into one bulk call
+        boolean batchesWith(Outbound other) {
+            return template != null && other.template != null
+                    && Objects.equals(template.template(), other.template.template())
+                    && Objects.equals(template.source(), other.template.source())
+                    && Objects.equals(template.replyToAddresses(), other.template.replyToAddresses());
+        }
+    }
+
+    private final SesClient sesClient;
+    private final CircuitBreaker circuitBreaker;
+    private final TokenBucket tokenBucket;
+    private final BlockingQueue<Outbound> queue;
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private volatile boolean stopping;
+
+    public MailDispatcher(SesClient sesClient, CircuitBreaker circuitBreaker, TokenBucket tokenBucket, int queueCapacity,
+                          int maxAttempts, long baseBackoffMillis, long maxBackoffMillis) {
+        this.sesClient = sesClient;
+        this.circuitBreaker = circuitBreaker;
+        this.tokenBucket = tokenBucket;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseBackoffMillis = Math.max(1, baseBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.baseBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * Starts the sender on a daemon thread.
+     */
+    public MailDispatcher start() {
+        Thread sender = new Thread(this::run, "mail-dispatcher");
+        sender.setDaemon(true);
+        sender.start();
+        return this;
+    }
+
+    public void stop() {
+        stopping = true;
+    }
+
+    /**
+     * Queues an email, waiting up to the deadline for room in the queue.
+     *
+     * @return the outcome, "success" or "error", or the error that stopped the email
+     */
+    public CompletableFuture<String> submit(SendEmailRequest email, Deadline deadline) throws InterruptedException {
+        return enqueue(new Outbound(email, null, null, deadline));
+    }
+
+    /**
+     * Queues an email sent with a stored template, the template, source and default data coming from the
+     * request and the recipient and their data from the destination.
+     */
+    public CompletableFuture<String> submit(SendBulkTemplatedEmailRequest template, BulkEmailDestination destination,
+                                            Deadline deadline) throws InterruptedException {
+        return enqueue(new Outbound(null, template, destination, deadline));
+    }
+
+    private CompletableFuture<String> enqueue(Outbound outbound) throws InterruptedException {
+        if (!queue.offer(outbound, outbound.deadline.remainingMillis(), TimeUnit.MILLISECONDS)) {
+            outbound.result.completeExceptionally(new IllegalStateException(String.format(
+                    "The email queue stayed full until %s, %d email(s) are waiting", outbound.deadline, queue.size())));
+        }
+        return outbound.result;
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    private void run() {
+        while (!stopping) {
+            try {
+                Outbound first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null || first.result.isDone()) {
+                    // a poller that gave up on its email cancelled it
+                    continue;
+                }
+                tokenBucket.acquire();
+                List<Outbound> batch = new ArrayList<>();
+                batch.add(first);
+                while (first.template != null && batch.size() < maxBulkDestinations) {
+                    Outbound candidate = queue.peek();
+                    if (candidate != null && candidate.result.isDone()) {
+                        queue.poll();
+                        continue;
+                    }
+                    if (candidate == null || !first.batchesWith(candidate) || !tokenBucket.tryAcquire()) {
+                        break;
+                    }
+                    batch.add(queue.poll());
+                }
+                send(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error(String.format("The mail dispatcher failed with error: %s", e.getMessage()));
+            }
+        }
+    }
+
+    private void send(List<Outbound> batch) throws InterruptedException {
+        // a batch ends with the first deadline among its emails
+        Deadline deadline = batch.get(0).deadline;
+        for (Outbound outbound : batch) {
+            if (outbound.deadline.getMillis() < deadline.getMillis()) {
+                deadline = outbound.deadline;
+            }
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (!deadline.allows(1)) {
+                    throw SdkClientException.create(String.format("The deadline %s passed before the email was sent", deadline));
+                }
+                if (batch.get(0).template == null) {
+                    SendEmailRequest email = batch.get(0).email.toBuilder().overrideConfiguration(deadline.callTimeout()).build();
+                    SendEmailResponse response = circuitBreaker.call(() -> sesClient.sendEmail(email));
+                    batch.get(0).result.complete(response.sdkHttpResponse().isSuccessful() ? "success" : "error");
+                } else {
+                    SendBulkTemplatedEmailRequest bulk = bulkRequest(batch).toBuilder().overrideConfiguration(deadline.callTimeout()).build();
+                    complete(batch, circuitBreaker.call(() -> sesClient.sendBulkTemplatedEmail(bulk)));
+                }
+                return;
+            } catch (RuntimeException e) {
+                if (!isRetryable(e) || attempt >= maxAttempts || !deadline.allows(baseBackoffMillis)) {
+                    logger.error(String.format("Giving up on %d email(s) after %d attempt(s): %s", batch.size(), attempt, e.getMessage()));
+                    batch.forEach(outbound -> outbound.result.completeExceptionally(e));
+                    return;
+                }
+                if (isThrottle(e)) {
+                    tokenBucket.drain();
+                }
+                long ceilingMillis = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 20));
+                long backoffMillis = Math.min(deadline.remainingMillis(),
+                        ceilingMillis / 2 + ThreadLocalRandom.current().nextLong(ceilingMillis / 2 + 1));
+                logger.warn(String.format("Retrying %d email(s) in %dms after: %s", batch.size(), backoffMillis, e.getMessage()));
+                Thread.sleep(backoffMillis);
+                for (int i = 0; i < batch.size(); i++) {
+                    tokenBucket.acquire();
+                }
+            }
+        }
+    }
+
+    private static SendBulkTemplatedEmailRequest bulkRequest(List<Outbound> batch) {
+        List<BulkEmailDestination> destinations = new ArrayList<>();
+        for (Outbound outbound : batch) {
+            destinations.add(outbound.destination);
+        }
+        return batch.get(0).template.toBuilder().destinations(destinations).build();
+    }
+
+    private static void complete(List<Outbound> batch, SendBulkTemplatedEmailResponse response) {
+        List<BulkEmailDestinationStatus> statuses = response.status();
+        for (int i = 0; i < batch.size(); i++) {
+            BulkEmailDestinationStatus status = i < statuses.size() ? statuses.get(i) : null;
+            if (status != null && status.status() == BulkEmailStatus.SUCCESS) {
+                batch.get(i).result.complete("success");
+            } else {
+                logger.error(String.format("The email to %s was not sent: %s", batch.get(i).destination.destination().toAddresses(),
+                        status == null ? "no status" : status.status() + " " + status.error()));
+                batch.get(i).result.complete("error");
+            }
+        }
+    }
+
+    static boolean isThrottle(Throwable error) {
+        return error instanceof AwsServiceException && ((AwsServiceException) error).isThrottlingException();
+    }
+
+    // throttles, server errors and sends that got no answer, a rejected email or an open circuit is not retried
+    static boolean isRetryable(Throwable error) {
+        if (error instanceof SdkClientException) {
+            return true;
+        }
+        if (error instanceof AwsServiceException) {
+            AwsServiceException serviceException = (AwsServiceException) error;
+            return serviceException.isThrottlingException() || serviceException.statusCode() >= 500;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,146 @@
+package com.twelvefactor.activitypoller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.sfn.model.GetActivityTaskResponse;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the manual inspection tasks of a window into one email.
+ *
+ * The first task after a digest was sent opens the window. The digest is sent when the window closes, as soon
+ * as it holds maxTasks tasks, or when it is flushed because the pollers stopped. Until then the task tokens are
+ * kept alive by the {@link HeartbeatManager}, and a task the state machine gave up on is left out.
+ */
+public class ManualInspectionDigest {
+    private static final Logger logger = LoggerFactory.getLogger(ManualInspectionDigest.class);
+
+    /**
+     * A task waiting for the digest, with the values of its entry in the email.
+     */
+    public static class Task {
+        private final GetActivityTaskResponse response;
+        private final Map<String, String> values;
+
+        public Task(GetActivityTaskResponse response, Map<String, String> values) {
+            this.response = response;
+            this.values = values;
+        }
+
+        public GetActivityTaskResponse getResponse() {
+            return response;
+        }
+
+        public Map<String, String> getValues() {
+            return values;
+        }
+    }
+
+    public interface Sender {
+        /**
+         * Sends the digest of the tasks, failing them when it cannot be sent.
+         */
+        void send(List<Task> tasks);
+    }
+
+    private final Sender sender;
+    private final HeartbeatManager heartbeats;
+    private final ScheduledExecutorService scheduler;
+    private final long windowMillis;
+    private final int maxTasks;
+    private List<Task> pending = new ArrayList<>();
+    private final Map<Task, HeartbeatManager.Lease> leases = new IdentityHashMap<>();
+    private ScheduledFuture<?> windowClose;
+
+    public ManualInspectionDigest(Sender sender, HeartbeatManager heartbeats, ScheduledExecutorService scheduler,
+                                  long windowMillis, int maxTasks) {
+        this.sender = sender;
+        this.heartbeats = heartbeats;
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+        this.maxTasks = Math.max(1, maxTasks);
+    }
+
+    /**
+     * Adds a task to the digest, sending the digest on the calling thread when that fills it.
+     */
+    public void add(Task task) {
+        List<Task> full = null;
+        HeartbeatManager.Lease lease = heartbeats.track(task.getResponse().taskToken(), () -> {
+            logger.warn("Leaving a task out of the digest, the state machine gave up on it");
+            remove(task);
+        });
+        synchronized (this) {
+            leases.put(task, lease);
+            pending.add(task);
+            if (windowClose == null) {
+                windowClose = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+            if (pending.size() >= maxTasks) {
+                full = take();
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    /**
+     * Sends the tasks collected so far.
+     */
+    public void flush() {
+        List<Task> tasks;
+        synchronized (this) {
+            tasks = take();
+        }
+        if (!tasks.isEmpty()) {
+            send(tasks);
+        }
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    private List<Task> take() {
+        if (windowClose != null) {
+            windowClose.cancel(false);
+            windowClose = null;
+        }
+        List<Task> tasks = pending;
+        pending = new ArrayList<>();
+        return tasks;
+    }
+
+    private synchronized void remove(Task task) {
+        pending.remove(task);
+        leases.remove(task);
+    }
+
+    private void send(List<Task> tasks) {
+        logger.info(String.format("Sending a digest of %d manual inspection task(s)", tasks.size()));
+        try {
+            sender.send(tasks);
+        } catch (RuntimeException e) {
+            logger.error(String.format("Failed to send the digest with error: %s", e.getMessage()));
+        } finally {
+            // sent or failed, the tasks are no longer worked on here
+            for (Task task : tasks) {
+                HeartbeatManager.Lease lease;
+                synchronized (this) {
+                    lease = leases.remove(task);
+                }
+                if (lease != null) {
+                    lease.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.twelvefactor.activitypoller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Presigned image links by bucket and key, so that the retries and repeated tasks of an image share a link
+ * instead of signing a new one each time.
+ *
+ * A link is reused while at least minRemainingValidity of it is left, enough for the recipient of the email to
+ * open it, and signed again after that. A link is also signed again when the credentials it was signed with
+ * have changed, as it stops working once those expire. The cache is a bounded LRU that lives as long as the
+ * container.
+ *
+ * The signing keys themselves are not cached here: the SDK signer already keeps the keys it derives per
+ * credentials, day, region and service, as long as the same presigner is used.
+ */
+public class PresignedUrlCache {
+    private static final Logger logger = LoggerFactory.getLogger(PresignedUrlCache.class);
+
+    private static class Link {
+        final String url;
+        final long expiresAtMillis;
+        final String accessKeyId;
+
+        Link(String url, long expiresAtMillis, String accessKeyId) {
+            this.url = url;
+            this.expiresAtMillis = expiresAtMillis;
+            this.accessKeyId = accessKeyId;
+        }
+    }
+
+    private final S3Presigner s3Presigner;
+    private final AwsCredentialsProvider credentialsProvider;
+    private final Duration signatureDuration;
+    private final long minRemainingMillis;
+    private final Clock clock;
+    private final Map<String, Link> links;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public PresignedUrlCache(S3Presigner s3Presigner, AwsCredentialsProvider credentialsProvider, int capacity,
+                             Duration signatureDuration, Duration minRemainingValidity) {
+        this(s3Presigner, credentialsProvider, capacity, signatureDuration, minRemainingValidity, Clock.systemUTC());
+    }
+
+    public PresignedUrlCache(S3Presigner s3Presigner, AwsCredentialsProvider credentialsProvider, int capacity,
+                             Duration signatureDuration, Duration minRemainingValidity, Clock clock) {
+        this.s3Presigner = s3Presigner;
+        this.credentialsProvider = credentialsProvider;
+        this.signatureDuration = signatureDuration;
+        this.minRemainingMillis = minRemainingValidity.toMillis();
+        this.clock = clock;
+        this.links = new LinkedHashMap<String, Link>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Link> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return a link to the object that stays valid for at least minRemainingValidity
+     */
+    public String url(String bucket, String key) {
+        String cacheKey = bucket + "/" + key;
+        String accessKeyId = credentialsProvider.resolveCredentials().accessKeyId();
+        synchronized (links) {
+            Link link = links.get(cacheKey);
+            if (link != null && link.accessKeyId.equals(accessKeyId)
+                    && link.expiresAtMillis - clock.millis() >= minRemainingMillis) {
+                hits.incrementAndGet();
+                return link.url;
+            }
+        }
+        misses.incrementAndGet();
+        // signed outside the lock, two tasks of the same image may both sign, the later link wins
+        PresignedGetObjectRequest presigned = s3Presigner.presignGetObject(GetObjectPresignRequest.builder()
+                .signatureDuration(signatureDuration)
+                .getObjectRequest(GetObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .build())
+                .build());
+        String url = presigned.url().toString();
+        synchronized (links) {
+            links.put(cacheKey, new Link(url, presigned.expiration().toEpochMilli(), accessKeyId));
+        }
+        logger.info(String.format("Signed a link for %s valid until %s (hits=%d, misses=%d)",
+                cacheKey, presigned.expiration(), hits.get(), misses.get()));
+        return url;
+    }
+
+    public int size() {
+        synchronized (links) {
+            return links.size();
+        }
+    }
+
+    /**
+     * @return links reused instead of signed
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return links signed
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
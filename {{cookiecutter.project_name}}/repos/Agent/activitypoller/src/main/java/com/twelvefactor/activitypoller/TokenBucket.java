@@ -0,0 +1,66 @@
+package com.twelvefactor.activitypoller;
+
+/**
+ * Permits refilled at a steady rate up to a capacity, the burst allowed after a quiet period.
+ */
+public class TokenBucket {
+    private final double permitsPerSecond;
+    private final double capacity;
+    private double permits;
+    private long refilledAtNanos;
+
+    public TokenBucket(double permitsPerSecond, double capacity) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.capacity = Math.max(1, capacity);
+        this.permits = this.capacity;
+        this.refilledAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Waits for a permit.
+     */
+    public void acquire() throws InterruptedException {
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                refill();
+                if (permits >= 1) {
+                    permits -= 1;
+                    return;
+                }
+                waitNanos = (long) ((1 - permits) / permitsPerSecond * 1e9);
+            }
+            Thread.sleep(Math.max(1, waitNanos / 1000000), (int) (waitNanos % 1000000));
+        }
+    }
+
+    /**
+     * @return true when a permit was available right away
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (permits >= 1) {
+            permits -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes every permit left, for instance after the service said the rate was exceeded.
+     */
+    public synchronized void drain() {
+        refill();
+        permits = Math.min(permits, 0);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        permits = Math.min(capacity, permits + (now - refilledAtNanos) / 1e9 * permitsPerSecond);
+        refilledAtNanos = now;
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+}
@@ -0,0 +1,36 @@
+package com.twelvefactor.activitypoller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the activity pollers as a long-lived process instead of a scheduled Lambda function.
+ *
+ * The pollers run until the process is asked to stop. On shutdown no new poll is started, and the polls in
+ * flight are waited for so that the tasks they hand out are still processed.
+ */
+public class Worker {
+    private static final Logger logger = LoggerFactory.getLogger(Worker.class);
+    // the longest poll plus the processing of its task
+    private static final long drainSeconds = 90;
+
+    public static void main(String[] args) {
+        App app = new App();
+        ActivityPoller activityPoller = app.getActivityPoller();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Stopping the pollers..");
+            activityPoller.stop();
+            try {
+                if (!activityPoller.awaitStopped(drainSeconds, TimeUnit.SECONDS)) {
+                    logger.warn(String.format("The pollers did not stop within %d seconds", drainSeconds));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        ActivityPoller.Stats stats = app.poll(null, () -> Long.MAX_VALUE, Long.MAX_VALUE);
+        logger.info(String.format("Pollers stopped: %s", stats));
+    }
+}
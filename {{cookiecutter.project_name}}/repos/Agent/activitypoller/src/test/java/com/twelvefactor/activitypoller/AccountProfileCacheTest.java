@@ -0,0 +1,79 @@
+package com.twelvefactor.activitypoller;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConsumedCapacity;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class AccountProfileCacheTest {
+
+    // one account, PCF606, for which every read costs half a unit
+    static class Accounts implements DynamoDbClient {
+        final List<GetItemRequest> requests = new ArrayList<>();
+        String email = "jane@example.com";
+
+        @Override
+        public GetItemResponse getItem(GetItemRequest request) {
+            requests.add(request);
+            Map<String, AttributeValue> item = new HashMap<>();
+            if (request.key().get("numberPlate").s().equals("PCF606")) {
+                item.put("ownerEmail", AttributeValue.builder().s(email).build());
+                item.put("ownerFirstName", AttributeValue.builder().s("Jane").build());
+                item.put("ownerLastName", AttributeValue.builder().s("Doe").build());
+            }
+            return GetItemResponse.builder()
+                    .item(item)
+                    .consumedCapacity(ConsumedCapacity.builder().tableName(request.tableName()).capacityUnits(0.5).build())
+                    .build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "dynamodb";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void profile_shouldReadOnlyTheOwnerOnceUntilItIsTooOldOrInvalidated() {
+        PresignedUrlCacheTest.MutableClock clock = new PresignedUrlCacheTest.MutableClock();
+        Accounts accounts = new Accounts();
+        AccountProfileCache cache = new AccountProfileCache(accounts, new CircuitBreaker("dynamodb", 5, Duration.ofSeconds(30)),
+                "accounts", 10, Duration.ofMinutes(5), clock);
+
+        assertEquals("jane@example.com", cache.profile("PCF606").getEmail());
+        assertEquals("Doe", cache.profile("PCF606").getLastName());
+        assertEquals(1, accounts.requests.size());
+        assertEquals("#email, #firstName, #lastName", accounts.requests.get(0).projectionExpression());
+        assertEquals("ownerEmail", accounts.requests.get(0).expressionAttributeNames().get("#email"));
+
+        accounts.email = "jane.doe@example.com";
+        cache.invalidate("PCF606");
+        assertEquals("jane.doe@example.com", cache.profile("PCF606").getEmail());
+        clock.advance(Duration.ofMinutes(6));
+        cache.profile("PCF606");
+        assertEquals(3, accounts.requests.size());
+
+        // a vehicle without an account is looked up again every time
+        assertNull(cache.profile("UNKNOWN"));
+        assertNull(cache.profile("UNKNOWN"));
+        assertEquals(5, accounts.requests.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(0.5, cache.getSavedReadCapacityUnits(), 1e-9);
+        assertEquals(1.0 / 6, cache.getHitRatio(), 1e-9);
+    }
+}
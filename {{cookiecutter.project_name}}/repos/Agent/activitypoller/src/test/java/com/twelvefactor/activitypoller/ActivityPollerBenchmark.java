@@ -0,0 +1,132 @@
+package com.twelvefactor.activitypoller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import software.amazon.awssdk.services.sfn.SfnClient;
+import software.amazon.awssdk.services.sfn.model.GetActivityTaskRequest;
+import software.amazon.awssdk.services.sfn.model.GetActivityTaskResponse;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time to drain a backlog of tasks by the number of pollers per activity, on platform and on virtual threads.
+ * Polls and task pipelines only wait, as they do on step functions, ses and dynamodb, so the throughput is
+ * backlog / time and should grow with the pollers until the threads run out.
+ *
+ * Virtual threads need java 21, on older runtimes both thread settings measure platform threads.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.twelvefactor.activitypoller.ActivityPollerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ActivityPollerBenchmark {
+    private static final int backlog = 1024;
+    // a poll that finds a task answers quickly, an empty one is held for longer
+    private static final long pollMillis = 5;
+    private static final long emptyPollMillis = 50;
+    // presign, dynamodb and ses
+    private static final long pipelineMillis = 40;
+
+    @Param({"1", "8", "64", "256"})
+    public int pollers;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    private ExecutorService executor;
+    private SimulatedActivity sfnClient;
+    private ActivityPoller activityPoller;
+    private List<ActivityPoller.Activity> activities;
+    private final AtomicInteger processed = new AtomicInteger();
+
+    // hands out the tasks of its backlog with the latency of a long poll
+    static class SimulatedActivity implements SfnClient {
+        final AtomicInteger remaining = new AtomicInteger();
+
+        @Override
+        public GetActivityTaskResponse getActivityTask(GetActivityTaskRequest request) {
+            if (remaining.getAndDecrement() <= 0) {
+                sleep(emptyPollMillis);
+                return GetActivityTaskResponse.builder().build();
+            }
+            sleep(pollMillis);
+            return GetActivityTaskResponse.builder().taskToken("token").input("{}").build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "states";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        executor = DependencyFactory.pollerExecutor(threads);
+        sfnClient = new SimulatedActivity();
+        activityPoller = new ActivityPoller(sfnClient, new CircuitBreaker("sfn", 5, Duration.ofSeconds(30)), executor, 0, 0);
+        activities = Arrays.asList(
+                new ActivityPoller.Activity("insufficient-credit", "insufficient-credit-worker", pollers, this::process),
+                new ActivityPoller.Activity("unknown-number-plate", "unknown-number-plate-worker", pollers, this::process));
+    }
+
+    // the two activities share the backlog, the run stops once all of it is processed
+    private String process(GetActivityTaskResponse task) {
+        sleep(pipelineMillis);
+        if (processed.incrementAndGet() == backlog) {
+            activityPoller.stop();
+        }
+        return "success";
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public ActivityPoller.Stats drainBacklog() {
+        processed.set(0);
+        sfnClient.remaining.set(backlog);
+        return activityPoller.run(activities, () -> Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ActivityPollerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
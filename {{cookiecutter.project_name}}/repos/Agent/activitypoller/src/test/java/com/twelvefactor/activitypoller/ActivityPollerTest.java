@@ -0,0 +1,154 @@
+package com.twelvefactor.activitypoller;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sfn.SfnClient;
+import software.amazon.awssdk.services.sfn.model.GetActivityTaskRequest;
+import software.amazon.awssdk.services.sfn.model.GetActivityTaskResponse;
+import software.amazon.awssdk.services.sfn.model.SendTaskFailureRequest;
+import software.amazon.awssdk.services.sfn.model.SendTaskFailureResponse;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ActivityPollerTest {
+
+    // hands out a backlog of tasks, then polls that come back empty
+    static class Backlog implements SfnClient {
+        final AtomicInteger remaining;
+        final AtomicInteger polls = new AtomicInteger();
+        final Map<String, String> failures = new ConcurrentHashMap<>();
+
+        Backlog(int tasks) {
+            remaining = new AtomicInteger(tasks);
+        }
+
+        @Override
+        public GetActivityTaskResponse getActivityTask(GetActivityTaskRequest request) {
+            polls.incrementAndGet();
+            int task = remaining.getAndDecrement();
+            if (task <= 0) {
+                sleep(5);
+                return GetActivityTaskResponse.builder().build();
+            }
+            return GetActivityTaskResponse.builder().taskToken("token-" + task).input("{}").build();
+        }
+
+        @Override
+        public SendTaskFailureResponse sendTaskFailure(SendTaskFailureRequest request) {
+            failures.put(request.taskToken(), request.error());
+            return SendTaskFailureResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "states";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static ActivityPoller poller(SfnClient sfnClient, ExecutorService executor, long minRemainingMillis) {
+        return new ActivityPoller(sfnClient, new CircuitBreaker("sfn", 5, Duration.ofSeconds(30)), executor, minRemainingMillis, 100);
+    }
+
+    @Test
+    public void run_shouldDrainTheBacklogUntilTheDeadline() {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Backlog sfnClient = new Backlog(50);
+        Set<String> processed = ConcurrentHashMap.newKeySet();
+        ActivityPoller activityPoller = poller(sfnClient, executor, 1000);
+        // the remaining time drops by 10ms per check and reaches the minimum after 200 checks
+        AtomicLong remainingMillis = new AtomicLong(3000);
+
+        ActivityPoller.Stats stats = activityPoller.run(Collections.singletonList(
+                new ActivityPoller.Activity("arn", "worker", 4, task -> {
+                    processed.add(task.taskToken());
+                    return "success";
+                })), () -> remainingMillis.addAndGet(-10), Long.MAX_VALUE);
+
+        assertEquals(50, processed.size());
+        assertEquals(50, stats.getTasks());
+        assertEquals(sfnClient.polls.get(), stats.getPolls());
+        assertTrue(remainingMillis.get() <= 1000);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void stop_shouldLetThePollsInFlightFinishTheirTasks() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Backlog sfnClient = new Backlog(Integer.MAX_VALUE);
+        AtomicInteger handedOut = new AtomicInteger();
+        AtomicInteger processed = new AtomicInteger();
+        ActivityPoller activityPoller = poller(sfnClient, executor, 0);
+        Thread worker = new Thread(() -> activityPoller.run(Collections.singletonList(
+                new ActivityPoller.Activity("arn", "worker", 3, task -> {
+                    handedOut.incrementAndGet();
+                    sleep(2);
+                    processed.incrementAndGet();
+                    return "success";
+                })), () -> Long.MAX_VALUE, Long.MAX_VALUE));
+        worker.start();
+        sleep(50);
+
+        activityPoller.stop();
+
+        assertTrue(activityPoller.awaitStopped(5, TimeUnit.SECONDS));
+        assertTrue(handedOut.get() > 0);
+        assertEquals(handedOut.get(), processed.get());
+        worker.join();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void run_shouldFailAndCancelPipelinesStillRunningAtTheDeadline() {
+        ExecutorService executor = DependencyFactory.pollerExecutor("virtual");
+        Backlog sfnClient = new Backlog(2);
+        AtomicInteger interrupted = new AtomicInteger();
+        ActivityPoller activityPoller = poller(sfnClient, executor, 0);
+        long deadline = System.currentTimeMillis() + 300;
+
+        ActivityPoller.Stats stats = activityPoller.run(Collections.singletonList(
+                new ActivityPoller.Activity("arn", "worker", 2, task -> {
+                    try {
+                        // a pipeline stuck well past the deadline
+                        Thread.sleep(60000);
+                    } catch (InterruptedException e) {
+                        interrupted.incrementAndGet();
+                    }
+                    return "error";
+                })), () -> deadline - System.currentTimeMillis(), Long.MAX_VALUE);
+
+        assertEquals(2, stats.getCancelled());
+        assertTrue(System.currentTimeMillis() < deadline + 1000);
+        // the tasks are handed back for the state machine to catch, not left to time out
+        assertEquals(2, sfnClient.failures.size());
+        assertEquals(App.DeadlineExceededError.class.getName(), sfnClient.failures.get("token-1"));
+        // the pipelines are interrupted, not left running
+        for (int i = 0; i < 100 && interrupted.get() < 2; i++) {
+            sleep(10);
+        }
+        assertEquals(2, interrupted.get());
+        executor.shutdownNow();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
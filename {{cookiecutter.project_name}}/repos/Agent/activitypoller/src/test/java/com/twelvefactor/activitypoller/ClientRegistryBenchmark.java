@@ -0,0 +1,83 @@
+package com.twelvefactor.activitypoller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.ses.SesClient;
+import software.amazon.awssdk.services.sfn.SfnClient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the clients an invocation used to build, four per handler, with the clients of the shared
+ * {@link ClientRegistry}. Run with -prof gc for the bytes allocated per invocation.
+ *
+ * The time of the first call with and without ClientPriming needs AWS, it is logged by the function at init.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.twelvefactor.activitypoller.ClientRegistryBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientRegistryBenchmark {
+    private static final Region region = Region.US_EAST_1;
+
+    @Benchmark
+    public void perHandlerClients(Blackhole blackhole) {
+        // what the two handler constructors did on every invocation
+        for (int handler = 0; handler < 2; handler++) {
+            S3Presigner s3Presigner = S3Presigner.builder()
+                    .credentialsProvider(EnvironmentVariableCredentialsProvider.create())
+                    .region(region)
+                    .build();
+            SesClient sesClient = SesClient.builder().region(region).build();
+            SfnClient sfnClient = SfnClient.builder().region(region).build();
+            DynamoDbClient dynamoDbClient = DynamoDbClient.builder()
+                    .credentialsProvider(EnvironmentVariableCredentialsProvider.create())
+                    .region(region)
+                    .build();
+            blackhole.consume(s3Presigner);
+            blackhole.consume(sesClient);
+            blackhole.consume(sfnClient);
+            blackhole.consume(dynamoDbClient);
+            s3Presigner.close();
+            sesClient.close();
+            sfnClient.close();
+            dynamoDbClient.close();
+        }
+    }
+
+    @Benchmark
+    public void sharedRegistry(Blackhole blackhole) {
+        ClientRegistry clients = ClientRegistry.shared();
+        for (int handler = 0; handler < 2; handler++) {
+            blackhole.consume(clients.s3Presigner());
+            blackhole.consume(clients.sesClient());
+            blackhole.consume(clients.sfnClient());
+            blackhole.consume(clients.dynamoDbClient());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ClientRegistryBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
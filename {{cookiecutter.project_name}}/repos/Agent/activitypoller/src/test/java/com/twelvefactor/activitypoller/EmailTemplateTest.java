@@ -0,0 +1,130 @@
+package com.twelvefactor.activitypoller;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EmailTemplateTest {
+
+    @Test
+    public void bundledTemplates_shouldRenderTheEmailsTheHandlersUsedToFormat() throws Exception {
+        EmailTemplates templates = new EmailTemplates(App.notificationVariables, EmailTemplates.resources(), null, Duration.ZERO);
+        String imageLink = "https://images.s3.amazonaws.com/plate.jpg";
+        String apiEndpoint = "https://api.example.com/";
+        String taskToken = "AAAA/bbbb+cccc==";
+
+        Map<String, String> values = new HashMap<>();
+        values.put("firstName", "Jane");
+        values.put("lastName", "Doe");
+        values.put("numberPlate", "PCF606");
+        values.put("imageLink", imageLink);
+        values.put("apiEndpoint", apiEndpoint);
+        values.put("taskToken", taskToken);
+        EmailTemplates.Email email = templates.render(App.insufficientCreditNotification, values);
+
+        String encodedToken = URLEncoder.encode(taskToken, StandardCharsets.UTF_8.toString());
+        assertEquals("[ACTION] - Your account credit is exhausted", email.getSubject());
+        assertEquals(String.format("Hello %1$s %2$s, Your vehicle with number plate: %3$s was recently detected on a toll road, but your account has insufficient credit to pay the toll." +
+                        "Please update your account balance immediately to avoid a fine." +
+                        "Please access this link to top up: %4$stopup/%3$s?taskToken=%5$s" +
+                        ".. Thanks. Toll Road Administrator.",
+                "Jane", "Doe", "PCF606", apiEndpoint, encodedToken), email.getText());
+        assertEquals(String.format("Hello %1$s %2$s,<br/><br/>Your vehicle with number plate <b>%3$s</b> was recently detected on a toll road, but your account has insufficient credit to pay the toll.<br/><br/>" +
+                        "<img src='%4$s'/><br/><a href='%4$s'>Click here to see the original image</a><br/><br/>" +
+                        "Please update your account balance immediately to avoid a fine. <br/>" +
+                        "<a href='%5$stopup/%3$s?taskToken=%6$s'><b>Click this link to top up your account now.</b></a><br/>" +
+                        "<br/><br/> Thanks<br/><b>Toll Road Administrator.</b><br/><br/>",
+                "Jane", "Doe", "PCF606", imageLink, apiEndpoint, encodedToken), email.getHtml());
+
+        values = new HashMap<>();
+        values.put("mailTo", "admin@example.com");
+        values.put("imageLink", imageLink);
+        values.put("apiEndpoint", apiEndpoint);
+        values.put("bucket", "images");
+        values.put("key", "plate.jpg");
+        values.put("taskToken", taskToken);
+        email = templates.render(App.manualInspectionNotification, values);
+
+        assertEquals(String.format("Hello %1$s, An image was captured at a toll booth, " +
+                        "but the Number Plate Processor could not be confident that it could determine the actual number plate on the vehicle. We need your help to take a look at the image," +
+                        "and make a determination." +
+                        "Please access this link to take a decision: %3$sparse/%4$s/%5$s/5?imageLink=%7$s&taskToken=%6$s" +
+                        " .. Thanks. Toll Road Administrator",
+                "admin@example.com", imageLink, apiEndpoint, "images", "plate.jpg", encodedToken,
+                URLEncoder.encode(imageLink, StandardCharsets.UTF_8.toString())), email.getText());
+    }
+
+    @Test
+    public void render_shouldListEveryTaskOfADigest() {
+        EmailTemplates templates = new EmailTemplates(App.notificationVariables, EmailTemplates.resources(), null, Duration.ZERO);
+        Map<String, String> values = new HashMap<>();
+        values.put("mailTo", "admin@example.com");
+        values.put("count", "2");
+        List<Map<String, String>> items = new ArrayList<>();
+        for (String key : Arrays.asList("first.jpg", "second<.jpg")) {
+            Map<String, String> item = new HashMap<>();
+            item.put("imageLink", "https://images.s3.amazonaws.com/" + key);
+            item.put("apiEndpoint", "https://api.example.com/");
+            item.put("bucket", "images");
+            item.put("key", key);
+            item.put("taskToken", "token-" + key);
+            items.add(item);
+        }
+        EmailTemplates.Email email = templates.render(App.manualInspectionDigestNotification, values, items);
+
+        assertEquals("[ACTION] - Manual Decision Required for 2 images!", email.getSubject());
+        assertTrue(email.getText().contains("parse/images/first.jpg/5?imageLink=https%3A%2F%2Fimages.s3.amazonaws.com%2Ffirst.jpg&taskToken=token-first.jpg"));
+        assertTrue(email.getText().contains("taskToken=token-second%3C.jpg"));
+        assertTrue(email.getHtml().contains("<img src='https://images.s3.amazonaws.com/first.jpg'/>"));
+        assertTrue(email.getHtml().contains("<img src='https://images.s3.amazonaws.com/second&lt;.jpg'/>"));
+        assertThrows(IllegalArgumentException.class, () -> templates.render(App.manualInspectionNotification, values, items));
+    }
+
+    @Test
+    public void render_shouldEscapeValuesInOnePass() throws Exception {
+        Set<String> variables = new HashSet<>(Arrays.asList("name", "link"));
+        EmailTemplate template = EmailTemplate.compile("<b>${name}</b> <a href='?l=${link|url}'>${link}</a>", true, variables);
+        String link = "https://x/a b?c=d&e=\u00fc\u20ac\uD834\uDD1E";
+        Map<String, String> values = new HashMap<>();
+        values.put("name", "O'Brien <script>");
+        values.put("link", link);
+
+        assertEquals("<b>O&#39;Brien &lt;script&gt;</b> <a href='?l=" + URLEncoder.encode(link, StandardCharsets.UTF_8.toString())
+                + "'>https://x/a b?c=d&amp;e=\u00fc\u20ac\uD834\uDD1E</a>", template.render(values));
+        assertThrows(IllegalArgumentException.class, () -> EmailTemplate.compile("Hello ${owner}", false, variables));
+        assertThrows(IllegalArgumentException.class, () -> EmailTemplate.compile("Hello ${name|upper}", false, variables));
+    }
+
+    @Test
+    public void render_shouldKeepTheTemplatesInUseWhenAnOverrideDoesNotCompile() {
+        Map<String, Set<String>> notifications = new HashMap<>();
+        notifications.put("greeting", new HashSet<>(Arrays.asList("name")));
+        Map<String, String> bundled = new HashMap<>();
+        bundled.put("greeting.subject.txt", "Hi");
+        bundled.put("greeting.text.txt", "Hello ${name}\n");
+        bundled.put("greeting.html.html", "<p>Hello ${name}</p>");
+        Map<String, String> override = new HashMap<>();
+        EmailTemplates templates = new EmailTemplates(notifications, bundled::get, override::get, Duration.ZERO);
+        Map<String, String> values = new HashMap<>();
+        values.put("name", "Jane");
+
+        assertEquals("Hello Jane", templates.render("greeting", values).getText());
+        override.put("greeting.text.txt", "Welcome ${name}");
+        assertEquals("Welcome Jane", templates.render("greeting", values).getText());
+        override.put("greeting.text.txt", "Welcome ${owner}");
+        assertEquals("Welcome Jane", templates.render("greeting", values).getText());
+    }
+}
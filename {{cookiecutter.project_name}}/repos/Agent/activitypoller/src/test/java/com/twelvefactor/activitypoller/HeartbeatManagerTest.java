@@ -0,0 +1,62 @@
+package com.twelvefactor.activitypoller;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HeartbeatManagerTest {
+
+    @Test
+    public void beatDue_shouldBeatEachTrackedTokenOncePerIntervalUntilItsLeasesAreReleased() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        PresignedUrlCacheTest.MutableClock clock = new PresignedUrlCacheTest.MutableClock();
+        List<String> beats = new ArrayList<>();
+        // the interval is an hour of the real clock, the passes are only the ones run by the test
+        HeartbeatManager heartbeats = new HeartbeatManager(taskToken -> {
+            beats.add(taskToken);
+            return !taskToken.equals("timed-out");
+        }, scheduler, Duration.ofHours(1).toMillis(), clock);
+
+        HeartbeatManager.Lease handler = heartbeats.track("shared");
+        HeartbeatManager.Lease digest = heartbeats.track("shared");
+        AtomicBoolean told = new AtomicBoolean();
+        HeartbeatManager.Lease timedOut = heartbeats.track("timed-out", () -> told.set(true));
+        heartbeats.beatDue();
+        assertTrue(beats.isEmpty());
+
+        clock.advance(Duration.ofHours(1));
+        heartbeats.beatDue();
+        heartbeats.beatDue();
+        // one call for the two leases on the same token, and none on the second pass
+        assertEquals(2, beats.size());
+        assertTrue(beats.containsAll(List.of("shared", "timed-out")));
+        assertTrue(told.get());
+        assertTrue(timedOut.isLost());
+        assertFalse(handler.isLost());
+
+        // the token stays tracked while the digest still holds it
+        handler.close();
+        handler.close();
+        clock.advance(Duration.ofHours(1));
+        heartbeats.beatDue();
+        assertEquals(3, beats.size());
+        digest.close();
+        timedOut.close();
+        clock.advance(Duration.ofHours(1));
+        heartbeats.beatDue();
+        scheduler.shutdownNow();
+
+        assertEquals(3, beats.size());
+        assertEquals(0, heartbeats.size());
+        assertEquals(1, heartbeats.getLost());
+    }
+}
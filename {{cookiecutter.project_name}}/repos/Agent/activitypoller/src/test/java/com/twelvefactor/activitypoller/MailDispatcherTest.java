@@ -0,0 +1,137 @@
+package com.twelvefactor.activitypoller;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.ses.SesClient;
+import software.amazon.awssdk.services.ses.model.BulkEmailDestination;
+import software.amazon.awssdk.services.ses.model.BulkEmailDestinationStatus;
+import software.amazon.awssdk.services.ses.model.BulkEmailStatus;
+import software.amazon.awssdk.services.ses.model.Destination;
+import software.amazon.awssdk.services.ses.model.SendBulkTemplatedEmailRequest;
+import software.amazon.awssdk.services.ses.model.SendBulkTemplatedEmailResponse;
+import software.amazon.awssdk.services.ses.model.SendEmailRequest;
+import software.amazon.awssdk.services.ses.model.SendEmailResponse;
+import software.amazon.awssdk.services.ses.model.SesException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MailDispatcherTest {
+
+    // throttles the first sends, then accepts every email
+    static class Ses implements SesClient {
+        final AtomicInteger throttles;
+        final AtomicInteger sends = new AtomicInteger();
+        final List<Integer> bulkSizes = new ArrayList<>();
+
+        Ses(int throttles) {
+            this.throttles = new AtomicInteger(throttles);
+        }
+
+        private void maybeThrottle() {
+            sends.incrementAndGet();
+            if (throttles.getAndDecrement() > 0) {
+                throw (SesException) SesException.builder()
+                        .statusCode(400)
+                        .awsErrorDetails(AwsErrorDetails.builder().errorCode("Throttling").errorMessage("Maximum sending rate exceeded.").build())
+                        .build();
+            }
+        }
+
+        @Override
+        public SendEmailResponse sendEmail(SendEmailRequest request) {
+            maybeThrottle();
+            return (SendEmailResponse) SendEmailResponse.builder().messageId("id")
+                    .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build()).build();
+        }
+
+        @Override
+        public SendBulkTemplatedEmailResponse sendBulkTemplatedEmail(SendBulkTemplatedEmailRequest request) {
+            maybeThrottle();
+            bulkSizes.add(request.destinations().size());
+            List<BulkEmailDestinationStatus> statuses = new ArrayList<>();
+            for (BulkEmailDestination destination : request.destinations()) {
+                statuses.add(BulkEmailDestinationStatus.builder().status(BulkEmailStatus.SUCCESS).messageId("id").build());
+            }
+            return SendBulkTemplatedEmailResponse.builder().status(statuses).build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "email";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static MailDispatcher dispatcher(SesClient sesClient, TokenBucket tokenBucket, int queueCapacity) {
+        return new MailDispatcher(sesClient, new CircuitBreaker("ses", 5, Duration.ofSeconds(30)), tokenBucket, queueCapacity, 4, 1, 5);
+    }
+
+    private static SendEmailRequest email(String to) {
+        return SendEmailRequest.builder().source("toll@example.com")
+                .destination(Destination.builder().toAddresses(to).build()).build();
+    }
+
+    private static BulkEmailDestination destination(String to) {
+        return BulkEmailDestination.builder().destination(Destination.builder().toAddresses(to).build())
+                .replacementTemplateData("{}").build();
+    }
+
+    @Test
+    public void submit_shouldRetryThrottledSendsAndPaceThemAtTheBucketRate() throws Exception {
+        Ses ses = new Ses(2);
+        MailDispatcher mailDispatcher = dispatcher(ses, new TokenBucket(20, 1), 10).start();
+
+        long startNanos = System.nanoTime();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(mailDispatcher.submit(email("owner" + i + "@example.com"), Deadline.after(1000)));
+        }
+        for (CompletableFuture<String> result : results) {
+            assertEquals("success", result.get(10, TimeUnit.SECONDS));
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        mailDispatcher.stop();
+
+        assertEquals(7, ses.sends.get());
+        // 5 emails and 2 retries after the first permit, at 20 per second
+        assertTrue(elapsedMillis >= 250, "sent in " + elapsedMillis + "ms");
+    }
+
+    @Test
+    public void submit_shouldBatchTheQueuedTemplatedEmailsAndPushBackWhenTheQueueIsFull() throws Exception {
+        Ses ses = new Ses(0);
+        MailDispatcher mailDispatcher = dispatcher(ses, new TokenBucket(100, 10), 3);
+        SendBulkTemplatedEmailRequest template = SendBulkTemplatedEmailRequest.builder()
+                .source("toll@example.com").template("manual-inspection").defaultTemplateData("{}").build();
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(mailDispatcher.submit(template, destination("owner" + i + "@example.com"), Deadline.after(1000)));
+        }
+        CompletableFuture<String> rejected = mailDispatcher.submit(template, destination("late@example.com"), Deadline.after(10));
+        mailDispatcher.start();
+        for (CompletableFuture<String> result : results) {
+            assertEquals("success", result.get(10, TimeUnit.SECONDS));
+        }
+        mailDispatcher.stop();
+
+        ExecutionException error = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(error.getCause() instanceof IllegalStateException);
+        assertEquals(1, ses.bulkSizes.size());
+        assertEquals(3, (int) ses.bulkSizes.get(0));
+    }
+}
@@ -0,0 +1,86 @@
+package com.twelvefactor.activitypoller;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sfn.model.GetActivityTaskResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ManualInspectionDigestTest {
+
+    private static ManualInspectionDigest.Task task(String taskToken) {
+        return new ManualInspectionDigest.Task(GetActivityTaskResponse.builder().taskToken(taskToken).build(),
+                Collections.singletonMap("taskToken", taskToken));
+    }
+
+    private static List<String> tokens(List<ManualInspectionDigest.Task> tasks) {
+        List<String> tokens = new ArrayList<>();
+        for (ManualInspectionDigest.Task task : tasks) {
+            tokens.add(task.getResponse().taskToken());
+        }
+        return tokens;
+    }
+
+    @Test
+    public void add_shouldSendOneDigestPerWindowOrWhenFull() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        List<List<String>> digests = new CopyOnWriteArrayList<>();
+        HeartbeatManager heartbeats = new HeartbeatManager(taskToken -> true, scheduler, 1000);
+        ManualInspectionDigest digest = new ManualInspectionDigest(tasks -> digests.add(tokens(tasks)),
+                heartbeats, scheduler, 200, 3);
+
+        digest.add(task("a"));
+        digest.add(task("b"));
+        assertTrue(digests.isEmpty());
+        for (int i = 0; i < 100 && digests.isEmpty(); i++) {
+            Thread.sleep(20);
+        }
+        digest.add(task("c"));
+        digest.add(task("d"));
+        digest.add(task("e"));
+        digest.add(task("f"));
+        digest.flush();
+        scheduler.shutdownNow();
+
+        assertEquals(0, heartbeats.size());
+        assertEquals(3, digests.size());
+        assertEquals(List.of("a", "b"), digests.get(0));
+        assertEquals(List.of("c", "d", "e"), digests.get(1));
+        assertEquals(List.of("f"), digests.get(2));
+    }
+
+    @Test
+    public void heartbeat_shouldLeaveOutTheTasksTheStateMachineGaveUpOn() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        Set<String> beats = ConcurrentHashMap.newKeySet();
+        List<List<String>> digests = new CopyOnWriteArrayList<>();
+        HeartbeatManager heartbeats = new HeartbeatManager(taskToken -> {
+            beats.add(taskToken);
+            return !taskToken.equals("timed-out");
+        }, scheduler, 20);
+        ManualInspectionDigest digest = new ManualInspectionDigest(tasks -> digests.add(tokens(tasks)),
+                heartbeats, scheduler, 60000, 50);
+
+        digest.add(task("waiting"));
+        digest.add(task("timed-out"));
+        for (int i = 0; i < 100 && digest.getPending() > 1; i++) {
+            Thread.sleep(20);
+        }
+        digest.flush();
+        scheduler.shutdownNow();
+
+        assertTrue(beats.contains("waiting"));
+        assertEquals(0, heartbeats.size());
+        assertEquals(1, digests.size());
+        assertEquals(List.of("waiting"), digests.get(0));
+    }
+}
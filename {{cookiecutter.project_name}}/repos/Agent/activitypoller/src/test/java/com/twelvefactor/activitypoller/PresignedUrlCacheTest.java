@@ -0,0 +1,152 @@
+package com.twelvefactor.activitypoller;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.http.SdkHttpFullRequest;
+import software.amazon.awssdk.http.SdkHttpMethod;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.AbortMultipartUploadPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.CompleteMultipartUploadPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.CreateMultipartUploadPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedAbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedCompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedCreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedUploadPartRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.UploadPartPresignRequest;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class PresignedUrlCacheTest {
+
+    @Test
+    public void url_shouldBeReusedUntilItNearsExpiry() {
+        MutableClock clock = new MutableClock();
+        CountingPresigner presigner = new CountingPresigner(clock);
+        PresignedUrlCache cache = new PresignedUrlCache(presigner, () -> credentials("AKIA1"), 10,
+                Duration.ofDays(1), Duration.ofHours(12), clock);
+
+        String first = cache.url("images", "plate.jpg");
+        clock.advance(Duration.ofHours(11));
+        assertEquals(first, cache.url("images", "plate.jpg"));
+        assertEquals(1, presigner.signed);
+
+        // less than 12 hours of the link are left, it is signed again
+        clock.advance(Duration.ofHours(2));
+        assertNotEquals(first, cache.url("images", "plate.jpg"));
+        assertEquals(2, presigner.signed);
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void url_shouldBeSignedAgainWithNewCredentials() {
+        MutableClock clock = new MutableClock();
+        CountingPresigner presigner = new CountingPresigner(clock);
+        String[] accessKeyId = {"AKIA1"};
+        PresignedUrlCache cache = new PresignedUrlCache(presigner, () -> credentials(accessKeyId[0]), 10,
+                Duration.ofDays(1), Duration.ofHours(12), clock);
+
+        cache.url("images", "plate.jpg");
+        cache.url("images", "other.jpg");
+        accessKeyId[0] = "AKIA2";
+        cache.url("images", "plate.jpg");
+
+        assertEquals(3, presigner.signed);
+        assertEquals(2, cache.size());
+    }
+
+    private static AwsCredentials credentials(String accessKeyId) {
+        return AwsBasicCredentials.create(accessKeyId, "secret");
+    }
+
+    // signs links that differ by a counter and expire after the requested duration
+    private static class CountingPresigner implements S3Presigner {
+        private final Clock clock;
+        int signed;
+
+        CountingPresigner(Clock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public PresignedGetObjectRequest presignGetObject(GetObjectPresignRequest request) {
+            signed++;
+            return PresignedGetObjectRequest.builder()
+                    .expiration(clock.instant().plus(request.signatureDuration()))
+                    .isBrowserExecutable(true)
+                    .signedHeaders(Collections.singletonMap("host", Collections.singletonList("images.s3.amazonaws.com")))
+                    .httpRequest(SdkHttpFullRequest.builder()
+                            .method(SdkHttpMethod.GET)
+                            .protocol("https")
+                            .host(request.getObjectRequest().bucket() + ".s3.amazonaws.com")
+                            .encodedPath("/" + request.getObjectRequest().key())
+                            .putRawQueryParameter("X-Amz-Signature", String.valueOf(signed))
+                            .build())
+                    .build();
+        }
+
+        @Override
+        public PresignedPutObjectRequest presignPutObject(PutObjectPresignRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PresignedCreateMultipartUploadRequest presignCreateMultipartUpload(CreateMultipartUploadPresignRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PresignedUploadPartRequest presignUploadPart(UploadPartPresignRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PresignedCompleteMultipartUploadRequest presignCompleteMultipartUpload(CompleteMultipartUploadPresignRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PresignedAbortMultipartUploadRequest presignAbortMultipartUpload(AbortMultipartUploadPresignRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static class MutableClock extends Clock {
+        private Instant now = Instant.parse("2021-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.twelvefactor.activitypoller;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Every error the poller hands back with SendTaskFailure is named after its class, and a name the state machine
+ * neither retries nor catches fails the whole execution. Checks the activity states of the Process stage against
+ * the errors of {@link App}.
+ */
+public class StateMachineErrorsTest {
+    private static final Path process = Paths.get("../../Process");
+    private static final Set<String> activities = new HashSet<>();
+
+    static {
+        activities.add("${manualInspectionArn}");
+        activities.add("${insufficientCreditArn}");
+    }
+
+    @Test
+    public void finalDefinition_shouldRetryOrCatchEveryErrorOfTheWorker() throws IOException {
+        assertHandled(process.resolve("final_stepfunction_definition.yml"));
+    }
+
+    @Test
+    public void template_shouldRetryOrCatchEveryErrorOfTheWorker() throws IOException {
+        assertHandled(process.resolve("template.full.yml"));
+    }
+
+    private static void assertHandled(Path definition) throws IOException {
+        assumeTrue(Files.exists(definition), String.format("%s is not checked out next to this function", definition));
+        List<JsonObject> tasks = new ArrayList<>();
+        activityTasks(JsonParser.parseString(readDefinition(definition)).getAsJsonObject(), tasks);
+        assertFalse(tasks.isEmpty());
+
+        List<String> unhandled = new ArrayList<>();
+        for (JsonObject task : tasks) {
+            Set<String> handled = new HashSet<>();
+            errorNames(task, "Retry", handled);
+            errorNames(task, "Catch", handled);
+            for (String error : workerErrors()) {
+                if (!handled.contains(error)) {
+                    unhandled.add(task.get("Resource").getAsString() + " " + error);
+                }
+            }
+        }
+        assertEquals(new ArrayList<String>(), unhandled);
+    }
+
+    // the error name of every RuntimeException the worker declares
+    private static List<String> workerErrors() {
+        List<String> errors = new ArrayList<>();
+        for (Class<?> type : App.class.getDeclaredClasses()) {
+            if (RuntimeException.class.isAssignableFrom(type)) {
+                errors.add(type.getName());
+            }
+        }
+        return errors;
+    }
+
+    private static void activityTasks(JsonObject machine, List<JsonObject> tasks) {
+        for (Map.Entry<String, JsonElement> state : machine.getAsJsonObject("States").entrySet()) {
+            JsonObject body = state.getValue().getAsJsonObject();
+            if (body.has("Iterator")) {
+                activityTasks(body.getAsJsonObject("Iterator"), tasks);
+            } else if (body.has("Resource") && activities.contains(body.get("Resource").getAsString())) {
+                tasks.add(body);
+            }
+        }
+    }
+
+    private static void errorNames(JsonObject task, String field, Set<String> names) {
+        if (task.has(field)) {
+            for (JsonElement rule : task.getAsJsonArray(field)) {
+                rule.getAsJsonObject().getAsJsonArray("ErrorEquals").forEach(name -> names.add(name.getAsString()));
+            }
+        }
+    }
+
+    // the definition is the json document of the Fn::Sub, the substitutions after it are yaml
+    private static String readDefinition(Path template) throws IOException {
+        String text = new String(Files.readAllBytes(template), StandardCharsets.UTF_8);
+        int start = text.indexOf('{', text.indexOf("- |-"));
+        return text.substring(start, text.lastIndexOf('}', text.indexOf("\n          - ", start)) + 1);
+    }
+}
@@ -0,0 +1,170 @@
+package com.twelvefactor.platedetected;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Client-side concurrency limit and retries for one dynamodb table.
+ *
+ * The limit follows the table's health: it grows by one per limit's worth of fast, successful calls, shrinks by
+ * a tenth when the smoothed latency drifts well above the fastest latency seen recently, and halves on a
+ * throttle. Calls over the limit wait for a slot. Throttled and failed calls are retried with jittered
+ * exponential backoff, but only while the backoff fits in the time left before the deadline, so retries never
+ * outlive the invocation.
+ */
+public class AdaptiveLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveLimiter.class);
+    // smoothed latency above this multiple of the baseline counts as congestion
+    private static final double latencyTolerance = 2.0;
+
+    /**
+     * Limits and retry settings of a table.
+     */
+    public static class Settings {
+        final int minLimit;
+        final int maxLimit;
+        final int initialLimit;
+        final int maxAttempts;
+        final long baseBackoffMillis;
+        final long maxBackoffMillis;
+
+        public Settings(int minLimit, int maxLimit, int initialLimit, int maxAttempts, long baseBackoffMillis, long maxBackoffMillis) {
+            this.minLimit = Math.max(1, minLimit);
+            this.maxLimit = Math.max(this.minLimit, maxLimit);
+            this.initialLimit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+            this.maxAttempts = Math.max(1, maxAttempts);
+            this.baseBackoffMillis = Math.max(1, baseBackoffMillis);
+            this.maxBackoffMillis = Math.max(this.baseBackoffMillis, maxBackoffMillis);
+        }
+    }
+
+    private final String name;
+    private final Settings settings;
+    private double limit;
+    private int inFlight;
+    private double smoothedLatencyNanos;
+    private double baselineLatencyNanos;
+    private volatile long deadlineMillis = Long.MAX_VALUE;
+
+    public AdaptiveLimiter(String name, Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        this.limit = settings.initialLimit;
+    }
+
+    /**
+     * Sets the time by which calls have to give up, usually the end of the current invocation.
+     */
+    public void setDeadline(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Calls the table within the limit, retrying throttles and failures while the deadline allows.
+     *
+     * @throws SdkClientException when no slot frees up before the deadline
+     */
+    public <T> T call(Supplier<T> supplier) {
+        for (int attempt = 1; ; attempt++) {
+            acquire();
+            long startNanos = System.nanoTime();
+            try {
+                T result = supplier.get();
+                release(System.nanoTime() - startNanos, false);
+                return result;
+            } catch (RuntimeException e) {
+                boolean retryable = isRetryable(e);
+                release(System.nanoTime() - startNanos, retryable && isThrottle(e));
+                if (!retryable || attempt >= settings.maxAttempts) {
+                    throw e;
+                }
+                // half of the exponential backoff is fixed and half is jitter, so retries never come right back
+                long ceilingMillis = Math.min(settings.maxBackoffMillis, settings.baseBackoffMillis << Math.min(attempt - 1, 20));
+                long backoffMillis = ceilingMillis / 2 + ThreadLocalRandom.current().nextLong(ceilingMillis / 2 + 1);
+                if (System.currentTimeMillis() + backoffMillis >= deadlineMillis) {
+                    logger.warn(String.format("Giving up on %s after %d attempt(s), the deadline is too close to back off %dms",
+                            name, attempt, backoffMillis));
+                    throw e;
+                }
+                sleep(backoffMillis);
+            }
+        }
+    }
+
+    private synchronized void acquire() {
+        while (inFlight >= (int) limit) {
+            long waitMillis = deadlineMillis - System.currentTimeMillis();
+            if (waitMillis <= 0) {
+                throw SdkClientException.create(String.format("No capacity left for %s before the deadline (limit %d)", name, (int) limit));
+            }
+            try {
+                wait(Math.min(waitMillis, TimeUnit.SECONDS.toMillis(1)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw SdkClientException.create(String.format("Interrupted while waiting for capacity for %s", name), e);
+            }
+        }
+        inFlight++;
+    }
+
+    private synchronized void release(long latencyNanos, boolean throttled) {
+        boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+        double previous = limit;
+        if (throttled) {
+            limit = Math.max(settings.minLimit, limit / 2);
+        } else {
+            smoothedLatencyNanos = smoothedLatencyNanos == 0 ? latencyNanos : 0.8 * smoothedLatencyNanos + 0.2 * latencyNanos;
+            // the baseline creeps up so that a one-off fast call does not hold the limit down for good
+            baselineLatencyNanos = baselineLatencyNanos == 0 ? latencyNanos : Math.min(baselineLatencyNanos * 1.01, latencyNanos);
+            if (smoothedLatencyNanos > baselineLatencyNanos * latencyTolerance) {
+                limit = Math.max(settings.minLimit, limit * 0.9);
+            } else if (saturated) {
+                // only a limit that is actually reached needs to grow
+                limit = Math.min(settings.maxLimit, limit + 1 / limit);
+            }
+        }
+        if ((int) limit != (int) previous) {
+            logger.info(String.format("Concurrency limit of %s is now %d", name, (int) limit));
+        }
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private static boolean isThrottle(Throwable error) {
+        return error instanceof AwsServiceException && ((AwsServiceException) error).isThrottlingException();
+    }
+
+    // throttles, server errors and calls that got no answer, a refused request is not retried
+    private static boolean isRetryable(Throwable error) {
+        if (error instanceof SdkClientException) {
+            return true;
+        }
+        if (error instanceof AwsServiceException) {
+            AwsServiceException serviceException = (AwsServiceException) error;
+            return serviceException.isThrottlingException() || serviceException.statusCode() >= 500;
+        }
+        return false;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -4,13 +4,22 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 import software.amazon.awssdk.services.s3.S3Client;
 
+import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -20,22 +29,158 @@ import java.util.Random;
  *
  * @see <a href=https://docs.aws.amazon.com/lambda/latest/dg/java-handler.html>Lambda Java Handler</a> for more information
  */
-public class App implements RequestHandler<NumberPlateTrigger, Object> {
+public class App implements RequestHandler<Object, Object> {
     private final S3Client s3Client;
     private final DynamoDbClient dynamoDbClient;
+    private final boolean atomicCharge;
+    private final StripedCredit stripedCredit;
+    private final CreditLedger creditLedger;
+    private final UnknownPlateCache unknownPlates;
+    private final ChargeBatcher chargeBatcher;
+    // the end of the current invocation, a trigger of a batch is not charged once too little of it is left
+    private volatile Deadline deadline = Deadline.none();
     Gson gson = new GsonBuilder().setPrettyPrinting().create();
     private static final Logger logger = LoggerFactory.getLogger(App.class);
+    // left to return a typed error after the last call gave up
+    private static final long deadlineMarginMillis = 500;
+    // about the time a charge takes when DynamoDB is slow
+    private static final long chargeMinRemainingMillis = 1000;
+    private static final Type triggerListType = new TypeToken<List<NumberPlateTrigger>>(){}.getType();
 
     public App() {
         // Initialize the SDK client outside of the handler method so that it can be reused for subsequent invocations.
         // It is initialized when the class is loaded.
-        s3Client = DependencyFactory.s3Client();
-        dynamoDbClient = DependencyFactory.dynamoDbClient();
+        this(DependencyFactory.s3Client(), DependencyFactory.dynamoDbClient(), DependencyFactory.chargeMode());
         // Consider invoking a simple api here to pre-warm up the application, eg: dynamodb#listTables
     }
 
+    App(S3Client s3Client, DynamoDbClient dynamoDbClient, String chargeMode) {
+        this.s3Client = s3Client;
+        this.dynamoDbClient = dynamoDbClient;
+        this.stripedCredit = new StripedCredit(dynamoDbClient, System.getenv("DDBTableName"));
+        this.creditLedger = new CreditLedger(dynamoDbClient, System.getenv("DDBTableName"), stripedCredit);
+        this.unknownPlates = DependencyFactory.unknownPlateCache();
+        this.atomicCharge = !DependencyFactory.readThenWriteChargeMode.equalsIgnoreCase(chargeMode);
+        // the triggers of a batch execution are charged together
+        this.chargeBatcher = DependencyFactory.batchedChargeMode.equalsIgnoreCase(chargeMode)
+                ? new ChargeBatcher(creditLedger, dynamoDbClient) : null;
+    }
+
+    /**
+     * Accepts a single {@link NumberPlateTrigger}, a list of them, or a batch execution input of the form
+     * {"items": [...]}. A single trigger is returned as is and its errors are thrown for the state machine to
+     * catch. A list is charged item by item and returns one {@link BatchItemResult} per trigger, so one plate's
+     * error does not fail the others. An input with a "stripe" object of a numberPlate and a number of stripes K
+     * spreads the credit of a hot account over K stripes, see {@link StripedCredit}, and one with a "balance"
+     * object of a numberPlate returns the credit of the account, its stripes included.
+     */
     @Override
-    public NumberPlateTrigger handleRequest(final NumberPlateTrigger payload, final Context context) {
+    public Object handleRequest(final Object input, final Context context) {
+        deadline = Deadline.of(context, deadlineMarginMillis);
+        if (dynamoDbClient instanceof AdaptiveDynamoDbClient) {
+            // retries and waits for capacity give up before the invocation times out, and so does every call
+            ((AdaptiveDynamoDbClient) dynamoDbClient).setDeadline(deadline.getMillis());
+        }
+        stripedCredit.setDeadline(deadline.getMillis());
+        if (input instanceof NumberPlateTrigger) {
+            return handleTrigger((NumberPlateTrigger) input);
+        }
+        JsonElement json = gson.toJsonTree(input);
+        if (json.isJsonObject() && json.getAsJsonObject().has("stripe")) {
+            return handleStripe(json.getAsJsonObject().getAsJsonObject("stripe"));
+        }
+        if (json.isJsonObject() && json.getAsJsonObject().has("balance")) {
+            // the credit of a striped account is only known here, its own item holds the top-ups not yet moved
+            return getAvailableCredit(dynamoDbClient, System.getenv("DDBTableName"), CreditLedger.keyAttribute,
+                    json.getAsJsonObject().getAsJsonObject("balance").get("numberPlate").getAsString());
+        }
+        if (json.isJsonObject() && json.getAsJsonObject().has("items")) {
+            json = json.getAsJsonObject().get("items");
+        }
+        if (json.isJsonArray()) {
+            List<NumberPlateTrigger> triggers = gson.fromJson(json, triggerListType);
+            return handleBatch(triggers);
+        }
+        return handleTrigger(gson.fromJson(json, NumberPlateTrigger.class));
+    }
+
+    // charge every trigger of a batch, keeping the outcome of each one
+    private List<BatchItemResult> handleBatch(List<NumberPlateTrigger> triggers) {
+        logger.info(String.format("Plate Detected batch of %d trigger(s)", triggers.size()));
+        if (chargeBatcher != null && triggers.size() > 1) {
+            return chargeBatch(triggers);
+        }
+        List<BatchItemResult> results = new ArrayList<>();
+        for (NumberPlateTrigger trigger : triggers) {
+            results.add(handleBatchItem(trigger));
+        }
+        return results;
+    }
+
+    // batched mode: the plates are checked one by one and charged together, repeat plates merged
+    private List<BatchItemResult> chargeBatch(List<NumberPlateTrigger> triggers) {
+        List<BatchItemResult> results = new ArrayList<>();
+        Map<Integer, ChargeBatcher.Charge> charges = new LinkedHashMap<>();
+        for (NumberPlateTrigger trigger : triggers) {
+            if (trigger.numberPlate == null || !trigger.numberPlate.detected || !deadline.allows(chargeMinRemainingMillis)) {
+                results.add(handleBatchItem(trigger));
+                continue;
+            }
+            logger.info(String.format("Plate Detected event: %s", gson.toJson(trigger)));
+            try {
+                checkKnown(trigger.numberPlate.numberPlateString);
+                charges.put(results.size(), new ChargeBatcher.Charge(trigger.numberPlate.numberPlateString, trigger.charge));
+                results.add(null);
+            } catch (RuntimeException e) {
+                results.add(BatchItemResult.failed(trigger, e));
+            }
+        }
+
+        chargeBatcher.charge(new ArrayList<>(charges.values()));
+        for (Map.Entry<Integer, ChargeBatcher.Charge> charge : charges.entrySet()) {
+            NumberPlateTrigger trigger = triggers.get(charge.getKey());
+            try {
+                charged(charge.getValue().getNumberPlate(), charge.getValue().getResult(), charge.getValue().getError());
+                results.set(charge.getKey(), BatchItemResult.processed(trigger));
+            } catch (RuntimeException e) {
+                logger.error(String.format("Failed to process %s/%s with error: %s", trigger.bucket, trigger.key, e.getMessage()));
+                results.set(charge.getKey(), BatchItemResult.failed(trigger, e));
+            }
+        }
+        return results;
+    }
+
+    // an administrator spreads a hot account over stripes by invoking the function with a "stripe" object, for
+    // example aws lambda invoke --payload '{"stripe": {"numberPlate": "PCF606", "stripes": 4} }'
+    private String handleStripe(JsonObject request) {
+        String numberPlate = CreditLedger.normalise(request.get("numberPlate").getAsString());
+        int stripes = request.get("stripes").getAsInt();
+        float credit = stripedCredit.stripe(numberPlate, stripes);
+        String msg = String.format("Number plate %s is spread over %d stripes, %.2f credit moved", numberPlate,
+                stripedCredit.knownStripes(numberPlate), credit);
+        logger.info(msg);
+        return msg;
+    }
+
+    private BatchItemResult handleBatchItem(NumberPlateTrigger trigger) {
+        if (trigger.numberPlate == null || !trigger.numberPlate.detected) {
+            // the plate could not be read, the execution hands it to the manual decider before it is charged
+            return BatchItemResult.processed(trigger);
+        }
+        if (!deadline.allows(chargeMinRemainingMillis)) {
+            // left uncharged with an error the execution can retry, rather than cut in the middle of the charge
+            return BatchItemResult.failed(trigger, new DeadlineExceededError(String.format(
+                    "Only %dms left of the invocation, %s/%s was not charged", deadline.remainingMillis(), trigger.bucket, trigger.key)));
+        }
+        try {
+            return BatchItemResult.processed(handleTrigger(trigger));
+        } catch (RuntimeException e) {
+            logger.error(String.format("Failed to process %s/%s with error: %s", trigger.bucket, trigger.key, e.getMessage()));
+            return BatchItemResult.failed(trigger, e);
+        }
+    }
+
+    public NumberPlateTrigger handleTrigger(final NumberPlateTrigger payload) {
         logger.info(String.format("Plate Detected event: %s", gson.toJson(payload)));
         Random rand = new Random();
         rand.setSeed(System.currentTimeMillis()/1000); // seconds since the unix epoch
@@ -49,6 +194,13 @@ public class App implements RequestHandler<NumberPlateTrigger, Object> {
             /////////////////////////////////////////////////////////////
         }
 
+        if (atomicCharge) {
+            // one conditional update checks the credit and charges the customer
+            logger.info("Charging the customer");
+            chargeAccount(payload.numberPlate.numberPlateString, payload.charge, payload.key);
+            return payload;
+        }
+
         Float credit = getAvailableCredit(dynamoDbClient,
                 System.getenv("DDBTableName"),
                 "numberPlate",
@@ -90,6 +242,12 @@ public class App implements RequestHandler<NumberPlateTrigger, Object> {
         }
     }
 
+    public class DeadlineExceededError extends RuntimeException {
+        public DeadlineExceededError(String message) {
+            super(message);
+        }
+    }
+
     public class UnknownNumberPlateError extends RuntimeException {
         public UnknownNumberPlateError(String message) {
             super(message);
@@ -108,42 +266,110 @@ public class App implements RequestHandler<NumberPlateTrigger, Object> {
                 .build();
         Float credit = 0.0f;
 
+        if (unknownPlates.isUnknown(keyVal)) {
+            String msg = String.format("Number plate %s was not found. This will require manual resolution",keyVal);
+            logger.error(msg);
+            throw new UnknownNumberPlateError(msg);
+        }
+
         try {
             // get the available credit value
             logger.info(String.format("Getting available credit for number plate %s",keyVal));
             Map<String,AttributeValue> returnedItem = ddb.getItem(request).item();
 
-            if (returnedItem != null) {
+            int stripes = stripedCredit.remember(keyVal, returnedItem);
+            if (stripes > 0) {
+                // a hot account holds its credit on its stripes
+                credit = stripedCredit.totalCredit(keyVal, stripes);
+                logger.info(String.format("Available credit for plate:%s is %.2f over %d stripes",keyVal,credit,stripes));
+            }
+            else if (returnedItem != null && !returnedItem.isEmpty()) {
                 credit = Float.parseFloat(returnedItem.get("credit").n());
                 logger.info(String.format("Available credit for plate:%s is %.2f",keyVal,credit));
             }
             else {
                 String msg = String.format("Number plate %s was not found. This will require manual resolution",keyVal);
                 logger.error(msg);
-                /////////////////////////////////////////////////////////////
-                //
-                // TODO: Throw 'UnknownNumberPlateError' Exception
-                //
-                /////////////////////////////////////////////////////////////
+                // cached as unknown, so the lookup that caches it has to fail the same way as the hits after it
+                unknownPlates.putUnknown(keyVal);
+                throw new UnknownNumberPlateError(msg);
             }
             return credit;
 
-        } catch (DynamoDbException e) {
-            logger.info(String.format("Failed to query the dynamodb table with error: %s",e.getMessage()));
-            ////////////////////////////////////////////////////////////
-            //
-            // TODO: Throw 'DatabaseAccessError' Exception
-            ///
-            /////////////////////////////////////////////////////////////
-            System.exit(1);
+        } catch (SdkException | CircuitBreaker.OpenCircuitException e) {
+            // a failure is handed to the state machine, the container stays warm for the next toll
+            String msg = String.format("Failed to query the dynamodb table with error: %s",e.getMessage());
+            logger.error(msg);
+            throw new DatabaseAccessError(msg);
+        }
+    }
+
+    // charge the account in a single round trip: the credit is decremented in place, only if the plate exists and
+    // has more credit than the charge, so concurrent tolls for the same plate cannot overwrite each other
+    public Float chargeAccount(String numberPlateString, int charge) {
+        return chargeAccount(numberPlateString, charge, null);
+    }
+
+    // the routing key spreads the charges of a striped account over its stripes
+    public Float chargeAccount(String numberPlateString, int charge, String routingKey) {
+        logger.info(String.format("Charging Number plate %s - amount=%d", CreditLedger.normalise(numberPlateString), charge));
+        checkKnown(numberPlateString);
+
+        try {
+            return charged(numberPlateString, creditLedger.charge(numberPlateString, charge, routingKey), null);
+        } catch (SdkException | CircuitBreaker.OpenCircuitException e) {
+            return charged(numberPlateString, null, e);
+        }
+    }
+
+    // a plate found unknown moments ago is not looked up again
+    private void checkKnown(String numberPlateString) {
+        if (unknownPlates.isUnknown(CreditLedger.normalise(numberPlateString))) {
+            String msg = String.format("Number plate %s was not found. This will require manual resolution",
+                    CreditLedger.normalise(numberPlateString));
+            logger.error(msg);
+            throw new UnknownNumberPlateError(msg);
+        }
+    }
+
+    // the new credit of a charge, or the error the state machine expects when it was not made
+    private Float charged(String numberPlateString, CreditLedger.ChargeResult result, RuntimeException error) {
+        if (result == null) {
+            String msg = String.format("Failed to charge the %s number plate record with error: %s",
+                    CreditLedger.normalise(numberPlateString), error.getMessage());
+            logger.error(msg);
+            throw new DatabaseAccessError(msg);
+        }
+
+        switch (result.getStatus()) {
+            case CHARGED:
+                logger.info(String.format("Charged number plate %s, new amount=%s", result.getNumberPlate(), result.getCredit()));
+                return result.getCredit();
+            case UNKNOWN_NUMBER_PLATE: {
+                String msg = String.format("Number plate %s was not found. This will require manual resolution", result.getNumberPlate());
+                logger.error(msg);
+                unknownPlates.putUnknown(result.getNumberPlate());
+                throw new UnknownNumberPlateError(msg);
+            }
+            default: {
+                String msg = String.format("Driver for number plate %s has insufficient credit %.2f for a charge of %d",
+                        result.getNumberPlate(), result.getCredit(), result.getCharge());
+                logger.error(msg);
+                throw new InsufficientCreditError(msg);
+            }
         }
-        return credit;
     }
 
     // charge the account
     public void chargeCustomer(String numberPlateString, Float credit, int charge) {
         String key = "numberPlate";
         numberPlateString = numberPlateString.replaceAll("\\s+","");
+        int stripes = stripedCredit.knownStripes(numberPlateString);
+        if (stripes > 0) {
+            // the credit read was the sum of the stripes, one of them is charged
+            chargeStripes(numberPlateString, stripes, charge);
+            return;
+        }
         HashMap<String,AttributeValue> itemKey = new HashMap<>();
         itemKey.put(key, AttributeValue.builder().s(numberPlateString).build());
 
@@ -171,14 +397,34 @@ public class App implements RequestHandler<NumberPlateTrigger, Object> {
         // update the record
         try {
             dynamoDbClient.updateItem(request);
-        } catch (DynamoDbException e) {
-            logger.info(String.format("Failed to update the %s number plate record with error: %s",numberPlateString,e.getMessage()));
-            ////////////////////////////////////////////////////////////
-            //
-            // TODO: Throw 'DatabaseAccessError' Exception
-            ///
-            /////////////////////////////////////////////////////////////
-            System.exit(1);
+        } catch (ConditionalCheckFailedException e) {
+            // another toll spent the credit between the read and this write
+            String msg = String.format("Driver for number plate %s has insufficient credit for a charge of %d",
+                    numberPlateString, charge);
+            logger.error(msg);
+            throw new InsufficientCreditError(msg);
+        } catch (SdkException | CircuitBreaker.OpenCircuitException e) {
+            String msg = String.format("Failed to update the %s number plate record with error: %s",numberPlateString,e.getMessage());
+            logger.error(msg);
+            throw new DatabaseAccessError(msg);
+        }
+    }
+
+    private void chargeStripes(String numberPlateString, int stripes, int charge) {
+        logger.info(String.format("Charging Number plate %s over %d stripes - amount=%d",numberPlateString,stripes,charge));
+        CreditLedger.ChargeResult result;
+        try {
+            result = stripedCredit.charge(numberPlateString, stripes, charge, null);
+        } catch (SdkException | CircuitBreaker.OpenCircuitException e) {
+            String msg = String.format("Failed to update the %s number plate record with error: %s",numberPlateString,e.getMessage());
+            logger.error(msg);
+            throw new DatabaseAccessError(msg);
+        }
+        if (!result.isCharged()) {
+            String msg = String.format("Driver for number plate %s has insufficient credit %.2f for a charge of %d",
+                    numberPlateString, result.getCredit(), charge);
+            logger.error(msg);
+            throw new InsufficientCreditError(msg);
         }
     }
 }
@@ -0,0 +1,50 @@
+package com.twelvefactor.platedetected;
+
+/**
+ * Outcome of charging one {@link NumberPlateTrigger} of a batch. The error is the class name Step Functions
+ * would report had the trigger been processed on its own, eg: com.twelvefactor.platedetected.App$InsufficientCreditError
+ */
+public class BatchItemResult {
+    public NumberPlateTrigger item;
+    public String error;
+    public String cause;
+
+    public static BatchItemResult processed(NumberPlateTrigger item) {
+        BatchItemResult result = new BatchItemResult();
+        result.setItem(item);
+        return result;
+    }
+
+    public static BatchItemResult failed(NumberPlateTrigger item, Throwable e) {
+        BatchItemResult result = new BatchItemResult();
+        result.setItem(item);
+        result.setError(e.getClass().getName());
+        // the execution copies the cause into the plate's Exception, so it is never left out
+        result.setCause(e.getMessage() == null ? "" : e.getMessage());
+        return result;
+    }
+
+    public NumberPlateTrigger getItem() {
+        return item;
+    }
+
+    public void setItem(NumberPlateTrigger item) {
+        this.item = item;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public String getCause() {
+        return cause;
+    }
+
+    public void setCause(String cause) {
+        this.cause = cause;
+    }
+}
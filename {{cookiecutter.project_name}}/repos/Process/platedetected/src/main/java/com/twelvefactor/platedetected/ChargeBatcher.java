@@ -0,0 +1,207 @@
+package com.twelvefactor.platedetected;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.CancellationReason;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Charges the triggers of a batch execution together.
+ *
+ * Repeat charges for the same plate are merged into one update of their sum, and the plates are written with
+ * TransactWriteItems, at most {@link #maxTransactionItems} per transaction. A transaction is all or nothing, so
+ * when it is cancelled the plates whose condition failed are resolved from the cancellation reasons (a merged
+ * plate is charged one charge at a time, some of them may still fit) and the rest is committed again. Plates spread
+ * over stripes are charged one charge at a time as well, each charge on a stripe of its own.
+ *
+ * Every charge gets its own result. Balances are not returned by transactions, so a charge committed in one has
+ * a null credit.
+ */
+public class ChargeBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(ChargeBatcher.class);
+    static final int maxTransactionItems = 25;
+
+    /**
+     * One charge of a batch, holding its outcome once the batch is charged.
+     */
+    public static class Charge {
+        private final String numberPlate;
+        private final int charge;
+        private CreditLedger.ChargeResult result;
+        private RuntimeException error;
+
+        public Charge(String numberPlateString, int charge) {
+            this.numberPlate = CreditLedger.normalise(numberPlateString);
+            this.charge = charge;
+        }
+
+        public String getNumberPlate() {
+            return numberPlate;
+        }
+
+        public int getCharge() {
+            return charge;
+        }
+
+        /**
+         * @return the outcome of the charge, null when it could not be made and {@link #getError} says why
+         */
+        public CreditLedger.ChargeResult getResult() {
+            return result;
+        }
+
+        public RuntimeException getError() {
+            return error;
+        }
+    }
+
+    private final CreditLedger ledger;
+    private final DynamoDbClient dynamoDbClient;
+
+    public ChargeBatcher(CreditLedger ledger, DynamoDbClient dynamoDbClient) {
+        this.ledger = ledger;
+        this.dynamoDbClient = dynamoDbClient;
+    }
+
+    /**
+     * Charges every charge of the batch, each one ends up with a result or an error.
+     */
+    public void charge(List<Charge> batch) {
+        // merge repeat charges for a plate, in the order of the batch
+        Map<String, List<Charge>> byPlate = new LinkedHashMap<>();
+        for (Charge item : batch) {
+            byPlate.computeIfAbsent(item.numberPlate, plate -> new ArrayList<>()).add(item);
+        }
+        List<List<Charge>> plates = new ArrayList<>();
+        for (List<Charge> charges : byPlate.values()) {
+            if (ledger.isStriped(charges.get(0).numberPlate, null)) {
+                chargeOneByOne(charges);
+            } else {
+                plates.add(charges);
+            }
+        }
+        logger.info(String.format("Committing %d charge(s) for %d plate(s)", batch.size(), byPlate.size()));
+
+        for (int from = 0; from < plates.size(); from += maxTransactionItems) {
+            commitTransaction(plates.subList(from, Math.min(plates.size(), from + maxTransactionItems)), true);
+        }
+    }
+
+    private void commitTransaction(List<List<Charge>> plates, boolean retryCancelled) {
+        if (plates.size() == 1) {
+            // a transaction of one item costs twice the capacity of the same conditional update
+            chargeMerged(plates.get(0));
+            return;
+        }
+
+        List<TransactWriteItem> items = new ArrayList<>();
+        for (List<Charge> charges : plates) {
+            items.add(TransactWriteItem.builder()
+                    .update(ledger.chargeUpdate(charges.get(0).numberPlate, total(charges)))
+                    .build());
+        }
+        try {
+            dynamoDbClient.transactWriteItems(TransactWriteItemsRequest.builder().transactItems(items).build());
+            for (List<Charge> charges : plates) {
+                completeCharged(charges, null);
+            }
+        } catch (TransactionCanceledException e) {
+            List<CancellationReason> reasons = e.hasCancellationReasons() ? e.cancellationReasons() : new ArrayList<>();
+            List<List<Charge>> cancelled = new ArrayList<>();
+            for (int i = 0; i < plates.size(); i++) {
+                List<Charge> charges = plates.get(i);
+                CancellationReason reason = i < reasons.size() ? reasons.get(i) : null;
+                if (reason != null && "ConditionalCheckFailed".equals(reason.code())) {
+                    resolveFailedCondition(charges, reason);
+                } else {
+                    // cancelled because of another item, a conflicting write or throttling
+                    cancelled.add(charges);
+                }
+            }
+            if (retryCancelled) {
+                commitTransaction(cancelled, false);
+            } else {
+                cancelled.forEach(this::chargeMerged);
+            }
+        } catch (RuntimeException e) {
+            logger.error(String.format("Failed to commit charges for %d plate(s) with error: %s", plates.size(), e.getMessage()));
+            plates.forEach(charges -> charges.forEach(item -> item.error = e));
+        }
+    }
+
+    private void resolveFailedCondition(List<Charge> charges, CancellationReason reason) {
+        Map<String, AttributeValue> item = reason.hasItem() ? reason.item() : null;
+        if (ledger.isStriped(charges.get(0).numberPlate, item)) {
+            chargeOneByOne(charges);
+            return;
+        }
+        CreditLedger.ChargeResult merged = CreditLedger.failedCondition(charges.get(0).numberPlate, total(charges), item);
+        if (charges.size() == 1 || merged.getStatus() == CreditLedger.ChargeResult.Status.UNKNOWN_NUMBER_PLATE) {
+            complete(charges, merged);
+        } else {
+            chargeOneByOne(charges);
+        }
+    }
+
+    // one conditional update for the sum of a plate's charges, one per charge if they don't all fit
+    private void chargeMerged(List<Charge> charges) {
+        try {
+            CreditLedger.ChargeResult merged = ledger.charge(charges.get(0).numberPlate, total(charges));
+            if (merged.isCharged()) {
+                completeCharged(charges, merged.getCredit());
+            } else if (charges.size() == 1 || merged.getStatus() == CreditLedger.ChargeResult.Status.UNKNOWN_NUMBER_PLATE) {
+                complete(charges, merged);
+            } else {
+                chargeOneByOne(charges);
+            }
+        } catch (RuntimeException e) {
+            charges.forEach(item -> item.error = e);
+        }
+    }
+
+    private void chargeOneByOne(List<Charge> charges) {
+        for (Charge item : charges) {
+            try {
+                item.result = ledger.charge(item.numberPlate, item.charge);
+            } catch (RuntimeException e) {
+                item.error = e;
+            }
+        }
+    }
+
+    // each charge sees the balance right after it
+    private static void completeCharged(List<Charge> charges, Float finalCredit) {
+        float later = 0;
+        for (int i = charges.size() - 1; i >= 0; i--) {
+            Charge item = charges.get(i);
+            Float credit = finalCredit == null ? null : finalCredit + later;
+            item.result = CreditLedger.ChargeResult.charged(item.numberPlate, item.charge, credit);
+            later += item.charge;
+        }
+    }
+
+    private static void complete(List<Charge> charges, CreditLedger.ChargeResult merged) {
+        for (Charge item : charges) {
+            item.result = merged.getStatus() == CreditLedger.ChargeResult.Status.UNKNOWN_NUMBER_PLATE
+                    ? CreditLedger.ChargeResult.unknownNumberPlate(item.numberPlate, item.charge)
+                    : CreditLedger.ChargeResult.insufficientCredit(item.numberPlate, item.charge, merged.getCredit());
+        }
+    }
+
+    private static int total(List<Charge> charges) {
+        int total = 0;
+        for (Charge item : charges) {
+            total += item.charge;
+        }
+        return total;
+    }
+}
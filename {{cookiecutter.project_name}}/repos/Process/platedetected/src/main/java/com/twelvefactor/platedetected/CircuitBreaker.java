@@ -0,0 +1,146 @@
+package com.twelvefactor.platedetected;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.AbortedException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Stops calling a dependency that keeps failing, so a throttled or unavailable service costs a fast typed error
+ * instead of a retry storm.
+ *
+ * The circuit opens after failureThreshold consecutive dependency failures (throttling, 5xx, or no response at
+ * all) and rejects calls until openDuration has passed. Then a single trial call is let through: it closes the
+ * circuit when it succeeds and opens it again when it fails. Errors that are a valid answer of the service,
+ * such as a failed condition, count as successes.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Thrown instead of calling the dependency while the circuit is open.
+     */
+    public static class OpenCircuitException extends RuntimeException {
+        public OpenCircuitException(String message) {
+            super(message);
+        }
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Clock clock;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntilMillis;
+
+    public CircuitBreaker(String name, int failureThreshold, Duration openDuration) {
+        this(name, failureThreshold, openDuration, Clock.systemUTC());
+    }
+
+    public CircuitBreaker(String name, int failureThreshold, Duration openDuration, Clock clock) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openDuration.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * Calls the dependency through the circuit.
+     *
+     * @throws OpenCircuitException when the circuit is open
+     */
+    public <T> T call(Supplier<T> supplier) {
+        acquire();
+        try {
+            T result = supplier.get();
+            onSuccess();
+            return result;
+        } catch (RuntimeException e) {
+            onResult(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @throws OpenCircuitException when the circuit is open, or half open with its trial call in flight
+     */
+    private synchronized void acquire() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (clock.millis() >= openUntilMillis) {
+            // another trial is let through should the outcome of the last one never be recorded
+            state = State.HALF_OPEN;
+            openUntilMillis = clock.millis() + openMillis;
+            logger.info(String.format("Circuit %s is half open, letting a trial call through", name));
+            return;
+        }
+        throw new OpenCircuitException(String.format("Circuit %s is open after %d consecutive failures",
+                name, consecutiveFailures));
+    }
+
+    /**
+     * Records the outcome of a call, null when it succeeded.
+     */
+    public void onResult(Throwable error) {
+        if (error == null || !isDependencyFailure(error)) {
+            onSuccess();
+        } else {
+            onFailure(error);
+        }
+    }
+
+    private synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            logger.info(String.format("Circuit %s is closed again", name));
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    private synchronized void onFailure(Throwable error) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN) {
+                logger.warn(String.format("Circuit %s is open for %dms after %d consecutive failures, the last one: %s",
+                        name, openMillis, consecutiveFailures, error.getMessage()));
+            }
+            state = State.OPEN;
+            openUntilMillis = clock.millis() + openMillis;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return true when the error says the dependency is unhealthy rather than that the request was refused
+     */
+    static boolean isDependencyFailure(Throwable error) {
+        if (error.getCause() != null && !(error instanceof AwsServiceException) && !(error instanceof SdkClientException)) {
+            // unwrap CompletionException and the like
+            return isDependencyFailure(error.getCause());
+        }
+        if (error instanceof AbortedException) {
+            // the call was cancelled on this side, it says nothing about the dependency
+            return false;
+        }
+        if (error instanceof SdkClientException) {
+            return true;
+        }
+        if (error instanceof AwsServiceException) {
+            AwsServiceException serviceException = (AwsServiceException) error;
+            return serviceException.isThrottlingException() || serviceException.statusCode() >= 500;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,55 @@
+package com.twelvefactor.platedetected;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+/**
+ * The dynamodb client with every call this function makes going through one {@link CircuitBreaker}, so the
+ * ledger, the batcher and the legacy read-then-write path all see the same circuit.
+ */
+public class CircuitBreakerDynamoDbClient implements DynamoDbClient {
+    private final DynamoDbClient delegate;
+    private final CircuitBreaker circuitBreaker;
+
+    public CircuitBreakerDynamoDbClient(DynamoDbClient delegate, CircuitBreaker circuitBreaker) {
+        this.delegate = delegate;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public GetItemResponse getItem(GetItemRequest request) {
+        return circuitBreaker.call(() -> delegate.getItem(request));
+    }
+
+    @Override
+    public BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+        return circuitBreaker.call(() -> delegate.batchGetItem(request));
+    }
+
+    @Override
+    public UpdateItemResponse updateItem(UpdateItemRequest request) {
+        return circuitBreaker.call(() -> delegate.updateItem(request));
+    }
+
+    @Override
+    public TransactWriteItemsResponse transactWriteItems(TransactWriteItemsRequest request) {
+        return circuitBreaker.call(() -> delegate.transactWriteItems(request));
+    }
+
+    @Override
+    public String serviceName() {
+        return delegate.serviceName();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
@@ -0,0 +1,205 @@
+package com.twelvefactor.platedetected;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValuesOnConditionCheckFailure;
+import software.amazon.awssdk.services.dynamodb.model.Update;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Charges tolls against the credit table with conditional updates. The credit is decremented in place and only
+ * when the plate exists and has more credit than the charge, so concurrent charges for a plate cannot overwrite
+ * each other.
+ *
+ * Accounts spread over stripes ({@link StripedCredit}) are charged on their stripes: their own item only holds
+ * the top-ups not yet moved onto the stripes, so the first charge against one usually fails its condition and finds
+ * the stripe count on the item. When it does not, it took credit of the account all the same.
+ */
+public class CreditLedger {
+    static final String keyAttribute = "numberPlate";
+    static final String creditAttribute = "credit";
+
+    /**
+     * Outcome of charging one plate.
+     */
+    public static class ChargeResult {
+        public enum Status { CHARGED, INSUFFICIENT_CREDIT, UNKNOWN_NUMBER_PLATE }
+
+        private final Status status;
+        private final String numberPlate;
+        private final int charge;
+        private final Float credit;
+
+        private ChargeResult(Status status, String numberPlate, int charge, Float credit) {
+            this.status = status;
+            this.numberPlate = numberPlate;
+            this.charge = charge;
+            this.credit = credit;
+        }
+
+        static ChargeResult charged(String numberPlate, int charge, Float newCredit) {
+            return new ChargeResult(Status.CHARGED, numberPlate, charge, newCredit);
+        }
+
+        static ChargeResult insufficientCredit(String numberPlate, int charge, Float credit) {
+            return new ChargeResult(Status.INSUFFICIENT_CREDIT, numberPlate, charge, credit);
+        }
+
+        static ChargeResult unknownNumberPlate(String numberPlate, int charge) {
+            return new ChargeResult(Status.UNKNOWN_NUMBER_PLATE, numberPlate, charge, null);
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isCharged() {
+            return status == Status.CHARGED;
+        }
+
+        public String getNumberPlate() {
+            return numberPlate;
+        }
+
+        public int getCharge() {
+            return charge;
+        }
+
+        /**
+         * @return the balance after a charge, the available credit when it was insufficient, or null when unknown.
+         * The balance after a charge of a striped account is the balance of the stripe that paid it, which is at
+         * most the balance of the account.
+         */
+        public Float getCredit() {
+            return credit;
+        }
+    }
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+    private final StripedCredit stripedCredit;
+
+    public CreditLedger(DynamoDbClient dynamoDbClient, String tableName, StripedCredit stripedCredit) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+        this.stripedCredit = stripedCredit;
+    }
+
+    /**
+     * @return the plate as it is keyed in the table, without whitespace
+     */
+    public static String normalise(String numberPlateString) {
+        return numberPlateString.replaceAll("\\s+","");
+    }
+
+    /**
+     * Charges the plate in a single round trip. Only a failed condition pays for a second, consistent read to
+     * tell a missing plate from a low balance.
+     *
+     * @throws software.amazon.awssdk.services.dynamodb.model.DynamoDbException when the table cannot be updated
+     */
+    public ChargeResult charge(String numberPlateString, int charge) {
+        return charge(numberPlateString, charge, null);
+    }
+
+    /**
+     * @param routingKey picks the stripe of a striped account, see {@link StripedCredit#charge}
+     */
+    public ChargeResult charge(String numberPlateString, int charge, String routingKey) {
+        String numberPlate = normalise(numberPlateString);
+        int stripes = stripedCredit.knownStripes(numberPlate);
+        if (stripes > 0) {
+            return stripedCredit.charge(numberPlate, stripes, charge, routingKey);
+        }
+        UpdateItemRequest request = UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(key(numberPlate))
+                .updateExpression("set #p = #p - :charge")
+                .conditionExpression("attribute_exists(#k) AND #p > :charge")
+                .expressionAttributeNames(expressionAttributeNames())
+                .expressionAttributeValues(expressionAttributeValues(charge))
+                .returnValues(ReturnValue.UPDATED_NEW)
+                .build();
+        try {
+            Map<String, AttributeValue> attributes = dynamoDbClient.updateItem(request).attributes();
+            return ChargeResult.charged(numberPlate, charge, credit(attributes));
+        } catch (ConditionalCheckFailedException e) {
+            Map<String, AttributeValue> item = dynamoDbClient.getItem(GetItemRequest.builder()
+                    .tableName(tableName)
+                    .key(key(numberPlate))
+                    .consistentRead(true)
+                    .build()).item();
+            stripes = stripedCredit.remember(numberPlate, item);
+            if (stripes > 0) {
+                return stripedCredit.charge(numberPlate, stripes, charge, routingKey);
+            }
+            return failedCondition(numberPlate, charge, item);
+        }
+    }
+
+    /**
+     * @return true when the plate is known to be spread over stripes, or the given item of it says so
+     */
+    boolean isStriped(String numberPlate, Map<String, AttributeValue> item) {
+        return stripedCredit.knownStripes(numberPlate) > 0 || stripedCredit.remember(numberPlate, item) > 0;
+    }
+
+    /**
+     * @return the same conditional charge as a transaction item, which returns the current item when its
+     * condition fails
+     */
+    Update chargeUpdate(String numberPlate, int charge) {
+        return Update.builder()
+                .tableName(tableName)
+                .key(key(numberPlate))
+                .updateExpression("set #p = #p - :charge")
+                .conditionExpression("attribute_exists(#k) AND #p > :charge")
+                .expressionAttributeNames(expressionAttributeNames())
+                .expressionAttributeValues(expressionAttributeValues(charge))
+                .returnValuesOnConditionCheckFailure(ReturnValuesOnConditionCheckFailure.ALL_OLD)
+                .build();
+    }
+
+    /**
+     * @return the outcome of a charge whose condition failed, given the item as it was at the time
+     */
+    static ChargeResult failedCondition(String numberPlate, int charge, Map<String, AttributeValue> item) {
+        if (item == null || item.isEmpty()) {
+            return ChargeResult.unknownNumberPlate(numberPlate, charge);
+        }
+        Float credit = credit(item);
+        return ChargeResult.insufficientCredit(numberPlate, charge, credit == null ? 0.0f : credit);
+    }
+
+    private static Float credit(Map<String, AttributeValue> attributes) {
+        if (attributes == null || attributes.get(creditAttribute) == null) {
+            return null;
+        }
+        return Float.parseFloat(attributes.get(creditAttribute).n());
+    }
+
+    private static Map<String, AttributeValue> key(String numberPlate) {
+        HashMap<String, AttributeValue> itemKey = new HashMap<>();
+        itemKey.put(keyAttribute, AttributeValue.builder().s(numberPlate).build());
+        return itemKey;
+    }
+
+    private static Map<String, String> expressionAttributeNames() {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#k", keyAttribute);
+        expressionAttributeNames.put("#p", creditAttribute);
+        return expressionAttributeNames;
+    }
+
+    private static Map<String, AttributeValue> expressionAttributeValues(int charge) {
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(":charge", AttributeValue.builder().n(Integer.toString(charge)).build());
+        return expressionAttributeValues;
+    }
+}
@@ -2,16 +2,33 @@
 package com.twelvefactor.platedetected;
 
 import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
 import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 
+import java.time.Duration;
+
 /**
  * The module containing all dependencies required by the {@link App}.
  */
 public class DependencyFactory {
     private static final String currentRegion = "{{cookiecutter.AWS_region}}"; //{{cookiecutter.AWS_region}}
+    static final String atomicChargeMode = "atomic";
+    static final String batchedChargeMode = "batched";
+    static final String readThenWriteChargeMode = "read-then-write";
+    private static final int defaultUnknownPlateCacheSize = 10000;
+    private static final long defaultUnknownPlateCacheTtlSeconds = 10;
+    private static final int defaultCircuitBreakerFailureThreshold = 5;
+    private static final long defaultCircuitBreakerOpenSeconds = 30;
+    private static final int defaultDynamoDbMinConcurrency = 1;
+    private static final int defaultDynamoDbMaxConcurrency = 64;
+    private static final int defaultDynamoDbInitialConcurrency = 16;
+    private static final int defaultDynamoDbMaxAttempts = 4;
+    private static final int defaultDynamoDbBaseBackoffMillis = 25;
+    private static final int defaultDynamoDbMaxBackoffMillis = 1000;
     private DependencyFactory() {}
 
     /**
@@ -25,10 +42,77 @@ public class DependencyFactory {
                        .build();
     }
 
+    /**
+     * @return an instance of DynamoDbClient behind a circuit breaker, with an adaptive limiter per table owning
+     * the retries
+     */
     public  static DynamoDbClient dynamoDbClient() {
-        return DynamoDbClient.builder()
+        return new AdaptiveDynamoDbClient(new CircuitBreakerDynamoDbClient(DynamoDbClient.builder()
                 .credentialsProvider(EnvironmentVariableCredentialsProvider.create())
                 .region(Region.of(currentRegion))
-                .build();
+                .overrideConfiguration(ClientOverrideConfiguration.builder().retryPolicy(RetryPolicy.none()).build())
+                .build(), circuitBreaker("dynamodb")), DependencyFactory::adaptiveLimiter);
+    }
+
+    /**
+     * @return the limiter of a table: between DynamoDbMinConcurrency and DynamoDbMaxConcurrency calls in flight,
+     * or the table's entry in DynamoDbTableConcurrency (table=max,...), starting at DynamoDbInitialConcurrency,
+     * with DynamoDbMaxAttempts attempts backing off from DynamoDbBaseBackoffMillis to DynamoDbMaxBackoffMillis
+     */
+    public static AdaptiveLimiter adaptiveLimiter(String tableName) {
+        int maxConcurrency = intEnv("DynamoDbMaxConcurrency", defaultDynamoDbMaxConcurrency);
+        String tableConcurrency = System.getenv("DynamoDbTableConcurrency");
+        if (tableConcurrency != null) {
+            for (String entry : tableConcurrency.split(",")) {
+                String[] parts = entry.split("=");
+                if (parts.length == 2 && parts[0].trim().equals(tableName)) {
+                    maxConcurrency = Integer.parseInt(parts[1].trim());
+                }
+            }
+        }
+        return new AdaptiveLimiter("dynamodb:" + tableName, new AdaptiveLimiter.Settings(
+                intEnv("DynamoDbMinConcurrency", defaultDynamoDbMinConcurrency),
+                maxConcurrency,
+                intEnv("DynamoDbInitialConcurrency", defaultDynamoDbInitialConcurrency),
+                intEnv("DynamoDbMaxAttempts", defaultDynamoDbMaxAttempts),
+                intEnv("DynamoDbBaseBackoffMillis", defaultDynamoDbBaseBackoffMillis),
+                intEnv("DynamoDbMaxBackoffMillis", defaultDynamoDbMaxBackoffMillis)));
+    }
+
+    private static int intEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * @return a circuit that opens after CircuitBreakerFailureThreshold consecutive failures of the dependency,
+     * for CircuitBreakerOpenSeconds
+     */
+    public static CircuitBreaker circuitBreaker(String name) {
+        String threshold = System.getenv("CircuitBreakerFailureThreshold");
+        String openSeconds = System.getenv("CircuitBreakerOpenSeconds");
+        return new CircuitBreaker(name,
+                threshold == null || threshold.trim().isEmpty() ? defaultCircuitBreakerFailureThreshold : Integer.parseInt(threshold.trim()),
+                Duration.ofSeconds(openSeconds == null || openSeconds.trim().isEmpty()
+                        ? defaultCircuitBreakerOpenSeconds : Long.parseLong(openSeconds.trim())));
+    }
+
+    /**
+     * @return how tolls are charged (ChargeMode): atomic, batched or read-then-write
+     */
+    public static String chargeMode() {
+        String value = System.getenv("ChargeMode");
+        return value == null || value.trim().isEmpty() ? atomicChargeMode : value.trim();
+    }
+
+    /**
+     * @return a cache of UnknownPlateCacheSize plates confirmed unknown for UnknownPlateCacheTtlSeconds, 0 disables it
+     */
+    public static UnknownPlateCache unknownPlateCache() {
+        String size = System.getenv("UnknownPlateCacheSize");
+        int capacity = size == null || size.trim().isEmpty() ? defaultUnknownPlateCacheSize : Integer.parseInt(size.trim());
+        String ttl = System.getenv("UnknownPlateCacheTtlSeconds");
+        long ttlSeconds = ttl == null || ttl.trim().isEmpty() ? defaultUnknownPlateCacheTtlSeconds : Long.parseLong(ttl.trim());
+        return new UnknownPlateCache(Math.max(1, capacity), Duration.ofSeconds(Math.max(0, ttlSeconds)));
     }
 }
@@ -0,0 +1,411 @@
+package com.twelvefactor.platedetected;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.Put;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+import software.amazon.awssdk.services.dynamodb.model.Update;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The credit of a hot account spread over K stripe items, so its charges land on K partitions instead of one.
+ *
+ * A striped account keeps its item, with a "stripes" attribute of K, and K stripe items keyed plate#0 to plate#K-1
+ * that hold the credit. A charge is routed to a stripe by hash and moves on to the next stripe when that one is
+ * short. As for an unstriped account, a stripe only pays a charge it holds more than. When every stripe is short
+ * and the account item holds top-ups, they are moved onto the stripes on the charging thread and the charge is
+ * tried once more, so nothing is left running once the handler returns.
+ *
+ * Top-ups keep adding to the account item, so the available credit is the credit of the item plus the sum of the
+ * stripes, and evening out the stripes moves the credit of the item onto them. Every write to a stripe bumps its
+ * version, which is what the rebalancer conditions on.
+ *
+ * Accounts opt in one by one with {@link #stripe}, the stripe count of an account is learnt from its item the
+ * first time a charge against it fails and is remembered for the life of the container.
+ */
+public class StripedCredit {
+    private static final Logger logger = LoggerFactory.getLogger(StripedCredit.class);
+    static final String stripesAttribute = "stripes";
+    static final String versionAttribute = "version";
+    // a transaction holds at most 25 items, the rebalancer writes the account item and every stripe in one
+    static final int maxStripes = 25;
+    // unprocessed keys of a read are asked for again a few times, with a jittered backoff in between
+    private static final int maxReadAttempts = 5;
+    private static final long baseReadBackoffMillis = 20;
+
+    /**
+     * The credit of a striped account as read in one consistent batch.
+     */
+    public static class Balance {
+        private final float head;
+        private final float[] stripes;
+        private final Long[] versions;
+
+        Balance(float head, float[] stripes, Long[] versions) {
+            this.head = head;
+            this.stripes = stripes;
+            this.versions = versions;
+        }
+
+        /**
+         * @return the credit topped up on the account item and not yet moved onto the stripes
+         */
+        public float getHead() {
+            return head;
+        }
+
+        public float getStripe(int stripe) {
+            return stripes[stripe];
+        }
+
+        /**
+         * @return the credit of the account, its item and its stripes
+         */
+        public float getTotal() {
+            float total = head;
+            for (float credit : stripes) {
+                total += credit;
+            }
+            return total;
+        }
+    }
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+    private final Map<String, Integer> knownStripes = new ConcurrentHashMap<>();
+    private volatile long deadlineMillis = Long.MAX_VALUE;
+
+    public StripedCredit(DynamoDbClient dynamoDbClient, String tableName) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+    }
+
+    /**
+     * Bounds the retries of a read by the deadline, usually the end of the current invocation.
+     */
+    public void setDeadline(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * @return the number of stripes of an account item, or 0 when its credit is held on the item itself
+     */
+    public static int stripeCount(Map<String, AttributeValue> item) {
+        if (item == null || item.get(stripesAttribute) == null || item.get(stripesAttribute).n() == null) {
+            return 0;
+        }
+        return Integer.parseInt(item.get(stripesAttribute).n());
+    }
+
+    /**
+     * @return the number of stripes of an account already seen striped, or 0
+     */
+    public int knownStripes(String numberPlate) {
+        return knownStripes.getOrDefault(numberPlate, 0);
+    }
+
+    /**
+     * Remembers the stripe count of an account item, so its next charges go to the stripes directly.
+     *
+     * @return the number of stripes of the account, or 0 when it is not striped
+     */
+    public int remember(String numberPlate, Map<String, AttributeValue> item) {
+        int stripes = stripeCount(item);
+        if (stripes > 0) {
+            knownStripes.put(numberPlate, stripes);
+        }
+        return stripes;
+    }
+
+    static String stripeKey(String numberPlate, int stripe) {
+        return numberPlate + "#" + stripe;
+    }
+
+    /**
+     * Reads the account item and every stripe consistently, in one batch well under the 100 keys of a
+     * BatchGetItem.
+     *
+     * @throws IllegalArgumentException when the stripe count is outside of what {@link #stripe} writes
+     * @throws SdkClientException when some keys are still unprocessed after the last attempt or at the deadline
+     */
+    public Balance read(String numberPlate, int stripes) {
+        checkStripes(numberPlate, stripes, 1);
+        List<Map<String, AttributeValue>> keys = new ArrayList<>();
+        keys.add(key(numberPlate));
+        for (int i = 0; i < stripes; i++) {
+            keys.add(key(stripeKey(numberPlate, i)));
+        }
+        Map<String, KeysAndAttributes> requestItems = new HashMap<>();
+        requestItems.put(tableName, KeysAndAttributes.builder().keys(keys).consistentRead(true).build());
+
+        float head = 0;
+        float[] credit = new float[stripes];
+        Long[] versions = new Long[stripes];
+        for (int attempt = 1; ; attempt++) {
+            BatchGetItemResponse response = dynamoDbClient.batchGetItem(BatchGetItemRequest.builder().requestItems(requestItems).build());
+            for (Map<String, AttributeValue> item : response.responses().getOrDefault(tableName, Collections.emptyList())) {
+                String itemKey = item.get(CreditLedger.keyAttribute).s();
+                if (itemKey.equals(numberPlate)) {
+                    head = credit(item);
+                    continue;
+                }
+                int stripe = Integer.parseInt(itemKey.substring(itemKey.lastIndexOf('#') + 1));
+                credit[stripe] = credit(item);
+                AttributeValue version = item.get(versionAttribute);
+                versions[stripe] = version == null ? null : Long.parseLong(version.n());
+            }
+            if (!response.hasUnprocessedKeys() || response.unprocessedKeys().isEmpty()) {
+                return new Balance(head, credit, versions);
+            }
+            requestItems = response.unprocessedKeys();
+            // half of the exponential backoff is fixed and half is jitter, as for the throttles of the limiter
+            long ceilingMillis = baseReadBackoffMillis << Math.min(attempt - 1, 10);
+            long backoffMillis = ceilingMillis / 2 + ThreadLocalRandom.current().nextLong(ceilingMillis / 2 + 1);
+            if (attempt >= maxReadAttempts || System.currentTimeMillis() + backoffMillis >= deadlineMillis) {
+                throw SdkClientException.create(String.format("Stripes of %s still unprocessed after %d attempt(s)", numberPlate, attempt));
+            }
+            sleep(backoffMillis);
+        }
+    }
+
+    /**
+     * @return the credit of the account, its item and the sum of its stripes
+     */
+    public float totalCredit(String numberPlate, int stripes) {
+        return read(numberPlate, stripes).getTotal();
+    }
+
+    /**
+     * Charges one stripe, starting at the stripe the routing key hashes to. When every stripe is short but the
+     * account item holds top-ups, the stripes are evened out with them on this thread and the charge is tried once
+     * more. Without top-ups evening out cannot help, no even share is more than the fullest stripe.
+     *
+     * @param routingKey spreads the charges of an account over its stripes, a random stripe is used when null
+     */
+    public CreditLedger.ChargeResult charge(String numberPlate, int stripes, int charge, String routingKey) {
+        int start = routingKey == null
+                ? ThreadLocalRandom.current().nextInt(stripes)
+                : Math.floorMod(routingKey.hashCode(), stripes);
+        Balance balance = null;
+        // a second pass only runs after the stripes were evened out
+        for (int attempt = 0; attempt < 2; attempt++) {
+            for (int i = 0; i < stripes; i++) {
+                Float newCredit = chargeStripe(numberPlate, (start + i) % stripes, charge);
+                if (newCredit != null) {
+                    return CreditLedger.ChargeResult.charged(numberPlate, charge, newCredit);
+                }
+            }
+            balance = read(numberPlate, stripes);
+            if (balance.getTotal() <= charge || balance.getHead() <= 0 || attempt > 0) {
+                break;
+            }
+            logger.info(String.format("Every stripe of %s is short of %d, rebalancing %.2f credit", numberPlate, charge, balance.getTotal()));
+            rebalance(numberPlate, stripes);
+        }
+        return CreditLedger.ChargeResult.insufficientCredit(numberPlate, charge, balance.getTotal());
+    }
+
+    // the stripe balance after the charge, or null when the stripe is short
+    private Float chargeStripe(String numberPlate, int stripe, int charge) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#p", CreditLedger.creditAttribute);
+        expressionAttributeNames.put("#v", versionAttribute);
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(":charge", AttributeValue.builder().n(Integer.toString(charge)).build());
+        expressionAttributeValues.put(":one", AttributeValue.builder().n("1").build());
+        try {
+            Map<String, AttributeValue> attributes = dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                    .tableName(tableName)
+                    .key(key(stripeKey(numberPlate, stripe)))
+                    .updateExpression("set #p = #p - :charge add #v :one")
+                    .conditionExpression("#p > :charge")
+                    .expressionAttributeNames(expressionAttributeNames)
+                    .expressionAttributeValues(expressionAttributeValues)
+                    .returnValues(ReturnValue.UPDATED_NEW)
+                    .build()).attributes();
+            return Float.parseFloat(attributes.get(CreditLedger.creditAttribute).n());
+        } catch (ConditionalCheckFailedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Evens out the credit of the account over its stripes in one transaction, the credit topped up on the account
+     * item included. Every stripe written is conditional on the version that was read, so a concurrent charge
+     * makes the transaction fail instead of losing credit; the account item is only decremented by what was read
+     * from it, so a concurrent top-up stays on it.
+     *
+     * @return true when the stripes were rebalanced
+     */
+    public boolean rebalance(String numberPlate, int stripes) {
+        Balance balance = read(numberPlate, stripes);
+        float[] target = split(balance.getTotal(), stripes);
+
+        List<TransactWriteItem> items = new ArrayList<>();
+        if (balance.getHead() > 0) {
+            items.add(TransactWriteItem.builder().update(moveCredit(numberPlate, balance.getHead(), null)).build());
+        }
+        for (int i = 0; i < stripes; i++) {
+            if (balance.getStripe(i) != target[i]) {
+                items.add(TransactWriteItem.builder().update(setCredit(stripeKey(numberPlate, i), balance.versions[i], target[i])).build());
+            }
+        }
+        if (items.isEmpty()) {
+            return true;
+        }
+        try {
+            dynamoDbClient.transactWriteItems(TransactWriteItemsRequest.builder().transactItems(items).build());
+            logger.info(String.format("Rebalanced %.2f credit over %d stripes of %s", balance.getTotal(), stripes, numberPlate));
+            return true;
+        } catch (TransactionCanceledException e) {
+            logger.info(String.format("Stripes of %s changed while rebalancing, leaving them as they are", numberPlate));
+            return false;
+        }
+    }
+
+    /**
+     * Spreads the credit of an account over the given number of stripes. The credit is read consistently and moved
+     * off the account item by what was read, so a charge or a top-up in between is not lost. An account already
+     * striped is left as it is.
+     *
+     * @return the credit spread over the stripes
+     * @throws IllegalArgumentException when the account is unknown or the stripe count out of range
+     * @throws TransactionCanceledException when the account changed while it was being striped
+     */
+    public float stripe(String numberPlate, int stripes) {
+        checkStripes(numberPlate, stripes, 2);
+        Map<String, AttributeValue> item = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(tableName)
+                .key(key(numberPlate))
+                .consistentRead(true)
+                .build()).item();
+        if (item == null || item.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Number plate %s has no account to stripe", numberPlate));
+        }
+        if (remember(numberPlate, item) > 0) {
+            logger.info(String.format("%s is already spread over %d stripes", numberPlate, stripeCount(item)));
+            return 0;
+        }
+        float credit = credit(item);
+
+        List<TransactWriteItem> items = new ArrayList<>();
+        items.add(TransactWriteItem.builder().update(moveCredit(numberPlate, credit, stripes)).build());
+        float[] target = split(credit, stripes);
+        for (int i = 0; i < stripes; i++) {
+            Map<String, AttributeValue> stripeItem = key(stripeKey(numberPlate, i));
+            stripeItem.put(CreditLedger.creditAttribute, AttributeValue.builder().n(Float.toString(target[i])).build());
+            stripeItem.put(versionAttribute, AttributeValue.builder().n("0").build());
+            items.add(TransactWriteItem.builder().put(Put.builder().tableName(tableName).item(stripeItem).build()).build());
+        }
+        dynamoDbClient.transactWriteItems(TransactWriteItemsRequest.builder().transactItems(items).build());
+        knownStripes.put(numberPlate, stripes);
+        logger.info(String.format("Spread %.2f credit of %s over %d stripes", credit, numberPlate, stripes));
+        return credit;
+    }
+
+    // the account item and its stripes fit in one transaction
+    private static void checkStripes(String numberPlate, int stripes, int minStripes) {
+        if (stripes < minStripes || stripes > maxStripes - 1) {
+            throw new IllegalArgumentException(String.format("%s has %d stripes, an account is spread over %d to %d",
+                    numberPlate, stripes, minStripes, maxStripes - 1));
+        }
+    }
+
+    // whole units per stripe, the remainder goes to the first stripes so nothing is lost to rounding
+    private static float[] split(float total, int stripes) {
+        float[] target = new float[stripes];
+        float share = (float) Math.floor(total / stripes);
+        float remainder = total - share * stripes;
+        for (int i = 0; i < stripes; i++) {
+            float extra = Math.min(1.0f, remainder);
+            target[i] = share + extra;
+            remainder -= extra;
+        }
+        return target;
+    }
+
+    // takes the credit that was read off the account item, marking it striped when stripes is set
+    private Update moveCredit(String numberPlate, float credit, Integer stripes) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#p", CreditLedger.creditAttribute);
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(":moved", AttributeValue.builder().n(Float.toString(credit)).build());
+        String updateExpression = "set #p = #p - :moved";
+        String conditionExpression = "#p >= :moved";
+        if (stripes != null) {
+            expressionAttributeNames.put("#s", stripesAttribute);
+            expressionAttributeValues.put(":stripes", AttributeValue.builder().n(Integer.toString(stripes)).build());
+            updateExpression += ", #s = :stripes";
+            conditionExpression += " AND attribute_not_exists(#s)";
+        }
+        return Update.builder()
+                .tableName(tableName)
+                .key(key(numberPlate))
+                .updateExpression(updateExpression)
+                .conditionExpression(conditionExpression)
+                .expressionAttributeNames(expressionAttributeNames)
+                .expressionAttributeValues(expressionAttributeValues)
+                .build();
+    }
+
+    // stripes written before they had a version are conditional on still not having one
+    private Update setCredit(String stripeKey, Long version, float target) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#p", CreditLedger.creditAttribute);
+        expressionAttributeNames.put("#v", versionAttribute);
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(":target", AttributeValue.builder().n(Float.toString(target)).build());
+        expressionAttributeValues.put(":one", AttributeValue.builder().n("1").build());
+        String conditionExpression = "attribute_not_exists(#v)";
+        if (version != null) {
+            expressionAttributeValues.put(":version", AttributeValue.builder().n(Long.toString(version)).build());
+            conditionExpression = "#v = :version";
+        }
+        return Update.builder()
+                .tableName(tableName)
+                .key(key(stripeKey))
+                .updateExpression("set #p = :target add #v :one")
+                .conditionExpression(conditionExpression)
+                .expressionAttributeNames(expressionAttributeNames)
+                .expressionAttributeValues(expressionAttributeValues)
+                .build();
+    }
+
+    private static float credit(Map<String, AttributeValue> item) {
+        AttributeValue value = item.get(CreditLedger.creditAttribute);
+        return value == null || value.n() == null ? 0.0f : Float.parseFloat(value.n());
+    }
+
+    private static Map<String, AttributeValue> key(String keyValue) {
+        HashMap<String, AttributeValue> itemKey = new HashMap<>();
+        itemKey.put(CreditLedger.keyAttribute, AttributeValue.builder().s(keyValue).build());
+        return itemKey;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
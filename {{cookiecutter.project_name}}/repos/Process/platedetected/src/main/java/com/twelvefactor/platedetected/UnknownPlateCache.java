@@ -0,0 +1,97 @@
+package com.twelvefactor.platedetected;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plates the credit table confirmed to be unknown, so that an unregistered vehicle passing the gantry again is
+ * sent to manual inspection without another read of the table.
+ *
+ * Entries expire after the TTL, which bounds how long every container keeps treating a plate as unknown after its
+ * account was created. Nothing tells the containers that an account was created, so the TTL is kept to seconds:
+ * long enough to absorb a burst of tolls for the same vehicle, short enough for a new driver not to notice.
+ * The cache is a bounded LRU that lives as long as the container.
+ */
+public class UnknownPlateCache {
+    private static final Logger logger = LoggerFactory.getLogger(UnknownPlateCache.class);
+
+    private final Map<String, Long> expiresAtMillis;
+    private final long ttlMillis;
+    private final Clock clock;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public UnknownPlateCache(int capacity, Duration ttl) {
+        this(capacity, ttl, Clock.systemUTC());
+    }
+
+    public UnknownPlateCache(int capacity, Duration ttl, Clock clock) {
+        this.ttlMillis = ttl.toMillis();
+        this.clock = clock;
+        this.expiresAtMillis = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return true when the plate was confirmed unknown within the TTL and does not need to be looked up
+     */
+    public boolean isUnknown(String numberPlate) {
+        if (ttlMillis <= 0) {
+            return false;
+        }
+        boolean unknown;
+        synchronized (expiresAtMillis) {
+            Long expiresAt = expiresAtMillis.get(numberPlate);
+            unknown = expiresAt != null && expiresAt > clock.millis();
+            if (expiresAt != null && !unknown) {
+                expiresAtMillis.remove(numberPlate);
+            }
+        }
+        if (!unknown) {
+            misses.incrementAndGet();
+            return false;
+        }
+        logger.info(String.format("Number plate %s is known to be unregistered, skipping the credit lookup (hits=%d, misses=%d)",
+                numberPlate, hits.incrementAndGet(), misses.get()));
+        return true;
+    }
+
+    public void putUnknown(String numberPlate) {
+        if (ttlMillis <= 0) {
+            return;
+        }
+        synchronized (expiresAtMillis) {
+            expiresAtMillis.put(numberPlate, clock.millis() + ttlMillis);
+        }
+    }
+
+    public int size() {
+        synchronized (expiresAtMillis) {
+            return expiresAtMillis.size();
+        }
+    }
+
+    /**
+     * @return lookups answered from the cache, each one a read of the credit table saved
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return lookups that went to the credit table
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,130 @@
+package com.twelvefactor.platedetected;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AdaptiveLimiterTest {
+
+    @Test
+    public void call_shouldHalveTheLimitOnAThrottleAndRetry() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("credit", new AdaptiveLimiter.Settings(1, 64, 8, 3, 1, 1));
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = limiter.call(() -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw throttle();
+            }
+            return "charged";
+        });
+
+        assertEquals("charged", result);
+        assertEquals(2, attempts.get());
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void call_shouldNotBackOffPastTheDeadline() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("credit", new AdaptiveLimiter.Settings(1, 64, 8, 5, 1000, 1000));
+        limiter.setDeadline(System.currentTimeMillis() + 100);
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(DynamoDbException.class, () -> limiter.call(() -> {
+            attempts.incrementAndGet();
+            throw throttle();
+        }));
+
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void call_shouldSettleBelowTheCapacityOfAThrottlingTable() throws Exception {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 100000f);
+        ThrottlingTable throttlingTable = new ThrottlingTable(table, 4);
+        AdaptiveDynamoDbClient client = new AdaptiveDynamoDbClient(throttlingTable,
+                name -> new AdaptiveLimiter(name, new AdaptiveLimiter.Settings(1, 64, 16, 20, 1, 20)));
+        CreditLedger ledger = new CreditLedger(client, "credit", new StripedCredit(client, "credit"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<CreditLedger.ChargeResult>> charges = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            charges.add(executor.submit(() -> ledger.charge("PCF606", 1)));
+        }
+        for (Future<CreditLedger.ChargeResult> charge : charges) {
+            assertTrue(charge.get().isCharged());
+        }
+        executor.shutdown();
+
+        // every charge landed once, and the limit came down from 16 towards the 4 calls the table can take
+        assertEquals(100000f - 400, table.credit.get("PCF606"), 0.001f);
+        assertTrue(client.limiter("credit").getLimit() < 16);
+        assertTrue(throttlingTable.throttles.get() < 400);
+    }
+
+    private static DynamoDbException throttle() {
+        return (DynamoDbException) DynamoDbException.builder()
+                .statusCode(400)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("ProvisionedThroughputExceededException").build())
+                .message("Rate exceeded")
+                .build();
+    }
+
+    // a table that takes a millisecond per update and throttles whatever comes in beyond its capacity
+    private static class ThrottlingTable implements DynamoDbClient {
+        private final CreditTable table;
+        private final int capacity;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger throttles = new AtomicInteger();
+
+        ThrottlingTable(CreditTable table, int capacity) {
+            this.table = table;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public UpdateItemResponse updateItem(UpdateItemRequest request) {
+            try {
+                if (inFlight.incrementAndGet() > capacity) {
+                    throttles.incrementAndGet();
+                    throw throttle();
+                }
+                Thread.sleep(1);
+                return table.updateItem(request);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return UpdateItemResponse.builder()
+                        .attributes(Collections.singletonMap("credit", AttributeValue.builder().n("0").build()))
+                        .build();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public String serviceName() {
+            return "dynamodb";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
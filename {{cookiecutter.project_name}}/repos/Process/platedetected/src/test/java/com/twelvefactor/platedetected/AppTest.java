@@ -1,9 +1,14 @@
 package com.twelvefactor.platedetected;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.google.gson.Gson;
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
+
 public class AppTest {
 
     @Test
@@ -18,4 +23,84 @@ public class AppTest {
         Object result = function.handleRequest(payload, null);
         assertEquals(payload, result);
     }
+
+    @Test
+    public void chargeAccount_shouldSubtractTheChargeInOneConditionalUpdate() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 20f);
+        App function = new App(null, table, "atomic");
+
+        assertEquals(15f, function.chargeAccount("PCF 606", 5), 0.001f);
+        assertEquals(15f, table.credit.get("PCF606"), 0.001f);
+        assertEquals(1, table.calls);
+    }
+
+    @Test
+    public void chargeAccount_shouldMapConditionFailuresToTypedErrors() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 5f);
+        App function = new App(null, table, "atomic");
+
+        assertThrows(App.InsufficientCreditError.class, () -> function.chargeAccount("PCF606", 5));
+        assertThrows(App.UnknownNumberPlateError.class, () -> function.chargeAccount("ZNU779", 5));
+        assertEquals(5f, table.credit.get("PCF606"), 0.001f);
+    }
+
+    @Test
+    public void chargeAccount_shouldFailFastForPlatesConfirmedUnknown() {
+        CreditTable table = new CreditTable();
+        App function = new App(null, table, "atomic");
+
+        assertThrows(App.UnknownNumberPlateError.class, () -> function.chargeAccount("ZNU 779", 5));
+        int calls = table.calls;
+        assertThrows(App.UnknownNumberPlateError.class, () -> function.chargeAccount("ZNU779", 5));
+        assertEquals(calls, table.calls);
+    }
+
+    @Test
+    public void getAvailableCredit_shouldThrowForAnUnknownPlateBeforeAndAfterItIsCached() {
+        CreditTable table = new CreditTable();
+        App function = new App(null, table, "read-then-write");
+
+        assertThrows(App.UnknownNumberPlateError.class, () -> function.getAvailableCredit(table, "credit", "numberPlate", "ZNU 779"));
+        int calls = table.calls;
+        assertThrows(App.UnknownNumberPlateError.class, () -> function.getAvailableCredit(table, "credit", "numberPlate", "ZNU779"));
+        assertEquals(calls, table.calls);
+    }
+
+    @Test
+    public void handleRequest_shouldStripeAnAccountOnRequestAndKeepChargingItsTopUps() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 10f);
+        App function = new App(null, table, "atomic");
+
+        function.handleRequest(new Gson().fromJson("{\"stripe\":{\"numberPlate\":\"PCF 606\",\"stripes\":2} }", Object.class), null);
+        assertEquals(2, (int) table.stripes.get("PCF606"));
+        assertEquals(0f, table.credit.get("PCF606"), 0.001f);
+
+        assertThrows(App.InsufficientCreditError.class, () -> function.chargeAccount("PCF606", 12));
+        table.credit.merge("PCF606", 20f, Float::sum);
+        function.chargeAccount("PCF606", 12);
+        assertEquals(18f, table.credit.get("PCF606#0") + table.credit.get("PCF606#1") + table.credit.get("PCF606"), 0.001f);
+    }
+
+    @Test
+    public void handleRequest_shouldChargeTheItemsOfABatchTogetherInBatchedMode() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 20f);
+        table.credit.put("LOW001", 3f);
+        App function = new App(null, table, "batched");
+        String items = "{\"items\":["
+                + "{\"key\":\"1.jpg\",\"charge\":5,\"numberPlate\":{\"numberPlateString\":\"PCF606\",\"detected\":true} },"
+                + "{\"key\":\"2.jpg\",\"charge\":5,\"numberPlate\":{\"numberPlateString\":\"PCF 606\",\"detected\":true} },"
+                + "{\"key\":\"3.jpg\",\"charge\":5,\"numberPlate\":{\"numberPlateString\":\"LOW001\",\"detected\":true} }]}";
+
+        List<?> results = (List<?>) function.handleRequest(new Gson().fromJson(items, Object.class), null);
+
+        assertNull(((BatchItemResult) results.get(0)).getError());
+        assertNull(((BatchItemResult) results.get(1)).getError());
+        assertEquals(App.InsufficientCreditError.class.getName(), ((BatchItemResult) results.get(2)).getError());
+        assertEquals(10f, table.credit.get("PCF606"), 0.001f);
+        assertEquals(1, table.transactions);
+    }
 }
@@ -0,0 +1,79 @@
+package com.twelvefactor.platedetected;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ChargeBatcherTest {
+
+    @Test
+    public void charge_shouldCommitDifferentPlatesInOneTransaction() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 20f);
+        table.credit.put("ZNU779", 20f);
+        ChargeBatcher.Charge first = new ChargeBatcher.Charge("PCF 606", 5);
+        ChargeBatcher.Charge second = new ChargeBatcher.Charge("ZNU779", 7);
+
+        batcher(table).charge(Arrays.asList(first, second));
+
+        assertEquals(CreditLedger.ChargeResult.Status.CHARGED, first.getResult().getStatus());
+        assertEquals(CreditLedger.ChargeResult.Status.CHARGED, second.getResult().getStatus());
+        assertNull(first.getResult().getCredit());
+        assertEquals(15f, table.credit.get("PCF606"), 0.001f);
+        assertEquals(13f, table.credit.get("ZNU779"), 0.001f);
+        assertEquals(1, table.calls);
+    }
+
+    @Test
+    public void charge_shouldMergeRepeatChargesForAPlate() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 20f);
+        List<ChargeBatcher.Charge> charges = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            charges.add(new ChargeBatcher.Charge("PCF606", 5));
+        }
+
+        batcher(table).charge(charges);
+
+        // one update for the sum, every charge sees the balance right after it
+        assertEquals(15f, charges.get(0).getResult().getCredit(), 0.001f);
+        assertEquals(10f, charges.get(1).getResult().getCredit(), 0.001f);
+        assertEquals(5f, charges.get(2).getResult().getCredit(), 0.001f);
+        assertEquals(1, table.updates);
+        assertEquals(0, table.transactions);
+    }
+
+    @Test
+    public void charge_shouldReportTheOutcomeOfEachChargeWhenATransactionIsCancelled() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 20f);
+        table.credit.put("LOW001", 3f);
+        table.credit.put("SPLIT1", 12f);
+        ChargeBatcher.Charge charged = new ChargeBatcher.Charge("PCF606", 5);
+        ChargeBatcher.Charge low = new ChargeBatcher.Charge("LOW001", 5);
+        ChargeBatcher.Charge unknown = new ChargeBatcher.Charge("ZNU779", 5);
+        ChargeBatcher.Charge splitFirst = new ChargeBatcher.Charge("SPLIT1", 5);
+        ChargeBatcher.Charge splitSecond = new ChargeBatcher.Charge("SPLIT1", 10);
+
+        batcher(table).charge(Arrays.asList(charged, low, unknown, splitFirst, splitSecond));
+
+        assertEquals(CreditLedger.ChargeResult.Status.CHARGED, charged.getResult().getStatus());
+        assertEquals(CreditLedger.ChargeResult.Status.INSUFFICIENT_CREDIT, low.getResult().getStatus());
+        assertEquals(3f, low.getResult().getCredit(), 0.001f);
+        assertEquals(CreditLedger.ChargeResult.Status.UNKNOWN_NUMBER_PLATE, unknown.getResult().getStatus());
+        // the merged charges of 15 don't fit in 12, but the first one on its own does
+        assertEquals(CreditLedger.ChargeResult.Status.CHARGED, splitFirst.getResult().getStatus());
+        assertEquals(CreditLedger.ChargeResult.Status.INSUFFICIENT_CREDIT, splitSecond.getResult().getStatus());
+        assertEquals(15f, table.credit.get("PCF606"), 0.001f);
+        assertEquals(7f, table.credit.get("SPLIT1"), 0.001f);
+    }
+
+    private static ChargeBatcher batcher(CreditTable table) {
+        return new ChargeBatcher(new CreditLedger(table, "credit", new StripedCredit(table, "credit")), table);
+    }
+}
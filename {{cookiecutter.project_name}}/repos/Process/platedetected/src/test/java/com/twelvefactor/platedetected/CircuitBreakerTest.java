@@ -0,0 +1,106 @@
+package com.twelvefactor.platedetected;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void call_shouldOpenAfterConsecutiveThrottlesAndCloseAfterASuccessfulTrial() {
+        MutableClock clock = new MutableClock();
+        CircuitBreaker circuitBreaker = new CircuitBreaker("dynamodb", 2, Duration.ofSeconds(30), clock);
+
+        assertThrows(DynamoDbException.class, () -> circuitBreaker.call(CircuitBreakerTest::throttle));
+        assertThrows(DynamoDbException.class, () -> circuitBreaker.call(CircuitBreakerTest::throttle));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertThrows(CircuitBreaker.OpenCircuitException.class, () -> circuitBreaker.call(() -> "not called"));
+
+        clock.advance(Duration.ofSeconds(30));
+        assertEquals("trial", circuitBreaker.call(() -> "trial"));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void call_shouldReopenWhenTheTrialFails() {
+        MutableClock clock = new MutableClock();
+        CircuitBreaker circuitBreaker = new CircuitBreaker("dynamodb", 1, Duration.ofSeconds(30), clock);
+
+        assertThrows(DynamoDbException.class, () -> circuitBreaker.call(CircuitBreakerTest::throttle));
+        clock.advance(Duration.ofSeconds(30));
+        assertThrows(DynamoDbException.class, () -> circuitBreaker.call(CircuitBreakerTest::throttle));
+
+        assertThrows(CircuitBreaker.OpenCircuitException.class, () -> circuitBreaker.call(() -> "not called"));
+    }
+
+    @Test
+    public void call_shouldNotCountRefusedRequestsAsFailures() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("dynamodb", 1, Duration.ofSeconds(30));
+
+        assertThrows(ConditionalCheckFailedException.class, () -> circuitBreaker.call(() -> {
+            throw ConditionalCheckFailedException.builder().statusCode(400).message("The conditional request failed").build();
+        }));
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void getAvailableCredit_shouldThrowADatabaseAccessErrorWhenTheCircuitIsOpen() {
+        CreditTable table = new CreditTable();
+        CircuitBreaker circuitBreaker = new CircuitBreaker("dynamodb", 1, Duration.ofSeconds(30));
+        CircuitBreakerDynamoDbClient dynamoDbClient = new CircuitBreakerDynamoDbClient(table, circuitBreaker);
+        App function = new App(null, dynamoDbClient, "read-then-write");
+        table.credit.put("PCF606", 20f);
+        circuitBreaker.onResult(throttleException());
+
+        assertThrows(App.DatabaseAccessError.class,
+                () -> function.getAvailableCredit(dynamoDbClient, "credit", "numberPlate", "PCF606"));
+        assertThrows(App.DatabaseAccessError.class, () -> function.chargeCustomer("PCF606", 20f, 5));
+        assertEquals(0, table.calls);
+    }
+
+    private static String throttle() {
+        throw throttleException();
+    }
+
+    private static DynamoDbException throttleException() {
+        return (DynamoDbException) DynamoDbException.builder()
+                .statusCode(400)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("ThrottlingException").build())
+                .message("Rate exceeded")
+                .build();
+    }
+
+    private static class MutableClock extends Clock {
+        private Instant now = Instant.parse("2021-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.twelvefactor.platedetected;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.CancellationReason;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsResponse;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of plate to credit that evaluates the charge condition (plate exists and credit > charge) the way
+ * dynamodb would, for updates and for transactions. Stripe charges, rebalancing and striping writes of {@link StripedCredit} are evaluated as well, with the versions of the stripes.
+ */
+class CreditTable implements DynamoDbClient {
+    final Map<String, Float> credit = new HashMap<>();
+    final Map<String, Integer> stripes = new HashMap<>();
+    final Map<String, Long> versions = new HashMap<>();
+    int calls;
+    int updates;
+    int transactions;
+
+    @Override
+    public synchronized UpdateItemResponse updateItem(UpdateItemRequest request) {
+        calls++;
+        updates++;
+        String plate = request.key().get("numberPlate").s();
+        float charge = Float.parseFloat(request.expressionAttributeValues().get(":charge").n());
+        Float current = credit.get(plate);
+        if (!canCharge(current, charge)) {
+            throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+        }
+        credit.put(plate, current - charge);
+        if (request.expressionAttributeValues().containsKey(":one")) {
+            versions.merge(plate, 1L, Long::sum);
+        }
+        return UpdateItemResponse.builder()
+                .attributes(item(current - charge))
+                .build();
+    }
+
+    @Override
+    public synchronized BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+        calls++;
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        request.requestItems().forEach((table, keys) -> {
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            for (Map<String, AttributeValue> key : keys.keys()) {
+                String plate = key.get("numberPlate").s();
+                if (credit.containsKey(plate)) {
+                    Map<String, AttributeValue> item = new HashMap<>(item(plate));
+                    item.put("numberPlate", AttributeValue.builder().s(plate).build());
+                    items.add(item);
+                }
+            }
+            responses.put(table, items);
+        });
+        return BatchGetItemResponse.builder().responses(responses).build();
+    }
+
+    @Override
+    public synchronized GetItemResponse getItem(GetItemRequest request) {
+        calls++;
+        String plate = request.key().get("numberPlate").s();
+        return credit.containsKey(plate) ? GetItemResponse.builder().item(item(plate)).build() : GetItemResponse.builder().build();
+    }
+
+    @Override
+    public synchronized TransactWriteItemsResponse transactWriteItems(TransactWriteItemsRequest request) {
+        calls++;
+        transactions++;
+        List<CancellationReason> reasons = new ArrayList<>();
+        boolean cancelled = false;
+        for (TransactWriteItem item : request.transactItems()) {
+            if (item.put() != null) {
+                reasons.add(CancellationReason.builder().code("None").build());
+                continue;
+            }
+            String plate = item.update().key().get("numberPlate").s();
+            Map<String, AttributeValue> values = item.update().expressionAttributeValues();
+            Float current = credit.get(plate);
+            boolean passes;
+            if (values.containsKey(":charge")) {
+                passes = canCharge(current, Float.parseFloat(values.get(":charge").n()));
+            } else if (values.containsKey(":moved")) {
+                // credit is moved off an account item by what was read from it
+                passes = current != null && current >= Float.parseFloat(values.get(":moved").n())
+                        && !(values.containsKey(":stripes") && stripes.containsKey(plate));
+            } else {
+                // a stripe is rebalanced on the version that was read
+                passes = current != null && (values.containsKey(":version")
+                        ? Long.valueOf(values.get(":version").n()).equals(versions.get(plate))
+                        : !versions.containsKey(plate));
+            }
+            if (!passes) {
+                cancelled = true;
+                reasons.add(CancellationReason.builder()
+                        .code("ConditionalCheckFailed")
+                        .item(current == null ? Collections.emptyMap() : item(plate))
+                        .build());
+            } else {
+                reasons.add(CancellationReason.builder().code("None").build());
+            }
+        }
+        if (cancelled) {
+            throw TransactionCanceledException.builder().cancellationReasons(reasons).message("Transaction cancelled").build();
+        }
+        for (TransactWriteItem item : request.transactItems()) {
+            if (item.put() != null) {
+                String plate = item.put().item().get("numberPlate").s();
+                credit.put(plate, Float.parseFloat(item.put().item().get("credit").n()));
+                if (item.put().item().containsKey("version")) {
+                    versions.put(plate, Long.parseLong(item.put().item().get("version").n()));
+                }
+                continue;
+            }
+            String plate = item.update().key().get("numberPlate").s();
+            Map<String, AttributeValue> values = item.update().expressionAttributeValues();
+            if (values.containsKey(":charge")) {
+                credit.put(plate, credit.get(plate) - Float.parseFloat(values.get(":charge").n()));
+            } else if (values.containsKey(":moved")) {
+                credit.put(plate, credit.get(plate) - Float.parseFloat(values.get(":moved").n()));
+                if (values.containsKey(":stripes")) {
+                    stripes.put(plate, Integer.parseInt(values.get(":stripes").n()));
+                }
+            } else {
+                credit.put(plate, Float.parseFloat(values.get(":target").n()));
+                versions.merge(plate, 1L, Long::sum);
+            }
+        }
+        return TransactWriteItemsResponse.builder().build();
+    }
+
+    // a plate or a stripe needs more credit than the charge
+    private static boolean canCharge(Float current, float charge) {
+        if (current == null) {
+            return false;
+        }
+        return current > charge;
+    }
+
+    private Map<String, AttributeValue> item(String plate) {
+        Map<String, AttributeValue> item = new HashMap<>(item(credit.get(plate)));
+        if (stripes.containsKey(plate)) {
+            item.put("stripes", AttributeValue.builder().n(Integer.toString(stripes.get(plate))).build());
+        }
+        if (versions.containsKey(plate)) {
+            item.put("version", AttributeValue.builder().n(Long.toString(versions.get(plate))).build());
+        }
+        return item;
+    }
+
+    private static Map<String, AttributeValue> item(float value) {
+        return Collections.singletonMap("credit", AttributeValue.builder().n(Float.toString(value)).build());
+    }
+
+    @Override
+    public String serviceName() {
+        return "dynamodb";
+    }
+
+    @Override
+    public void close() {
+    }
+}
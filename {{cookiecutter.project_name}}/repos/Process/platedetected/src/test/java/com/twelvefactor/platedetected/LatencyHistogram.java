@@ -0,0 +1,63 @@
+package com.twelvefactor.platedetected;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies in power of two buckets of microseconds, precise enough to compare percentiles between runs of the
+ * {@link LocalStateMachine} without keeping every sample. A percentile is reported as the upper bound of its
+ * bucket, the mean and the maximum are exact.
+ */
+class LatencyHistogram {
+    private static final int buckets = 48;
+
+    private final long[] counts = new long[buckets];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    synchronized void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        // bucket i holds the latencies below 2^i microseconds
+        int bucket = Math.min(buckets - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts[bucket]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized double getMeanMillis() {
+        return count == 0 ? 0 : totalNanos / 1e6 / count;
+    }
+
+    synchronized double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * @return the latency below which the share of the samples falls, in milliseconds
+     */
+    synchronized double percentileMillis(double share) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(share * count);
+        long seen = 0;
+        for (int i = 0; i < buckets; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min((1L << i) / 1e3, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("count=%d, mean=%.2fms, p50=%.2fms, p90=%.2fms, p99=%.2fms, max=%.2fms",
+                count, getMeanMillis(), percentileMillis(0.5), percentileMillis(0.9), percentileMillis(0.99), getMaxMillis());
+    }
+}
@@ -0,0 +1,116 @@
+package com.twelvefactor.platedetected;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load tests the Process stage on one box: the executions the upload trigger would start run through the
+ * {@link LocalStateMachine}, the charges go through {@link App} to an in-memory credit table, and worker threads
+ * stand in for the activity poller and the people deciding its tasks. Prints the throughput, the end to end
+ * latency and the latency of every state.
+ *
+ * Arguments: executions (10000), executions in flight (100), workers per activity (4).
+ *
+ * Run with: RandomProcessingErrorProbability=0 mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.twelvefactor.platedetected.LocalPipeline
+ */
+public class LocalPipeline {
+    private static final Gson gson = new Gson();
+    private static final int accounts = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (System.getenv("RandomProcessingErrorProbability") == null) {
+            System.err.println("Set RandomProcessingErrorProbability, the handler reads it on every trigger");
+            System.exit(1);
+        }
+        int executions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int inFlight = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        CreditTable table = new CreditTable();
+        for (int i = 0; i < accounts; i++) {
+            table.credit.put(plate(i), 100f);
+        }
+        App function = new App(null, table, DependencyFactory.chargeMode());
+        LocalStateMachine.Activity insufficientCredit = new LocalStateMachine.Activity();
+        LocalStateMachine.Activity manualInspection = new LocalStateMachine.Activity();
+        Map<String, LocalStateMachine.Resource> resources = new HashMap<>();
+        resources.put("lambdaArnPlateDetected", LocalStateMachine.function(
+                input -> gson.toJsonTree(function.handleRequest(gson.fromJson(input, Object.class), null))));
+        resources.put("insufficientCreditArn", insufficientCredit);
+        resources.put("manualInspectionArn", manualInspection);
+        LocalStateMachine stateMachine = new LocalStateMachine(
+                LocalStateMachine.readDefinition(Paths.get("../final_stepfunction_definition.yml")), resources, 0);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            // the driver tops up, the administrator reads the plate of the image
+            threads.add(LocalStateMachineTest.worker(insufficientCredit, input -> {
+                String plate = input.getAsJsonObject().getAsJsonObject("numberPlate").get("numberPlateString").getAsString();
+                synchronized (table) {
+                    table.credit.merge(CreditLedger.normalise(plate), 100f, Float::sum);
+                }
+                return input;
+            }));
+            threads.add(LocalStateMachineTest.worker(manualInspection, input -> {
+                JsonObject decided = input.getAsJsonObject().deepCopy();
+                decided.getAsJsonObject("numberPlate").addProperty("detected", true);
+                decided.getAsJsonObject("numberPlate").addProperty("numberPlateString", plate(new Random().nextInt(accounts)));
+                return decided;
+            }));
+        }
+
+        Random random = new Random(42);
+        Semaphore slots = new Semaphore(inFlight);
+        LatencyHistogram endToEnd = new LatencyHistogram();
+        AtomicInteger failed = new AtomicInteger();
+        List<CompletableFuture<JsonElement>> started = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < executions; i++) {
+            // one image in ten could not be read
+            boolean detected = random.nextInt(10) > 0;
+            NumberPlateTrigger trigger = new NumberPlateTrigger();
+            trigger.bucket = "images";
+            trigger.key = "image-" + i + ".jpg";
+            trigger.charge = 5;
+            trigger.numberPlate = new NumberPlate();
+            trigger.numberPlate.detected = detected;
+            trigger.numberPlate.numberPlateString = detected ? plate(random.nextInt(accounts)) : "";
+            slots.acquire();
+            long executionStart = System.nanoTime();
+            started.add(stateMachine.start(gson.toJsonTree(trigger)).whenComplete((output, e) -> {
+                endToEnd.record(System.nanoTime() - executionStart);
+                if (e != null) {
+                    failed.incrementAndGet();
+                }
+                slots.release();
+            }));
+        }
+        CompletableFuture.allOf(started.toArray(new CompletableFuture[0])).handle((output, e) -> null).join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        threads.forEach(Thread::interrupt);
+        stateMachine.shutdown();
+
+        System.out.println(String.format("%d executions (%d failed) in %.1fs, %.0f executions/s, %d in flight",
+                executions, failed.get(), seconds, executions / seconds, inFlight));
+        System.out.println(String.format("%-45s %s", "execution", endToEnd));
+        System.out.print(stateMachine);
+        System.out.println(String.format("DynamoDB calls: %d", table.calls));
+        TimeUnit.MILLISECONDS.sleep(100);
+    }
+
+    private static String plate(int account) {
+        return String.format("PCF%03d", account);
+    }
+}
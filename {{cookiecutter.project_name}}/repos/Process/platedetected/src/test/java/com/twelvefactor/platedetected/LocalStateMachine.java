@@ -0,0 +1,551 @@
+package com.twelvefactor.platedetected;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local stand-in for Step Functions that runs the definition of the Process stage in the JVM, so that the
+ * throughput and latency of the whole pipeline can be measured on one box.
+ *
+ * It interprets the states the definition uses: Choice, Task with Retry and Catch, Map, Pass and Fail, with
+ * InputPath, Parameters, ResultPath and OutputPath with reference paths such as $.numberPlate.detected. Every Task resource
+ * of the definition, a ${name} of its Fn::Sub, is bound to a {@link Resource}: a function handler called on the
+ * execution's thread, or an {@link Activity} whose tasks wait in a queue until a worker takes them the way the
+ * activity poller does. The time spent in every state is recorded in a {@link LatencyHistogram} per state.
+ */
+class LocalStateMachine {
+    private static final Pattern resourceReference = Pattern.compile("^\\$\\{(\\w+)}$");
+    private static final Set<String> supportedTypes = new HashSet<>(Arrays.asList("Choice", "Task", "Map", "Pass", "Fail"));
+
+    /**
+     * An error of a state, with the name Retry and Catch match on.
+     */
+    static class StatesError extends RuntimeException {
+        private final String error;
+
+        StatesError(String error, String cause) {
+            super(cause);
+            this.error = error;
+        }
+
+        String getError() {
+            return error;
+        }
+    }
+
+    interface Resource {
+        /**
+         * @return the result of the task, failing with an exception named like the error it stands for
+         */
+        JsonElement invoke(JsonElement input, long timeoutMillis) throws Exception;
+    }
+
+    interface Handler {
+        JsonElement handle(JsonElement input) throws Exception;
+    }
+
+    /**
+     * @return a function resource, run on the thread of the execution
+     */
+    static Resource function(Handler handler) {
+        return (input, timeoutMillis) -> handler.handle(input);
+    }
+
+    /**
+     * A task taken from an {@link Activity}.
+     */
+    static class ActivityTask {
+        private final String taskToken;
+        private final JsonElement input;
+
+        ActivityTask(String taskToken, JsonElement input) {
+            this.taskToken = taskToken;
+            this.input = input;
+        }
+
+        String getTaskToken() {
+            return taskToken;
+        }
+
+        JsonElement getInput() {
+            return input;
+        }
+    }
+
+    /**
+     * An activity whose tasks are queued in the JVM, taken and completed the way GetActivityTask,
+     * SendTaskSuccess and SendTaskFailure do. A task nobody completes within the TimeoutSeconds of its state
+     * fails with States.Timeout and its token is no longer known.
+     */
+    static class Activity implements Resource {
+        private final BlockingQueue<ActivityTask> tasks = new LinkedBlockingQueue<>();
+        private final Map<String, CompletableFuture<JsonElement>> pending = new ConcurrentHashMap<>();
+
+        @Override
+        public JsonElement invoke(JsonElement input, long timeoutMillis) throws Exception {
+            String taskToken = UUID.randomUUID().toString();
+            CompletableFuture<JsonElement> result = new CompletableFuture<>();
+            pending.put(taskToken, result);
+            tasks.add(new ActivityTask(taskToken, input));
+            try {
+                return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new StatesError("States.Timeout", "The activity task was not completed in time");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } finally {
+                pending.remove(taskToken);
+            }
+        }
+
+        /**
+         * @return the next task, or null when there was none within the timeout
+         */
+        ActivityTask getActivityTask(long timeout, TimeUnit unit) throws InterruptedException {
+            return tasks.poll(timeout, unit);
+        }
+
+        /**
+         * @return false when the token is not known, the task timed out
+         */
+        boolean sendTaskSuccess(String taskToken, JsonElement output) {
+            CompletableFuture<JsonElement> result = pending.get(taskToken);
+            return result != null && result.complete(output);
+        }
+
+        boolean sendTaskFailure(String taskToken, String error, String cause) {
+            CompletableFuture<JsonElement> result = pending.get(taskToken);
+            return result != null && result.completeExceptionally(new StatesError(error, cause));
+        }
+    }
+
+    private final JsonObject definition;
+    private final Map<String, Resource> resources;
+    private final double intervalScale;
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "local-state-machine");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param intervalScale how much of the IntervalSeconds of a retry is waited, 0 to retry at once
+     */
+    LocalStateMachine(String definition, Map<String, Resource> resources, double intervalScale) {
+        this.definition = JsonParser.parseString(definition).getAsJsonObject();
+        this.resources = resources;
+        this.intervalScale = intervalScale;
+        validate(this.definition);
+    }
+
+    /**
+     * @return the state machine definition of an Fn::Sub template file such as final_stepfunction_definition.yml
+     */
+    static String readDefinition(Path template) throws IOException {
+        String text = new String(Files.readAllBytes(template), StandardCharsets.UTF_8);
+        // the definition is the only json document of the template, the substitutions after it have no braces
+        return text.substring(text.indexOf('{'), text.lastIndexOf('}') + 1);
+    }
+
+    private void validate(JsonObject machine) {
+        for (Map.Entry<String, JsonElement> state : machine.getAsJsonObject("States").entrySet()) {
+            JsonObject body = state.getValue().getAsJsonObject();
+            String type = body.get("Type").getAsString();
+            if (!supportedTypes.contains(type)) {
+                throw new IllegalArgumentException(String.format("State %s has the unsupported type %s", state.getKey(), type));
+            }
+            if ("Task".equals(type)) {
+                resource(body);
+            } else if ("Map".equals(type)) {
+                validate(body.getAsJsonObject("Iterator"));
+            }
+        }
+    }
+
+    private Resource resource(JsonObject task) {
+        String reference = task.get("Resource").getAsString();
+        Matcher matcher = resourceReference.matcher(reference);
+        Resource resource = matcher.matches() ? resources.get(matcher.group(1)) : resources.get(reference);
+        if (resource == null) {
+            throw new IllegalArgumentException(String.format("No resource is bound to %s", reference));
+        }
+        return resource;
+    }
+
+    /**
+     * Runs an execution on the calling thread.
+     *
+     * @return the output of the execution
+     * @throws StatesError when the execution fails
+     */
+    JsonElement run(JsonElement input) {
+        return run(definition, input.deepCopy());
+    }
+
+    /**
+     * Runs an execution on a thread of the state machine.
+     */
+    CompletableFuture<JsonElement> start(JsonElement input) {
+        return CompletableFuture.supplyAsync(() -> run(input), executor);
+    }
+
+    /**
+     * @return the time spent in every state so far, by state name
+     */
+    Map<String, LatencyHistogram> getLatencies() {
+        return new TreeMap<>(latencies);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private JsonElement run(JsonObject machine, JsonElement input) {
+        JsonObject states = machine.getAsJsonObject("States");
+        String name = machine.get("StartAt").getAsString();
+        JsonElement data = input;
+        while (true) {
+            JsonObject state = states.getAsJsonObject(name);
+            if (state == null) {
+                throw new IllegalStateException(String.format("There is no state %s", name));
+            }
+            long start = System.nanoTime();
+            Transition transition;
+            try {
+                transition = step(state, data);
+            } finally {
+                latencies.computeIfAbsent(name, key -> new LatencyHistogram()).record(System.nanoTime() - start);
+            }
+            if (transition.next == null) {
+                return transition.output;
+            }
+            name = transition.next;
+            data = transition.output;
+        }
+    }
+
+    private static class Transition {
+        final String next;
+        final JsonElement output;
+
+        Transition(String next, JsonElement output) {
+            this.next = next;
+            this.output = output;
+        }
+    }
+
+    private Transition step(JsonObject state, JsonElement input) {
+        String type = state.get("Type").getAsString();
+        if ("Fail".equals(type)) {
+            throw new StatesError(string(state, "Error", "States.Fail"), string(state, "Cause", ""));
+        }
+        JsonElement effectiveInput = read(input, string(state, "InputPath", "$"));
+        if (state.has("Parameters") && ("Task".equals(type) || "Pass".equals(type))) {
+            effectiveInput = parameters(state.getAsJsonObject("Parameters"), effectiveInput);
+        }
+        if ("Choice".equals(type)) {
+            return new Transition(choose(state, effectiveInput), read(effectiveInput, string(state, "OutputPath", "$")));
+        }
+        JsonElement result;
+        if ("Task".equals(type)) {
+            try {
+                result = task(state, effectiveInput);
+            } catch (StatesError e) {
+                JsonObject catcher = catcher(state, e.getError());
+                if (catcher == null) {
+                    throw e;
+                }
+                JsonObject errorOutput = new JsonObject();
+                errorOutput.addProperty("Error", e.getError());
+                errorOutput.addProperty("Cause", e.getMessage());
+                return new Transition(catcher.get("Next").getAsString(),
+                        write(input, resultPath(catcher), errorOutput));
+            }
+        } else if ("Map".equals(type)) {
+            result = map(state, effectiveInput);
+        } else {
+            result = state.has("Result") ? state.get("Result") : effectiveInput;
+        }
+        JsonElement output = read(write(input, resultPath(state), result), string(state, "OutputPath", "$"));
+        return new Transition(end(state) ? null : state.get("Next").getAsString(), output);
+    }
+
+    private JsonElement task(JsonObject state, JsonElement input) {
+        Resource resource = resource(state);
+        long timeoutMillis = state.has("TimeoutSeconds")
+                ? TimeUnit.SECONDS.toMillis(state.get("TimeoutSeconds").getAsLong()) : Long.MAX_VALUE;
+        int[] attempts = state.has("Retry") ? new int[state.getAsJsonArray("Retry").size()] : new int[0];
+        while (true) {
+            StatesError error;
+            try {
+                return resource.invoke(input.deepCopy(), timeoutMillis);
+            } catch (StatesError e) {
+                error = e;
+            } catch (Exception e) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                error = new StatesError(cause.getClass().getName(), String.valueOf(cause.getMessage()));
+            }
+            JsonObject retrier = null;
+            int index = 0;
+            for (; index < attempts.length; index++) {
+                JsonObject candidate = state.getAsJsonArray("Retry").get(index).getAsJsonObject();
+                if (matches(candidate, error.getError())) {
+                    retrier = candidate;
+                    break;
+                }
+            }
+            if (retrier == null || attempts[index] >= (retrier.has("MaxAttempts") ? retrier.get("MaxAttempts").getAsInt() : 3)) {
+                throw error;
+            }
+            double interval = retrier.has("IntervalSeconds") ? retrier.get("IntervalSeconds").getAsDouble() : 1;
+            double backoff = retrier.has("BackoffRate") ? retrier.get("BackoffRate").getAsDouble() : 2;
+            long waitMillis = Math.round(interval * Math.pow(backoff, attempts[index]) * 1000 * intervalScale);
+            attempts[index]++;
+            if (waitMillis > 0) {
+                try {
+                    Thread.sleep(waitMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StatesError("States.Runtime", "Interrupted while waiting to retry");
+                }
+            }
+        }
+    }
+
+    private JsonObject catcher(JsonObject state, String error) {
+        if (!state.has("Catch")) {
+            return null;
+        }
+        for (JsonElement catcher : state.getAsJsonArray("Catch")) {
+            if (matches(catcher.getAsJsonObject(), error)) {
+                return catcher.getAsJsonObject();
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(JsonObject rule, String error) {
+        for (JsonElement name : rule.getAsJsonArray("ErrorEquals")) {
+            String errorEquals = name.getAsString();
+            if (errorEquals.equals(error) || "States.ALL".equals(errorEquals)
+                    || ("States.TaskFailed".equals(errorEquals) && !"States.Timeout".equals(error))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private JsonArray map(JsonObject state, JsonElement input) {
+        JsonElement items = read(input, string(state, "ItemsPath", "$"));
+        if (items == null || !items.isJsonArray()) {
+            throw new StatesError("States.Runtime", "The items of the Map state are not an array");
+        }
+        JsonObject iterator = state.getAsJsonObject("Iterator");
+        int maxConcurrency = state.has("MaxConcurrency") ? state.get("MaxConcurrency").getAsInt() : 0;
+        Semaphore slots = new Semaphore(maxConcurrency > 0 ? maxConcurrency : Integer.MAX_VALUE);
+        List<CompletableFuture<JsonElement>> iterations = new ArrayList<>();
+        try {
+            for (JsonElement item : items.getAsJsonArray()) {
+                slots.acquire();
+                iterations.add(CompletableFuture.supplyAsync(() -> run(iterator, item.deepCopy()), executor)
+                        .whenComplete((output, e) -> slots.release()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StatesError("States.Runtime", "Interrupted while starting the iterations");
+        }
+        JsonArray results = new JsonArray();
+        for (CompletableFuture<JsonElement> iteration : iterations) {
+            try {
+                results.add(iteration.join());
+            } catch (CompletionException e) {
+                // the first failed iteration fails the whole state
+                throw e.getCause() instanceof StatesError ? (StatesError) e.getCause()
+                        : new StatesError("States.Runtime", String.valueOf(e.getCause()));
+            }
+        }
+        return results;
+    }
+
+    private String choose(JsonObject state, JsonElement input) {
+        for (JsonElement choice : state.getAsJsonArray("Choices")) {
+            if (evaluate(choice.getAsJsonObject(), input)) {
+                return choice.getAsJsonObject().get("Next").getAsString();
+            }
+        }
+        if (!state.has("Default")) {
+            throw new StatesError("States.NoChoiceMatched", "No choice matched and there is no Default");
+        }
+        return state.get("Default").getAsString();
+    }
+
+    private static boolean evaluate(JsonObject rule, JsonElement input) {
+        if (rule.has("And")) {
+            for (JsonElement inner : rule.getAsJsonArray("And")) {
+                if (!evaluate(inner.getAsJsonObject(), input)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (rule.has("Or")) {
+            for (JsonElement inner : rule.getAsJsonArray("Or")) {
+                if (evaluate(inner.getAsJsonObject(), input)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (rule.has("Not")) {
+            return !evaluate(rule.getAsJsonObject("Not"), input);
+        }
+        JsonElement value = read(input, rule.get("Variable").getAsString());
+        if (rule.has("IsPresent")) {
+            return (value != null) == rule.get("IsPresent").getAsBoolean();
+        }
+        if (rule.has("IsNull")) {
+            return (value != null && value.isJsonNull()) == rule.get("IsNull").getAsBoolean();
+        }
+        if (value == null || !value.isJsonPrimitive()) {
+            return false;
+        }
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        if (rule.has("BooleanEquals")) {
+            return primitive.isBoolean() && primitive.getAsBoolean() == rule.get("BooleanEquals").getAsBoolean();
+        }
+        if (rule.has("StringEquals")) {
+            return primitive.isString() && primitive.getAsString().equals(rule.get("StringEquals").getAsString());
+        }
+        if (rule.has("NumericEquals")) {
+            return primitive.isNumber() && primitive.getAsDouble() == rule.get("NumericEquals").getAsDouble();
+        }
+        throw new IllegalArgumentException(String.format("Unsupported choice rule %s", rule));
+    }
+
+    // the value at a reference path, null when it is not there
+    private static JsonElement read(JsonElement input, String path) {
+        if (path == null) {
+            return new JsonObject();
+        }
+        JsonElement value = input;
+        for (String field : fields(path)) {
+            if (value == null || !value.isJsonObject()) {
+                return null;
+            }
+            value = value.getAsJsonObject().get(field);
+        }
+        return value;
+    }
+
+    // the payload template of a state, a field whose name ends in .$ takes the value at its path in the input
+    private static JsonObject parameters(JsonObject template, JsonElement input) {
+        JsonObject payload = new JsonObject();
+        for (Map.Entry<String, JsonElement> field : template.entrySet()) {
+            String name = field.getKey();
+            if (name.endsWith(".$")) {
+                JsonElement value = read(input, field.getValue().getAsString());
+                if (value == null) {
+                    throw new StatesError("States.Runtime", String.format("The path %s of the Parameters is not in the input",
+                            field.getValue().getAsString()));
+                }
+                payload.add(name.substring(0, name.length() - 2), value.deepCopy());
+            } else if (field.getValue().isJsonObject()) {
+                payload.add(name, parameters(field.getValue().getAsJsonObject(), input));
+            } else {
+                payload.add(name, field.getValue().deepCopy());
+            }
+        }
+        return payload;
+    }
+
+    // a copy of the input with the result at the path, the input itself for a null path
+    private static JsonElement write(JsonElement input, String path, JsonElement result) {
+        if (path == null) {
+            return input;
+        }
+        List<String> fields = fields(path);
+        if (fields.isEmpty()) {
+            return result;
+        }
+        JsonElement output = input.isJsonObject() ? input.deepCopy() : new JsonObject();
+        JsonObject parent = output.getAsJsonObject();
+        for (String field : fields.subList(0, fields.size() - 1)) {
+            if (!parent.has(field) || !parent.get(field).isJsonObject()) {
+                parent.add(field, new JsonObject());
+            }
+            parent = parent.getAsJsonObject(field);
+        }
+        parent.add(fields.get(fields.size() - 1), result == null ? JsonNull.INSTANCE : result);
+        return output;
+    }
+
+    private static List<String> fields(String path) {
+        if (!path.startsWith("$")) {
+            throw new IllegalArgumentException(String.format("Unsupported path %s", path));
+        }
+        List<String> fields = new ArrayList<>();
+        for (String field : path.substring(1).split("\\.")) {
+            if (!field.isEmpty()) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    // the ResultPath of a state or a catcher, null when it is set to null to keep the input as it is
+    private static String resultPath(JsonObject state) {
+        if (!state.has("ResultPath")) {
+            return "$";
+        }
+        return state.get("ResultPath").isJsonNull() ? null : state.get("ResultPath").getAsString();
+    }
+
+    private static String string(JsonObject state, String member, String defaultValue) {
+        if (!state.has(member)) {
+            return defaultValue;
+        }
+        return state.get(member).isJsonNull() ? null : state.get(member).getAsString();
+    }
+
+    private static boolean end(JsonObject state) {
+        return state.has("End") && state.get("End").getAsBoolean();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        getLatencies().forEach((state, latency) -> report.append(String.format("%-45s %s%n", state, latency)));
+        return report.toString();
+    }
+}
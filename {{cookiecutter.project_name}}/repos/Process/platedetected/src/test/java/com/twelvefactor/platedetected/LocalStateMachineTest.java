@@ -0,0 +1,153 @@
+package com.twelvefactor.platedetected;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LocalStateMachineTest {
+    private static final Gson gson = new Gson();
+
+    private static JsonElement trigger(String key, String numberPlate, boolean detected) {
+        NumberPlateTrigger trigger = new NumberPlateTrigger();
+        trigger.bucket = "images";
+        trigger.key = key;
+        trigger.charge = 5;
+        trigger.numberPlate = new NumberPlate();
+        trigger.numberPlate.numberPlateString = numberPlate;
+        trigger.numberPlate.detected = detected;
+        return gson.toJsonTree(trigger);
+    }
+
+    // charges the plate the way handleTrigger does, without its random processing errors, and the detected plates
+    // of a batch the way handleBatch does
+    static LocalStateMachine.Resource plateDetected(App function) {
+        return LocalStateMachine.function(input -> {
+            if (input.isJsonObject() && input.getAsJsonObject().has("items")) {
+                List<BatchItemResult> results = new ArrayList<>();
+                for (JsonElement item : input.getAsJsonObject().getAsJsonArray("items")) {
+                    NumberPlateTrigger trigger = gson.fromJson(item, NumberPlateTrigger.class);
+                    try {
+                        if (trigger.numberPlate.detected) {
+                            function.chargeAccount(trigger.numberPlate.numberPlateString, trigger.charge, trigger.key);
+                        }
+                        results.add(BatchItemResult.processed(trigger));
+                    } catch (RuntimeException e) {
+                        results.add(BatchItemResult.failed(trigger, e));
+                    }
+                }
+                return gson.toJsonTree(results);
+            }
+            NumberPlateTrigger trigger = gson.fromJson(input, NumberPlateTrigger.class);
+            function.chargeAccount(trigger.numberPlate.numberPlateString, trigger.charge, trigger.key);
+            return gson.toJsonTree(trigger);
+        });
+    }
+
+    // takes the tasks of the activity on a daemon thread, the way the activity poller does
+    static Thread worker(LocalStateMachine.Activity activity, UnaryOperator<JsonElement> decision) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    LocalStateMachine.ActivityTask task = activity.getActivityTask(100, TimeUnit.MILLISECONDS);
+                    if (task != null) {
+                        activity.sendTaskSuccess(task.getTaskToken(), decision.apply(task.getInput()));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void run_shouldChargeAgainOnceTheDriverToppedUp() throws Exception {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 3f);
+        LocalStateMachine.Activity insufficientCredit = new LocalStateMachine.Activity();
+        LocalStateMachine.Activity manualInspection = new LocalStateMachine.Activity();
+        Map<String, LocalStateMachine.Resource> resources = new HashMap<>();
+        resources.put("lambdaArnPlateDetected", plateDetected(new App(null, table, "atomic")));
+        resources.put("insufficientCreditArn", insufficientCredit);
+        resources.put("manualInspectionArn", manualInspection);
+        LocalStateMachine stateMachine = new LocalStateMachine(
+                LocalStateMachine.readDefinition(Paths.get("../final_stepfunction_definition.yml")), resources, 0);
+        Thread topUp = worker(insufficientCredit, input -> {
+            table.credit.merge("PCF606", 20f, Float::sum);
+            return input;
+        });
+
+        JsonObject output = stateMachine.run(trigger("plate.jpg", "PCF606", true)).getAsJsonObject();
+        topUp.interrupt();
+        stateMachine.shutdown();
+
+        assertEquals(18f, table.credit.get("PCF606"), 0.001f);
+        assertEquals("plate.jpg", output.get("key").getAsString());
+        Map<String, LatencyHistogram> latencies = stateMachine.getLatencies();
+        assertEquals(2, latencies.get("state.process.Type.NumberPlateDetected").getCount());
+        assertEquals(1, latencies.get("state.error.InsufficientCreditError").getCount());
+        assertFalse(latencies.containsKey("state.process.Type.ManualDecisionRequired"));
+    }
+
+    @Test
+    public void run_shouldProcessEveryPlateOfABatchAndTimeOutUntakenActivityTasks() throws Exception {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 20f);
+        LocalStateMachine.Activity manualInspection = new LocalStateMachine.Activity();
+        Map<String, LocalStateMachine.Resource> resources = new HashMap<>();
+        resources.put("lambdaArnPlateDetected", plateDetected(new App(null, table, "atomic")));
+        resources.put("insufficientCreditArn", new LocalStateMachine.Activity());
+        resources.put("manualInspectionArn", manualInspection);
+        String definition = LocalStateMachine.readDefinition(Paths.get("../final_stepfunction_definition.yml"));
+        LocalStateMachine stateMachine = new LocalStateMachine(definition, resources, 0);
+        Thread decider = worker(manualInspection, input -> {
+            JsonObject decided = input.getAsJsonObject().deepCopy();
+            decided.getAsJsonObject("numberPlate").addProperty("detected", true);
+            decided.getAsJsonObject("numberPlate").addProperty("numberPlateString", "PCF606");
+            return decided;
+        });
+
+        JsonObject batch = new JsonObject();
+        batch.add("items", gson.toJsonTree(new JsonElement[] {
+                trigger("first.jpg", "PCF606", true), trigger("second.jpg", "", false), trigger("third.jpg", "ZNU779", true)}));
+        JsonObject output = stateMachine.start(batch).get(10, TimeUnit.SECONDS).getAsJsonObject();
+        decider.interrupt();
+        stateMachine.shutdown();
+
+        // the first plate was charged with the batch, the unread and the unknown plates went to the decider, which
+        // read them as PCF606, and were charged on their own
+        assertEquals(3, output.getAsJsonArray("items").size());
+        assertEquals("first.jpg", output.getAsJsonArray("items").get(0).getAsJsonObject().get("key").getAsString());
+        assertEquals(5f, table.credit.get("PCF606"), 0.001f);
+        Map<String, LatencyHistogram> latencies = stateMachine.getLatencies();
+        assertEquals(1, latencies.get("state.process.Type.NumberPlateBatchCharge").getCount());
+        assertEquals(1, latencies.get("state.batch.Charged").getCount());
+        assertEquals(1, latencies.get("state.batch.ChargeFailed").getCount());
+        assertEquals(2, latencies.get("state.batch.NumberPlateDetected").getCount());
+        assertEquals(3, latencies.get("state.batch.Complete").getCount());
+
+        // nobody takes the manual inspection tasks, the state times out after its TimeoutSeconds
+        LocalStateMachine timingOut = new LocalStateMachine(definition.replace("\"TimeoutSeconds\": 360", "\"TimeoutSeconds\": 0"), resources, 0);
+        LocalStateMachine.StatesError error = assertThrows(LocalStateMachine.StatesError.class,
+                () -> timingOut.run(trigger("fourth.jpg", "", false)));
+        timingOut.shutdown();
+        assertEquals("States.Timeout", error.getError());
+        assertTrue(timingOut.toString().contains("state.process.Type.ManualDecisionRequired"));
+    }
+}
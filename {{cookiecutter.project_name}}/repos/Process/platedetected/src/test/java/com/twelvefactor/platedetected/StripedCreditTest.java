@@ -0,0 +1,138 @@
+package com.twelvefactor.platedetected;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+
+public class StripedCreditTest {
+
+    @Test
+    public void stripe_shouldSpreadTheCreditWithoutLosingAny() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 101f);
+        StripedCredit stripedCredit = new StripedCredit(table, "credit");
+
+        assertEquals(101f, stripedCredit.stripe("PCF606", 4), 0.001f);
+
+        assertEquals(0f, table.credit.get("PCF606"), 0.001f);
+        assertEquals(4, (int) table.stripes.get("PCF606"));
+        assertEquals(26f, table.credit.get("PCF606#0"), 0.001f);
+        assertEquals(25f, table.credit.get("PCF606#3"), 0.001f);
+        assertEquals(101f, stripedCredit.totalCredit("PCF606", 4), 0.001f);
+    }
+
+    @Test
+    public void charge_shouldFindTheStripesOfAnAccountAndChargeOneOfThem() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 0f);
+        table.stripes.put("PCF606", 2);
+        table.credit.put("PCF606#0", 20f);
+        table.credit.put("PCF606#1", 20f);
+        StripedCredit stripedCredit = new StripedCredit(table, "credit");
+        CreditLedger ledger = new CreditLedger(table, "credit", stripedCredit);
+
+        assertTrue(ledger.charge("PCF 606", 5).isCharged());
+        assertEquals(2, stripedCredit.knownStripes("PCF606"));
+        int calls = table.calls;
+        assertTrue(ledger.charge("PCF606", 5).isCharged());
+
+        // once known, the account is charged on its stripes in one round trip
+        assertEquals(calls + 1, table.calls);
+        assertEquals(30f, stripedCredit.totalCredit("PCF606", 2), 0.001f);
+        assertEquals(0f, table.credit.get("PCF606"), 0.001f);
+    }
+
+    @Test
+    public void charge_shouldMoveOnToAStripeThatCanPay() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 0f);
+        table.stripes.put("PCF606", 3);
+        table.credit.put("PCF606#0", 4f);
+        table.credit.put("PCF606#1", 4f);
+        table.credit.put("PCF606#2", 4f);
+        StripedCredit stripedCredit = new StripedCredit(table, "credit");
+
+        assertEquals(CreditLedger.ChargeResult.Status.INSUFFICIENT_CREDIT,
+                stripedCredit.charge("PCF606", 3, 13, "image-1.jpg").getStatus());
+
+        table.credit.put("PCF606#1", 0f);
+        table.credit.put("PCF606#2", 8f);
+        // 6 only fits on the last stripe, whichever stripe the key routes to
+        CreditLedger.ChargeResult result = stripedCredit.charge("PCF606", 3, 6, "image-2.jpg");
+        assertTrue(result.isCharged());
+        assertEquals(2f, result.getCredit(), 0.001f);
+        assertEquals(6f, stripedCredit.totalCredit("PCF606", 3), 0.001f);
+        assertEquals(4f, table.credit.get("PCF606#0"), 0.001f);
+    }
+
+    @Test
+    public void charge_shouldNotPayATollEqualToTheBalanceStripedOrNot() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 5f);
+        table.credit.put("ZNU779", 0f);
+        table.stripes.put("ZNU779", 2);
+        table.credit.put("ZNU779#0", 5f);
+        table.credit.put("ZNU779#1", 0f);
+        CreditLedger ledger = new CreditLedger(table, "credit", new StripedCredit(table, "credit"));
+
+        assertEquals(CreditLedger.ChargeResult.Status.INSUFFICIENT_CREDIT, ledger.charge("PCF606", 5).getStatus());
+        assertEquals(CreditLedger.ChargeResult.Status.INSUFFICIENT_CREDIT, ledger.charge("ZNU779", 5).getStatus());
+        assertTrue(ledger.charge("ZNU779", 4).isCharged());
+    }
+
+    @Test
+    public void charge_shouldFailOnlyWhenNoStripeCanPayAfterRebalancing() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606#0", 5f);
+        table.credit.put("PCF606#1", 5f);
+        StripedCredit stripedCredit = new StripedCredit(table, "credit");
+
+        // 10 credit in total but no stripe can pay 6 on its own, not even after an even split
+        assertEquals(CreditLedger.ChargeResult.Status.INSUFFICIENT_CREDIT,
+                stripedCredit.charge("PCF606", 2, 6, null).getStatus());
+
+        table.credit.put("PCF606#0", 1f);
+        table.credit.put("PCF606#1", 9f);
+        assertTrue(stripedCredit.charge("PCF606", 2, 5, null).isCharged());
+        assertEquals(5f, stripedCredit.totalCredit("PCF606", 2), 0.001f);
+    }
+
+    @Test
+    public void charge_shouldFindTheTopUpsOfAStripedAccount() {
+        CreditTable table = new CreditTable();
+        table.credit.put("PCF606", 0f);
+        StripedCredit stripedCredit = new StripedCredit(table, "credit");
+        stripedCredit.stripe("PCF606", 2);
+        assertEquals(CreditLedger.ChargeResult.Status.INSUFFICIENT_CREDIT,
+                stripedCredit.charge("PCF606", 2, 5, "image-1.jpg").getStatus());
+
+        // the driver tops up the account item, as the website does
+        table.credit.merge("PCF606", 20f, Float::sum);
+        assertEquals(20f, stripedCredit.totalCredit("PCF606", 2), 0.001f);
+        assertTrue(stripedCredit.charge("PCF606", 2, 5, "image-1.jpg").isCharged());
+
+        assertEquals(15f, stripedCredit.totalCredit("PCF606", 2), 0.001f);
+        assertEquals(0f, table.credit.get("PCF606"), 0.001f);
+    }
+
+    @Test
+    public void read_shouldGiveUpOnUnprocessedKeysAfterAFewAttempts() {
+        CreditTable table = new CreditTable() {
+            @Override
+            public synchronized BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+                calls++;
+                return BatchGetItemResponse.builder().unprocessedKeys(request.requestItems()).build();
+            }
+        };
+        StripedCredit stripedCredit = new StripedCredit(table, "credit");
+
+        assertThrows(SdkClientException.class, () -> stripedCredit.totalCredit("PCF606", 2));
+        assertEquals(5, table.calls);
+        assertThrows(IllegalArgumentException.class, () -> stripedCredit.totalCredit("PCF606", StripedCredit.maxStripes));
+    }
+}
@@ -0,0 +1,67 @@
+package com.twelvefactor.platedetected;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+public class UnknownPlateCacheTest {
+
+    @Test
+    public void isUnknown_shouldExpireEntriesAfterTheTtl() {
+        MutableClock clock = new MutableClock();
+        UnknownPlateCache cache = new UnknownPlateCache(10, Duration.ofMinutes(5), clock);
+
+        cache.putUnknown("ZNU779");
+        assertTrue(cache.isUnknown("ZNU779"));
+        clock.advance(Duration.ofMinutes(5));
+        assertFalse(cache.isUnknown("ZNU779"));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void putUnknown_shouldEvictTheLeastRecentlyUsedPlate() {
+        UnknownPlateCache cache = new UnknownPlateCache(2, Duration.ofMinutes(5));
+
+        cache.putUnknown("AAA111");
+        cache.putUnknown("BBB222");
+        cache.isUnknown("AAA111");
+        cache.putUnknown("CCC333");
+
+        assertTrue(cache.isUnknown("AAA111"));
+        assertFalse(cache.isUnknown("BBB222"));
+    }
+
+    private static class MutableClock extends Clock {
+        private Instant now = Instant.parse("2021-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}